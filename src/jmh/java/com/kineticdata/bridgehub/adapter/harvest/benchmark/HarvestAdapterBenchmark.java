@@ -0,0 +1,116 @@
+package com.kineticdata.bridgehub.adapter.harvest.benchmark;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import com.kineticdata.bridgehub.adapter.BridgeRequest;
+import com.kineticdata.bridgehub.adapter.Count;
+import com.kineticdata.bridgehub.adapter.Record;
+import com.kineticdata.bridgehub.adapter.RecordList;
+import com.kineticdata.bridgehub.adapter.harvest.HarvestAdapter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the adapter's search, retrieve and count calls against a local Harvest stand-in.
+ *
+ * Each structure is measured with fixtures of 10, 1,000 and 50,000 objects.  By default the
+ * response cache is disabled so that every call goes through the connection pool, the HTTP
+ * exchange and the JSON parsing; pass -p cacheTtl=300 or -p compress=false to measure the other
+ * paths.  Results include throughput, the latency percentiles of the sample time mode and, with
+ * the GC profiler that the benchmark profile enables, the allocation rate of each call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class HarvestAdapterBenchmark {
+
+    // The query key used to retrieve a single object of each structure
+    private static final Map<String,String> RETRIEVE_KEYS = new HashMap<String,String>();
+    static {
+        RETRIEVE_KEYS.put("Clients", "client_id");
+        RETRIEVE_KEYS.put("Projects", "project_id");
+        RETRIEVE_KEYS.put("Users", "user_id");
+    }
+
+    @Param({"Clients", "Projects", "Users"})
+    public String structure;
+
+    @Param({"10", "1000", "50000"})
+    public int size;
+
+    @Param({"0"})
+    public String cacheTtl;
+
+    @Param({"true"})
+    public String compress;
+
+    private HarvestStandIn standIn;
+    private HarvestAdapter adapter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        standIn = new HarvestStandIn(size);
+
+        Map<String,String> configuration = new HashMap<String,String>();
+        configuration.put(HarvestAdapter.Properties.PROPERTY_USERNAME, "benchmark");
+        configuration.put(HarvestAdapter.Properties.PROPERTY_PASSWORD, "benchmark");
+        configuration.put(HarvestAdapter.Properties.PROPERTY_HARVEST_ACCOUNT, "benchmark");
+        configuration.put(HarvestAdapter.Properties.PROPERTY_HARVEST_ENDPOINT, standIn.getEndpoint());
+        configuration.put(HarvestAdapter.Properties.PROPERTY_CACHE_TTL, cacheTtl);
+        configuration.put(HarvestAdapter.Properties.PROPERTY_COMPRESS_RESPONSES, compress);
+        // The stand-in doesn't need to be protected from the benchmark
+        configuration.put(HarvestAdapter.Properties.PROPERTY_RATE_LIMIT, "0");
+
+        adapter = new HarvestAdapter();
+        adapter.setProperties(configuration);
+        adapter.initialize();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        adapter.destroy();
+        standIn.stop();
+    }
+
+    @Benchmark
+    public RecordList search() throws BridgeError {
+        return adapter.search(request(""));
+    }
+
+    @Benchmark
+    public Record retrieve() throws BridgeError {
+        int id = ThreadLocalRandom.current().nextInt(size) + 1;
+        return adapter.retrieve(request(RETRIEVE_KEYS.get(structure) + "=" + id));
+    }
+
+    @Benchmark
+    public Count count() throws BridgeError {
+        return adapter.count(request(""));
+    }
+
+    private BridgeRequest request(String query) {
+        BridgeRequest request = new BridgeRequest();
+        request.setStructure(structure);
+        request.setQuery(query);
+        request.setFields(new ArrayList<String>());
+        return request;
+    }
+}
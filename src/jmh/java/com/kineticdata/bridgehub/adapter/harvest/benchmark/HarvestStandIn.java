@@ -0,0 +1,164 @@
+package com.kineticdata.bridgehub.adapter.harvest.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * Local stand-in for the Harvest API used by the benchmarks.
+ *
+ * Each resource is served from a fixture of the requested size that is generated from the recorded
+ * objects in src/jmh/resources/fixtures (the recorded objects are repeated with sequential ids, so
+ * the ids of a fixture are 1 to size).  Lists are served from /{resource} and single objects from
+ * /{resource}/{id}; the responses are prepared up front (both plain and gzip compressed, which is
+ * served if the request accepts it) so the stand-in adds as little as possible to the measurements.
+ */
+public class HarvestStandIn {
+
+    /** The benchmarked structures mapped to their Harvest resource */
+    public static final Map<String,String> RESOURCES = new LinkedHashMap<String,String>();
+    static {
+        RESOURCES.put("Clients", "clients");
+        RESOURCES.put("Projects", "projects");
+        RESOURCES.put("Users", "people");
+    }
+
+    // The fixture file for each resource
+    private static final Map<String,String> FIXTURES = new HashMap<String,String>();
+    static {
+        FIXTURES.put("clients", "clients.json");
+        FIXTURES.put("projects", "projects.json");
+        FIXTURES.put("people", "users.json");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    // Resource -> list response, and resource -> id -> single object response (plain and gzipped)
+    private final Map<String,byte[]> lists = new HashMap<String,byte[]>();
+    private final Map<String,Map<String,byte[]>> objects = new HashMap<String,Map<String,byte[]>>();
+    private final Map<String,byte[]> gzippedLists = new HashMap<String,byte[]>();
+    private final Map<String,Map<String,byte[]>> gzippedObjects = new HashMap<String,Map<String,byte[]>>();
+
+    /** Generates fixtures of size objects for each resource and starts serving them. */
+    public HarvestStandIn(int size) throws IOException {
+        for (String resource : RESOURCES.values()) {
+            generate(resource, size);
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /** Returns the endpoint that the adapter should use. */
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void generate(String resource, int size) throws IOException {
+        JSONArray recorded;
+        InputStream stream = HarvestStandIn.class.getResourceAsStream("/fixtures/" + FIXTURES.get(resource));
+        if (stream == null) {
+            throw new IOException("The " + FIXTURES.get(resource) + " fixture is missing.");
+        }
+        try {
+            recorded = (JSONArray)JSONValue.parse(new InputStreamReader(stream, StandardCharsets.UTF_8));
+        } finally {
+            stream.close();
+        }
+
+        Map<String,byte[]> byId = new HashMap<String,byte[]>();
+        Map<String,byte[]> gzippedById = new HashMap<String,byte[]>();
+        StringBuilder list = new StringBuilder("[");
+        for (int i = 1; i <= size; i++) {
+            JSONObject template = (JSONObject)recorded.get((i - 1) % recorded.size());
+            Map.Entry<?,?> envelope = (Map.Entry<?,?>)template.entrySet().iterator().next();
+            JSONObject object = new JSONObject();
+            object.putAll((Map<?,?>)envelope.getValue());
+            object.put("id", (long)i);
+            JSONObject wrapped = new JSONObject();
+            wrapped.put(envelope.getKey(), object);
+
+            String json = wrapped.toJSONString();
+            if (i > 1) {
+                list.append(',');
+            }
+            list.append(json);
+            byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+            byId.put(String.valueOf(i), bytes);
+            gzippedById.put(String.valueOf(i), gzip(bytes));
+        }
+        list.append(']');
+        byte[] bytes = list.toString().getBytes(StandardCharsets.UTF_8);
+        lists.put(resource, bytes);
+        objects.put(resource, byId);
+        gzippedLists.put(resource, gzip(bytes));
+        gzippedObjects.put(resource, gzippedById);
+    }
+
+    private byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(output);
+        gzip.write(bytes);
+        gzip.close();
+        return output.toByteArray();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            // /{resource} or /{resource}/{id}, ignoring the query string
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+            byte[] body = null;
+            if (path.length == 2) {
+                body = (gzip ? gzippedLists : lists).get(path[1]);
+            } else if (path.length == 3 && objects.containsKey(path[1])) {
+                body = (gzip ? gzippedObjects : objects).get(path[1]).get(path[2]);
+            }
+
+            if (body == null) {
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                if (gzip) {
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream output = exchange.getResponseBody();
+                output.write(body);
+                output.close();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -3,34 +3,63 @@ package com.kineticdata.bridgehub.adapter.harvest;
 import com.kineticdata.bridgehub.adapter.BridgeAdapter;
 import com.kineticdata.bridgehub.adapter.BridgeError;
 import com.kineticdata.bridgehub.adapter.BridgeRequest;
+import com.kineticdata.bridgehub.adapter.BridgeUtils;
 import com.kineticdata.bridgehub.adapter.Count;
+import com.kineticdata.bridgehub.adapter.DisposableAdapter;
 import com.kineticdata.bridgehub.adapter.Record;
 import com.kineticdata.bridgehub.adapter.RecordList;
 import com.kineticdata.commons.v1.config.ConfigurableProperty;
 import com.kineticdata.commons.v1.config.ConfigurablePropertyMap;
+import java.io.File;
 import java.io.IOException;
-import java.net.URLEncoder;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.Consts;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class HarvestAdapter implements BridgeAdapter {
+public class HarvestAdapter implements BridgeAdapter, DisposableAdapter {
     /*----------------------------------------------------------------------------------------------
      * PROPERTIES
      *--------------------------------------------------------------------------------------------*/
@@ -46,14 +75,139 @@ public class HarvestAdapter implements BridgeAdapter {
         public static final String PROPERTY_USERNAME = "Username";
         public static final String PROPERTY_PASSWORD = "Password";
         public static final String PROPERTY_HARVEST_ACCOUNT = "Account Name";
-
+        public static final String PROPERTY_HARVEST_ENDPOINT = "Harvest Endpoint";
+        public static final String PROPERTY_MAX_CONNECTIONS = "Max Connections";
+        public static final String PROPERTY_MAX_CONNECTIONS_PER_ROUTE = "Max Connections Per Route";
+        public static final String PROPERTY_KEEP_ALIVE = "Keep Alive (ms)";
+        public static final String PROPERTY_CONNECT_TIMEOUT = "Connect Timeout (ms)";
+        public static final String PROPERTY_SOCKET_TIMEOUT = "Socket Timeout (ms)";
+        public static final String PROPERTY_IDLE_CONNECTION_TIMEOUT = "Idle Connection Timeout (ms)";
+        public static final String PROPERTY_COMPRESS_RESPONSES = "Compress Responses";
+        public static final String PROPERTY_EXECUTION_MODE = "Execution Mode";
+        public static final String PROPERTY_ASYNC_IO_THREADS = "Async I/O Threads";
+        public static final String PROPERTY_CALL_DEADLINE = "Call Deadline (ms)";
+        public static final String PROPERTY_CACHE_MAX_ENTRIES = "Cache Max Entries";
+        public static final String PROPERTY_CACHE_TTL = "Cache TTL (seconds)";
+        public static final String PROPERTY_CACHE_STRUCTURE_TTLS = "Cache Structure TTLs";
+        public static final String PROPERTY_CACHE_STALE_IF_ERROR = "Cache Stale If Error (seconds)";
+        public static final String PROPERTY_COLUMNAR_THRESHOLD = "Columnar Storage Threshold";
+        public static final String PROPERTY_CIRCUIT_FAILURE_RATE = "Circuit Breaker Failure Rate (%)";
+        public static final String PROPERTY_CIRCUIT_SLOW_CALL = "Circuit Breaker Slow Call (ms)";
+        public static final String PROPERTY_CIRCUIT_WINDOW = "Circuit Breaker Window";
+        public static final String PROPERTY_CIRCUIT_OPEN_DURATION = "Circuit Breaker Open Duration (ms)";
+        public static final String PROPERTY_CIRCUIT_TRIAL_CALLS = "Circuit Breaker Trial Calls";
+        public static final String PROPERTY_RATE_LIMIT = "Rate Limit (requests/second)";
+        public static final String PROPERTY_RATE_LIMIT_BURST = "Rate Limit Burst";
+        public static final String PROPERTY_MAX_RETRIES = "Max Retries";
+        public static final String PROPERTY_RETRY_BASE_DELAY = "Retry Base Delay (ms)";
+        public static final String PROPERTY_RETRY_MAX_DELAY = "Retry Max Delay (ms)";
+        public static final String PROPERTY_MIRROR_STRUCTURES = "Mirror Structures";
+        public static final String PROPERTY_MIRROR_REFRESH_INTERVAL = "Mirror Refresh Interval (seconds)";
+        public static final String PROPERTY_MIRROR_STRUCTURE_REFRESH_INTERVALS = "Mirror Structure Refresh Intervals";
+        public static final String PROPERTY_MIRROR_MAX_STALENESS = "Mirror Max Staleness (seconds)";
+        public static final String PROPERTY_MIRROR_STRUCTURE_MAX_STALENESS = "Mirror Structure Max Staleness";
+        public static final String PROPERTY_MIRROR_FULL_RELOAD_INTERVAL = "Mirror Full Reload Interval (seconds)";
+        public static final String PROPERTY_FAN_OUT_THREADS = "Fan-out Threads";
+        public static final String PROPERTY_ENTRIES_WINDOW = "Entries Window (days)";
+        public static final String PROPERTY_RETRIEVE_BATCH_WINDOW = "Retrieve Batch Window (ms)";
+        public static final String PROPERTY_WARM_UP_MODE = "Warm-up Mode";
+        public static final String PROPERTY_WARM_UP_STRUCTURES = "Warm-up Structures";
+        public static final String PROPERTY_WARM_UP_DEADLINE = "Warm-up Deadline (ms)";
+        public static final String PROPERTY_SNAPSHOT_FILE = "Snapshot File";
+        public static final String PROPERTY_SNAPSHOT_INTERVAL = "Snapshot Interval (seconds)";
+        public static final String PROPERTY_METRICS_ENABLED = "Metrics Enabled";
+        public static final String PROPERTY_METRICS_REGISTRY_CLASS = "Metrics Registry Class";
     }
 
     private final ConfigurablePropertyMap properties = new ConfigurablePropertyMap(
         new ConfigurableProperty(Properties.PROPERTY_USERNAME).setIsRequired(true),
         new ConfigurableProperty(Properties.PROPERTY_PASSWORD).setIsRequired(true).setIsSensitive(true),
         new ConfigurableProperty(Properties.PROPERTY_HARVEST_ACCOUNT).setIsRequired(true)
-            .setDescription("")
+            .setDescription(""),
+        new ConfigurableProperty(Properties.PROPERTY_HARVEST_ENDPOINT).setValue("")
+            .setDescription("Overrides the https://{Account Name}.harvestapp.com endpoint, ie. for a proxy or a local stand-in used for testing."),
+        new ConfigurableProperty(Properties.PROPERTY_MAX_CONNECTIONS).setValue("20")
+            .setDescription("The maximum number of pooled connections to Harvest."),
+        new ConfigurableProperty(Properties.PROPERTY_MAX_CONNECTIONS_PER_ROUTE).setValue("20")
+            .setDescription("The maximum number of pooled connections to a single Harvest host."),
+        new ConfigurableProperty(Properties.PROPERTY_KEEP_ALIVE).setValue("30000")
+            .setDescription("How long an idle connection is kept alive when Harvest does not send a Keep-Alive header."),
+        new ConfigurableProperty(Properties.PROPERTY_CONNECT_TIMEOUT).setValue("10000")
+            .setDescription("How long to wait for a connection to Harvest (or a free pooled connection)."),
+        new ConfigurableProperty(Properties.PROPERTY_SOCKET_TIMEOUT).setValue("30000")
+            .setDescription("How long to wait for data from Harvest before the call fails."),
+        new ConfigurableProperty(Properties.PROPERTY_IDLE_CONNECTION_TIMEOUT).setValue("60000")
+            .setDescription("Pooled connections that have been idle longer than this are closed."),
+        new ConfigurableProperty(Properties.PROPERTY_COMPRESS_RESPONSES).setValue("true")
+            .setDescription("Asks Harvest for gzip or deflate compressed responses, which are decompressed as they are parsed (true or false)."),
+        new ConfigurableProperty(Properties.PROPERTY_EXECUTION_MODE).setValue("Blocking")
+            .setDescription("Blocking uses a connection thread per outstanding request, Async multiplexes outstanding requests over a few I/O threads."),
+        new ConfigurableProperty(Properties.PROPERTY_ASYNC_IO_THREADS).setValue("2")
+            .setDescription("The number of I/O threads used in the Async execution mode."),
+        new ConfigurableProperty(Properties.PROPERTY_CALL_DEADLINE).setValue("60000")
+            .setDescription("How long a bridge call may wait on Harvest (including retries) before it fails (0 for no deadline)."),
+        new ConfigurableProperty(Properties.PROPERTY_CACHE_MAX_ENTRIES).setValue("500")
+            .setDescription("The number of Harvest responses to cache before the least recently used is evicted (0 disables caching)."),
+        new ConfigurableProperty(Properties.PROPERTY_CACHE_TTL).setValue("0")
+            .setDescription("How long a cached Harvest response is used for (0 disables caching unless a structure TTL is set)."),
+        new ConfigurableProperty(Properties.PROPERTY_CACHE_STRUCTURE_TTLS).setValue("")
+            .setDescription("Per structure cache TTLs in seconds that override the default, ie. Clients=600,Users=300"),
+        new ConfigurableProperty(Properties.PROPERTY_CACHE_STALE_IF_ERROR).setValue("3600")
+            .setDescription("How long after it expires a cached response is served (marked as stale) if Harvest is unavailable."),
+        new ConfigurableProperty(Properties.PROPERTY_COLUMNAR_THRESHOLD).setValue("1000")
+            .setDescription("Cached responses and mirrored structures with at least this many objects are stored column by column, which uses much less memory (0 disables columnar storage)."),
+        new ConfigurableProperty(Properties.PROPERTY_CIRCUIT_FAILURE_RATE).setValue("50")
+            .setDescription("The percentage of failed or slow requests to a Harvest endpoint that stops requests being sent to it (0 disables the circuit breaker)."),
+        new ConfigurableProperty(Properties.PROPERTY_CIRCUIT_SLOW_CALL).setValue("10000")
+            .setDescription("Requests that take at least this long count as failed requests (0 only counts errors)."),
+        new ConfigurableProperty(Properties.PROPERTY_CIRCUIT_WINDOW).setValue("20")
+            .setDescription("The number of recent requests to each Harvest endpoint that the failure rate is calculated over."),
+        new ConfigurableProperty(Properties.PROPERTY_CIRCUIT_OPEN_DURATION).setValue("30000")
+            .setDescription("How long requests to a failing Harvest endpoint fail immediately before trial requests are sent."),
+        new ConfigurableProperty(Properties.PROPERTY_CIRCUIT_TRIAL_CALLS).setValue("3")
+            .setDescription("The number of trial requests that must succeed before requests are sent to the endpoint again."),
+        new ConfigurableProperty(Properties.PROPERTY_RATE_LIMIT).setValue("6")
+            .setDescription("The sustained number of requests per second made to Harvest (0 disables the limit)."),
+        new ConfigurableProperty(Properties.PROPERTY_RATE_LIMIT_BURST).setValue("10")
+            .setDescription("The number of requests that can be made at once before the rate limit applies."),
+        new ConfigurableProperty(Properties.PROPERTY_MAX_RETRIES).setValue("3")
+            .setDescription("How many times a throttled or failed request is retried."),
+        new ConfigurableProperty(Properties.PROPERTY_RETRY_BASE_DELAY).setValue("500")
+            .setDescription("The delay before the first retry, doubled (with jitter) for each later retry."),
+        new ConfigurableProperty(Properties.PROPERTY_RETRY_MAX_DELAY).setValue("30000")
+            .setDescription("The longest delay before a retry, including delays requested with Retry-After."),
+        new ConfigurableProperty(Properties.PROPERTY_MIRROR_STRUCTURES).setValue("")
+            .setDescription("A comma separated list of structures (Clients, Projects, Tasks or Users) to keep a local copy of and answer requests from."),
+        new ConfigurableProperty(Properties.PROPERTY_MIRROR_REFRESH_INTERVAL).setValue("300")
+            .setDescription("How often mirrored structures are refreshed with the objects updated since the last refresh."),
+        new ConfigurableProperty(Properties.PROPERTY_MIRROR_STRUCTURE_REFRESH_INTERVALS).setValue("")
+            .setDescription("Per structure refresh intervals in seconds that override the default, ie. Users=900"),
+        new ConfigurableProperty(Properties.PROPERTY_MIRROR_MAX_STALENESS).setValue("900")
+            .setDescription("Requests are sent to Harvest instead of the mirror if it has not been refreshed for this long."),
+        new ConfigurableProperty(Properties.PROPERTY_MIRROR_STRUCTURE_MAX_STALENESS).setValue("")
+            .setDescription("Per structure staleness bounds in seconds that override the default, ie. Users=3600"),
+        new ConfigurableProperty(Properties.PROPERTY_MIRROR_FULL_RELOAD_INTERVAL).setValue("3600")
+            .setDescription("How often mirrored structures are completely reloaded so that deleted objects are removed."),
+        new ConfigurableProperty(Properties.PROPERTY_FAN_OUT_THREADS).setValue("4")
+            .setDescription("The number of Entries sub-requests that are sent to Harvest in parallel."),
+        new ConfigurableProperty(Properties.PROPERTY_ENTRIES_WINDOW).setValue("31")
+            .setDescription("Entries date ranges are split into windows of this many days (0 does not split them)."),
+        new ConfigurableProperty(Properties.PROPERTY_RETRIEVE_BATCH_WINDOW).setValue("0")
+            .setDescription("Retrieves of the same cached or mirrored structure made within this long of each other are answered by listing the structure once (0 disables batching)."),
+        new ConfigurableProperty(Properties.PROPERTY_WARM_UP_MODE).setValue("Disabled")
+            .setDescription("Disabled, Background (initialization continues while warming up) or Blocking (initialization waits up to the warm-up deadline)."),
+        new ConfigurableProperty(Properties.PROPERTY_WARM_UP_STRUCTURES).setValue("")
+            .setDescription("A comma separated list of structures that are listed (and cached) when the adapter warms up, ie. Clients,Users"),
+        new ConfigurableProperty(Properties.PROPERTY_WARM_UP_DEADLINE).setValue("30000")
+            .setDescription("How long initialization waits for warm-up in the Blocking mode before it continues in the background."),
+        new ConfigurableProperty(Properties.PROPERTY_SNAPSHOT_FILE).setValue("")
+            .setDescription("A local file the cached responses and mirrored structures are saved to and restored from when the adapter is initialized (blank disables snapshots)."),
+        new ConfigurableProperty(Properties.PROPERTY_SNAPSHOT_INTERVAL).setValue("300")
+            .setDescription("How often the snapshot is written, as well as when the adapter is destroyed (0 only writes it then)."),
+        new ConfigurableProperty(Properties.PROPERTY_METRICS_ENABLED).setValue("false")
+            .setDescription("Records call counts and phase timings and publishes them as a JMX MBean (true or false)."),
+        new ConfigurableProperty(Properties.PROPERTY_METRICS_REGISTRY_CLASS).setValue("")
+            .setDescription("The name of a class implementing HarvestMetricsRegistry that is also sent every measurement when metrics are enabled.")
     );
 
     // Local variables to store the property values in
@@ -61,6 +215,25 @@ public class HarvestAdapter implements BridgeAdapter {
     private String password;
     private String harvestAccount;
     private String harvestEndpoint;
+    private String credentialKey;
+    private CloseableHttpClient client;
+    private boolean compressResponses;
+    private HarvestAsyncEngine asyncEngine;
+    private int callDeadlineMillis;
+    // The bridge call being made on each thread (null for requests made by the mirror)
+    private final ThreadLocal<Call> currentCall = new ThreadLocal<Call>();
+    private HarvestResponseCache cache;
+    private final HarvestRequestCoalescer coalescer = new HarvestRequestCoalescer();
+    private HarvestRateLimiter rateLimiter;
+    private HarvestRetryPolicy retryPolicy;
+    private HarvestCircuitBreaker circuitBreaker;
+    private HarvestMirror mirror;
+    private ExecutorService fanOutExecutor;
+    private int entriesWindow;
+    private HarvestRetrieveBatcher retrieveBatcher;
+    private HarvestWarmUp warmUp;
+    private HarvestSnapshot snapshot;
+    private HarvestMetrics metrics = HarvestMetrics.DISABLED;
 
     /*---------------------------------------------------------------------------------------------
      * SETUP METHODS
@@ -73,8 +246,148 @@ public class HarvestAdapter implements BridgeAdapter {
         this.username = properties.getValue(Properties.PROPERTY_USERNAME);
         this.password = properties.getValue(Properties.PROPERTY_PASSWORD);
 
-        this.harvestEndpoint = "https://" + properties.getValue(Properties.PROPERTY_HARVEST_ACCOUNT).replaceAll("/\\z", "")
-            + ".harvestapp.com";
+        String endpoint = properties.getValue(Properties.PROPERTY_HARVEST_ENDPOINT);
+        if (endpoint != null && !endpoint.trim().isEmpty()) {
+            this.harvestEndpoint = endpoint.trim().replaceAll("/\\z", "");
+        } else {
+            this.harvestEndpoint = "https://" + properties.getValue(Properties.PROPERTY_HARVEST_ACCOUNT).replaceAll("/\\z", "")
+                + ".harvestapp.com";
+        }
+
+        // Stop warming up with the previous configuration if the adapter is being re-initialized,
+        // and save what it has cached
+        stopWarmUp();
+        stopSnapshot();
+
+        // The metrics are needed to build the client, which times each request with them
+        this.metrics.unregister();
+        this.metrics = buildMetrics();
+
+        // Build the pooled HTTP client that is shared by every call made by this adapter.  If the
+        // adapter is being re-initialized the previous client is shut down first.
+        closeClient();
+        this.compressResponses = !"false".equalsIgnoreCase(
+            String.valueOf(properties.getValue(Properties.PROPERTY_COMPRESS_RESPONSES)).trim());
+        this.client = buildClient();
+
+        // In the Async execution mode requests are made with the non-blocking client instead
+        closeAsyncEngine();
+        String executionMode = properties.getValue(Properties.PROPERTY_EXECUTION_MODE);
+        if ("Async".equalsIgnoreCase(executionMode == null ? "" : executionMode.trim())) {
+            this.asyncEngine = buildAsyncEngine();
+        } else if (executionMode != null && !executionMode.trim().isEmpty()
+            && !"Blocking".equalsIgnoreCase(executionMode.trim()))
+        {
+            throw new BridgeError("The '"+Properties.PROPERTY_EXECUTION_MODE+"' property must be Blocking or Async, found: '"+executionMode+"'.");
+        }
+        this.callDeadlineMillis = getIntegerProperty(Properties.PROPERTY_CALL_DEADLINE, 60000);
+
+        // The cache key includes a fingerprint of the credentials rather than the password itself
+        this.credentialKey = this.username + ":" + DigestUtils.sha256Hex(String.valueOf(this.password));
+        this.cache = new HarvestResponseCache(
+            getIntegerProperty(Properties.PROPERTY_CACHE_MAX_ENTRIES, 500),
+            getIntegerProperty(Properties.PROPERTY_CACHE_TTL, 0) * 1000L,
+            getStructureSettings(Properties.PROPERTY_CACHE_STRUCTURE_TTLS, 1000L),
+            getIntegerProperty(Properties.PROPERTY_CACHE_STALE_IF_ERROR, 3600) * 1000L,
+            getIntegerProperty(Properties.PROPERTY_COLUMNAR_THRESHOLD, 1000));
+
+        // Every request made by the adapter shares the rate limit
+        this.rateLimiter = new HarvestRateLimiter(
+            getIntegerProperty(Properties.PROPERTY_RATE_LIMIT, 6),
+            getIntegerProperty(Properties.PROPERTY_RATE_LIMIT_BURST, 10));
+        this.retryPolicy = new HarvestRetryPolicy(
+            getIntegerProperty(Properties.PROPERTY_MAX_RETRIES, 3),
+            getIntegerProperty(Properties.PROPERTY_RETRY_BASE_DELAY, 500),
+            getIntegerProperty(Properties.PROPERTY_RETRY_MAX_DELAY, 30000));
+        this.circuitBreaker = new HarvestCircuitBreaker(
+            getIntegerProperty(Properties.PROPERTY_CIRCUIT_FAILURE_RATE, 50),
+            getIntegerProperty(Properties.PROPERTY_CIRCUIT_SLOW_CALL, 10000),
+            getIntegerProperty(Properties.PROPERTY_CIRCUIT_WINDOW, 20),
+            getIntegerProperty(Properties.PROPERTY_CIRCUIT_OPEN_DURATION, 30000),
+            getIntegerProperty(Properties.PROPERTY_CIRCUIT_TRIAL_CALLS, 3));
+
+        // Entries searches are split into sub-requests that run on a bounded set of threads
+        shutdownFanOut();
+        this.fanOutExecutor = Executors.newFixedThreadPool(
+            Math.max(1, getIntegerProperty(Properties.PROPERTY_FAN_OUT_THREADS, 4)), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Harvest Fan-out "+count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        this.entriesWindow = getIntegerProperty(Properties.PROPERTY_ENTRIES_WINDOW, 31);
+        this.retrieveBatcher = new HarvestRetrieveBatcher(getIntegerProperty(Properties.PROPERTY_RETRIEVE_BATCH_WINDOW, 0),
+            new HarvestRetrieveBatcher.Lister() {
+                @Override
+                public List<Map<String,Object>> list(String structure) throws BridgeError {
+                    return listRecords(structure, new LinkedHashMap<String,String>(), null);
+                }
+            });
+
+        // Restore the cache and mirror from the snapshot, then start loading any mirrored structures
+        // in the background (restored structures only load what changed since the snapshot)
+        stopMirror();
+        this.mirror = buildMirror();
+        String snapshotFile = properties.getValue(Properties.PROPERTY_SNAPSHOT_FILE);
+        if (snapshotFile != null && !snapshotFile.trim().isEmpty()) {
+            this.snapshot = new HarvestSnapshot(new File(snapshotFile.trim()),
+                this.credentialKey + " " + this.harvestEndpoint, this.credentialKey, this.cache, this.mirror);
+            this.snapshot.load();
+            this.snapshot.start(getIntegerProperty(Properties.PROPERTY_SNAPSHOT_INTERVAL, 300) * 1000L);
+        }
+        if (this.mirror != null) {
+            this.mirror.start();
+        }
+
+        HarvestWarmUp.Mode warmUpMode = HarvestWarmUp.parseMode(Properties.PROPERTY_WARM_UP_MODE,
+            properties.getValue(Properties.PROPERTY_WARM_UP_MODE));
+        this.warmUp = warmUpMode == HarvestWarmUp.Mode.DISABLED ? null : buildWarmUp();
+
+        // Report the statistics of the other components with the metrics
+        this.metrics.setSources(this.cache, this.coalescer, this.rateLimiter, this.retryPolicy,
+            this.circuitBreaker, this.retrieveBatcher, this.warmUp, this.snapshot, this.mirror);
+        this.metrics.register(this.username + "@" + this.harvestEndpoint);
+
+        // Open the connection pool and preload the warm-up structures before the first bridge calls
+        if (this.warmUp != null) {
+            this.warmUp.start();
+            if (warmUpMode == HarvestWarmUp.Mode.BLOCKING) {
+                this.warmUp.await(getIntegerProperty(Properties.PROPERTY_WARM_UP_DEADLINE, 30000));
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        stopWarmUp();
+        stopSnapshot();
+        if (this.cache != null) {
+            logger.debug("Response cache statistics: "+this.cache+", coalesced="+coalescer.getCoalesced()
+                + ", record bytes: "+this.cache.getRecordBytes());
+            logger.debug("Rate limit waits: "+rateLimiter.getWaits()+" ("+rateLimiter.getWaitMillis()+"ms), "
+                + "retries: "+retryPolicy.getRetries()+" ("+retryPolicy.getRetryWaitMillis()+"ms, max "
+                + retryPolicy.getMaxRetryWaitMillis()+"ms)");
+            logger.debug("Circuit breaker: "+circuitBreaker);
+            if (this.mirror != null) {
+                logger.debug("Mirror index bytes: "+this.mirror.getIndexBytes()+", record bytes: "
+                    + this.mirror.getRecordBytes());
+            }
+            if (this.metrics.isEnabled()) {
+                logger.debug("Metrics: "+this.metrics);
+            }
+            this.cache.clear();
+        }
+        this.metrics.unregister();
+
+        // Stop refreshing the mirror, then release the pooled connections and stop the idle
+        // connection evictor
+        stopMirror();
+        shutdownFanOut();
+        closeAsyncEngine();
+        closeClient();
     }
 
     @Override
@@ -105,11 +418,9 @@ public class HarvestAdapter implements BridgeAdapter {
 
     // Structures that are valid to use in the bridge. Used to check against
     // when a method is called to make sure that the Structure the user is
-    // attempting to call is valid
-    // TODO: should we add "Contacts", "Invoices", "Expenses", ,"Daily"(Time Enteries), "Projects"(Time Report), "Projects"(Expense Report)
-    public static final List<String> VALID_STRUCTURES = Arrays.asList(new String[] {
-        "Clients","Projects","Tasks","Task Assignments","Users","User Assignments"
-    });
+    // attempting to call is valid (see HarvestStructure for how each is requested)
+    // TODO: should we add "Daily"(Time Enteries), "Projects"(Time Report), "Projects"(Expense Report)
+    public static final List<String> VALID_STRUCTURES = HarvestStructure.NAMES;
 
     /*---------------------------------------------------------------------------------------------
      * IMPLEMENTATION METHODS
@@ -118,188 +429,286 @@ public class HarvestAdapter implements BridgeAdapter {
     @Override
     public Count count(BridgeRequest request) throws BridgeError {
         // Log the access
-        logger.trace("Counting records");
-        logger.trace("  Structure: " + request.getStructure());
-        logger.trace("  Query: " + request.getQuery());
+        if (logger.isTraceEnabled()) {
+            logger.trace("Counting records");
+            logger.trace("  Structure: " + request.getStructure());
+            logger.trace("  Query: " + request.getQuery());
+        }
 
         // Check if the inputted structure is valid
-        if (!VALID_STRUCTURES.contains(request.getStructure())) {
+        if (HarvestStructure.get(request.getStructure()) == null) {
             throw new BridgeError("Invalid Structure: '" + request.getStructure() + "' is not a valid structure");
         }
 
-        // Parse the query and exchange out any parameters with their parameter values
-        HarvestQualificationParser parser = new HarvestQualificationParser();
-        String query = parser.parse(request.getQuery(),request.getParameters());
-
-        // Retrieve the objects based on the structure from the source
-        String output = getResource(buildSearchUrl(request.getStructure(),query));
-        logger.trace("Count Output: "+output);
-
-        // Parse the response string into a JSONObject
-        JSONArray objects = (JSONArray)JSONValue.parse(output);
+        final String structure = request.getStructure();
+        long start = metrics.start();
+        boolean failed = true;
+        Call call = beginCall();
+        try {
+            // Parse the query and exchange out any parameters with their parameter values
+            long phaseStart = metrics.start();
+            HarvestQualificationParser parser = new HarvestQualificationParser();
+            String query = parser.parse(request.getQuery(),request.getParameters());
+            metrics.recordPhase(structure, HarvestMetrics.Phase.QUALIFICATION_PARSE, phaseStart);
 
-        // Get the number of elements in the returned array
-        Integer count = objects.size();
+            // Use a list of ids, the mirror or a cached search if possible, otherwise count the
+            // elements of the returned array as it is read without parsing them
+            List<Map<String,Object>> objects = searchIds(structure, query, null);
+            if (objects == null) {
+                objects = searchLocally(structure, query);
+            }
+            Integer count;
+            if (objects != null) {
+                count = objects.size();
+            } else if (HarvestStructure.get(structure).isDateRange()) {
+                // Count each of the sub-requests in parallel and add them up
+                List<Callable<Integer>> calls = new ArrayList<Callable<Integer>>();
+                for (final String rangeUrl : buildDateRangeUrls(structure, query)) {
+                    calls.add(new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws BridgeError {
+                            return countResource(structure, rangeUrl);
+                        }
+                    });
+                }
+                count = 0;
+                for (Integer rangeCount : fanOut(calls)) {
+                    count += rangeCount;
+                }
+            } else {
+                phaseStart = metrics.start();
+                String url = buildSearchUrl(structure,query);
+                metrics.recordPhase(structure, HarvestMetrics.Phase.URL_BUILD, phaseStart);
+                count = countResource(structure, url);
+            }
+            if (logger.isTraceEnabled()) {
+                logger.trace("Count Output: "+count);
+            }
 
-        // Create and return a count object that contains the count
-        return new Count(count);
+            // Create and return a count object that contains the count
+            failed = false;
+            return call.isStale() ? new Count(count, staleMetadata()) : new Count(count);
+        } finally {
+            endCall();
+            metrics.recordCall(structure, HarvestMetrics.Operation.COUNT, start, failed);
+        }
     }
 
     @Override
     public Record retrieve(BridgeRequest request) throws BridgeError {
         // Log the access
-        logger.trace("Retrieving Kinetic Request CE Record");
-        logger.trace("  Structure: " + request.getStructure());
-        logger.trace("  Query: " + request.getQuery());
-        logger.trace("  Fields: " + request.getFieldString());
+        if (logger.isTraceEnabled()) {
+            logger.trace("Retrieving Kinetic Request CE Record");
+            logger.trace("  Structure: " + request.getStructure());
+            logger.trace("  Query: " + request.getQuery());
+            logger.trace("  Fields: " + request.getFieldString());
+        }
 
         // Check if the inputted structure is valid
-        if (!VALID_STRUCTURES.contains(request.getStructure())) {
+        if (HarvestStructure.get(request.getStructure()) == null) {
             throw new BridgeError("Invalid Structure: '" + request.getStructure() + "' is not a valid structure");
         }
 
-        // Parse the query and exchange out any parameters with their parameter values
-        HarvestQualificationParser parser = new HarvestQualificationParser();
-        String query = parser.parse(request.getQuery(),request.getParameters());
-
-        // Retrieve the objects based on the structure from the source
-        String output = getResource(buildRetrieveUrl(request.getStructure(),query));
-        logger.trace("Retrieve Output: "+output);
-
-        // Parse the response string into a JSONObject
-        JSONObject object = (JSONObject)JSONValue.parse(output);
-
-        List<String> fields = request.getFields();
-        if (fields == null) {
-            fields = new ArrayList();
-        }
+        String structure = request.getStructure();
+        long start = metrics.start();
+        boolean failed = true;
+        Call call = beginCall();
+        try {
+            // Parse the query and exchange out any parameters with their parameter values
+            long phaseStart = metrics.start();
+            HarvestQualificationParser parser = new HarvestQualificationParser();
+            String query = parser.parse(request.getQuery(),request.getParameters());
+            metrics.recordPhase(structure, HarvestMetrics.Phase.QUALIFICATION_PARSE, phaseStart);
 
-        // If no keys where provided to the search then we return all properties
-        JSONObject obj = (JSONObject)(object).get(getPropertyName(object));
-        if(fields.isEmpty()){
-            fields.addAll(obj.keySet());
-        }
+            // Retrieve the object based on the structure from the mirror or the source
+            phaseStart = metrics.start();
+            String url = buildRetrieveUrl(structure,query);
+            metrics.recordPhase(structure, HarvestMetrics.Phase.URL_BUILD, phaseStart);
+            List<Map<String,Object>> objects = retrieveLocally(structure, query);
+            if (objects == null) {
+                objects = retrieveBatched(structure, query);
+            }
+            if (objects == null) {
+                objects = getRecords(structure, url, true, request.getFields());
+            }
+            Map<String,Object> obj = objects.isEmpty() ? null : objects.get(0);
 
-        // If specific fields were specified then we remove all of the nonspecified properties from the object.
-        Set<Object> removeKeySet = new HashSet<Object>();
-        for(Object key: obj.keySet()){
-            if(fields.contains(key)){
-                continue;
-            }else{
-                logger.trace("Remove Key: "+key);
-                removeKeySet.add(key);
+            // Create a Record object from the responce object
+            phaseStart = metrics.start();
+            Record record;
+            if (obj != null) {
+                // If no keys where provided to the retrieve then we return all properties, otherwise
+                // only the specified properties are copied into the record
+                record = new Record(project(obj, request.getFields()));
+            } else {
+                record = new Record();
             }
-        }
-        obj.keySet().removeAll(removeKeySet);
+            if (call.isStale()) {
+                record.setMetadata(staleMetadata());
+            }
+            metrics.recordPhase(structure, HarvestMetrics.Phase.RECORD_BUILD, phaseStart);
 
-        // Create a Record object from the responce JSONObject
-        Record record;
-        if (obj != null) {
-            record = new Record(obj);
-        } else {
-            record = new Record();
+            // Return the created Record object
+            failed = false;
+            return record;
+        } finally {
+            endCall();
+            metrics.recordCall(structure, HarvestMetrics.Operation.RETRIEVE, start, failed);
         }
-
-        // Return the created Record object
-        return record;
     }
 
     @Override
     public RecordList search(BridgeRequest request) throws BridgeError {
         // Log the access
-        logger.trace("Searching Records");
-        logger.trace("  Structure: " + request.getStructure());
-        logger.trace("  Query: " + request.getQuery());
-        logger.trace("  Fields: " + request.getFieldString());
+        if (logger.isTraceEnabled()) {
+            logger.trace("Searching Records");
+            logger.trace("  Structure: " + request.getStructure());
+            logger.trace("  Query: " + request.getQuery());
+            logger.trace("  Fields: " + request.getFieldString());
+        }
 
         // Check if the inputted structure is valid
-        if (!VALID_STRUCTURES.contains(request.getStructure())) {
+        if (HarvestStructure.get(request.getStructure()) == null) {
             throw new BridgeError("Invalid Structure: '" + request.getStructure() + "' is not a valid structure");
         }
 
-        // Parse the query and exchange out any parameters with their parameter values
-        HarvestQualificationParser parser = new HarvestQualificationParser();
-        String query = parser.parse(request.getQuery(),request.getParameters());
-
-        // Retrieve the objects based on the structure from the source
-        String output = getResource(buildSearchUrl(request.getStructure(),query));
-        logger.trace("Search Output: "+output);
-
-        // Parse the response string into a JSONObject
-        JSONArray objects = (JSONArray)JSONValue.parse(output);
-
-        // Create a List of records that will be used to make a RecordList object
-        List<Record> recordList = new ArrayList<Record>();
+        String structure = request.getStructure();
+        long start = metrics.start();
+        boolean failed = true;
+        Call call = beginCall();
+        try {
+            // Parse the query and exchange out any parameters with their parameter values
+            long phaseStart = metrics.start();
+            HarvestQualificationParser parser = new HarvestQualificationParser();
+            String query = parser.parse(request.getQuery(),request.getParameters());
+            metrics.recordPhase(structure, HarvestMetrics.Phase.QUALIFICATION_PARSE, phaseStart);
 
-        // If the user doesn't enter any values for fields we return all of the fields
-        List<String> fields = request.getFields();
-        if (fields == null) {
-            fields = new ArrayList();
-        }
+            // Determine the requested page and order
+            Map<String,String> metadata = BridgeUtils.normalizePaginationMetadata(
+                request.getMetadata() == null ? new HashMap<String,String>() : request.getMetadata());
+            int pageSize;
+            int offset;
+            try {
+                pageSize = Integer.parseInt(metadata.get("pageSize"));
+                offset = Integer.parseInt(metadata.get("offset"));
+            } catch (NumberFormatException e) {
+                throw new BridgeError("The pageSize and offset must be whole numbers, found: pageSize="
+                    +metadata.get("pageSize")+", offset="+metadata.get("offset")+".");
+            }
+            if (pageSize < 0 || offset < 0) {
+                throw new BridgeError("The pageSize and offset must not be negative, found: pageSize="
+                    +pageSize+", offset="+offset+".");
+            }
+            String orderString = request.getMetadata("order");
+            Map<String,String> order = orderString == null || orderString.trim().isEmpty()
+                ? new HashMap<String,String>() : BridgeUtils.parseOrder(orderString);
 
-        if(objects.isEmpty() != true){
-            String propertyName = "";
-            JSONObject firstObj = (JSONObject)objects.get(0);
+            // If the user doesn't enter any values for fields we return all of the fields
+            List<String> fields = request.getFields();
+            if (fields == null) {
+                fields = new ArrayList<String>();
+            }
+            // The fields being ordered by need to be read even if they aren't returned
+            List<String> readFields = fields;
+            if (!fields.isEmpty() && !fields.containsAll(order.keySet())) {
+                readFields = new ArrayList<String>(fields);
+                readFields.addAll(order.keySet());
+            }
 
-            propertyName = getPropertyName(firstObj);
+            // Retrieve the objects based on the structure from the mirror, the cache or the source
+            List<Map<String,Object>> objects = searchIds(structure, query, readFields);
+            if (objects == null) {
+                objects = searchLocally(structure, query);
+            }
+            if (objects == null) {
+                if (HarvestStructure.get(structure).isDateRange()) {
+                    objects = searchDateRange(structure, query, readFields);
+                } else {
+                    phaseStart = metrics.start();
+                    String url = buildSearchUrl(structure,query);
+                    metrics.recordPhase(structure, HarvestMetrics.Phase.URL_BUILD, phaseStart);
+                    objects = getRecords(structure, url, false, readFields);
+                }
+            }
 
             // If no keys where provided to the search then we return all properties
-            if(fields.isEmpty()){
-                JSONObject keysObj = (JSONObject)(firstObj).get(propertyName);
-                fields.addAll(keysObj.keySet());
+            if(fields.isEmpty() && !objects.isEmpty() && objects.get(0) != null){
+                fields.addAll(objects.get(0).keySet());
             }
 
-            // Iterate through the responce objects and make a new Record for each.
-            for (Object o : objects) {
-                JSONObject object = (JSONObject)((JSONObject)o).get(propertyName);
+            // Order the objects (only as far as the end of the page) and select the requested page
+            phaseStart = metrics.start();
+            List<Map<String,Object>> page = HarvestRecordOrder.page(objects,
+                order.isEmpty() ? null : new HarvestRecordOrder(order), offset, pageSize);
+
+            // Iterate through the page of responce objects and make a new Record for each.
+            List<Record> recordList = new ArrayList<Record>(page.size());
+            for (Map<String,Object> object : page) {
                 Record record;
                 if (object != null) {
-                    record = new Record(object);
+                    record = new Record(project(object, fields));
                 } else {
                     record = new Record();
                 }
                 // Add the created record to the list of records
                 recordList.add(record);
             }
-        }
+            metrics.recordPhase(structure, HarvestMetrics.Phase.RECORD_BUILD, phaseStart);
 
-        // Return the RecordList object
-        return new RecordList(fields, recordList);
+            // Describe the returned page so Bridgehub can request the next one
+            Map<String,String> resultMetadata = new LinkedHashMap<String,String>();
+            resultMetadata.put("pageSize", String.valueOf(pageSize));
+            if (metadata.get("pageNumber") != null) {
+                resultMetadata.put("pageNumber", metadata.get("pageNumber"));
+            }
+            resultMetadata.put("offset", String.valueOf(offset));
+            resultMetadata.put("size", String.valueOf(recordList.size()));
+            resultMetadata.put("count", String.valueOf(objects.size()));
+            if (pageSize > 0 && (long)offset + pageSize < objects.size()) {
+                resultMetadata.put("nextPageToken", String.valueOf(offset + pageSize));
+            }
+            if (call.isStale()) {
+                resultMetadata.putAll(staleMetadata());
+            }
+
+            // Return the RecordList object
+            failed = false;
+            return new RecordList(fields, recordList, resultMetadata);
+        } finally {
+            endCall();
+            metrics.recordCall(structure, HarvestMetrics.Operation.SEARCH, start, failed);
+        }
     }
 
     /*----------------------------------------------------------------------------------------------
      * HELPER METHODS
      *--------------------------------------------------------------------------------------------*/
 
-    // Escape query helper method that is used to escape queries that have spaces
-    // and other characters that need escaping to form a complete URL
-    private String escapeQuery(Map<String,String> queryMap) {
-        Object[] keyList =  queryMap.keySet().toArray();
-        String queryStr = "";
-        for (Object key: keyList) {
-            String keyStr = key.toString().trim().replaceAll(" ","+");
-            String value = queryMap.get(key);
-            queryStr += keyStr+"="+URLEncoder.encode(value)+"&";
-        }
-        logger.trace("Query String: "+queryStr);
-        return queryStr;
-    }
-
-    // Build a map of queries from the request.  Some of the queries will be used to build the url and some will get passed on to harvest.
+    // Build a map of queries from the request.  Some of the queries will be used to build the url
+    // and some will get passed on to harvest.
     private Map<String,String> getQueryMap(String query) throws BridgeError {
-        Map<String,String> queryMap = new HashMap<String,String>();
+        Map<String,String> queryMap = new LinkedHashMap<String,String>();
         if (query != null && !query.isEmpty()) {
-            String[] qSplit = query.split("&");
-            for (int i=0;i<qSplit.length;i++) {
-                String qPart = qSplit[i];
-                String[] keyValuePair = qPart.split("=");
-                String key = keyValuePair[0].trim();
-                if(queryMap.containsKey(key)){
-                  throw new BridgeError("A query can only contain one "+key+" parameter.");
+            int start = 0;
+            while (start <= query.length()) {
+                int end = query.indexOf('&', start);
+                if (end < 0) {
+                    end = query.length();
+                }
+                if (end > start) {
+                    int equals = query.indexOf('=', start);
+                    boolean hasValue = equals >= 0 && equals < end;
+                    String key = query.substring(start, hasValue ? equals : end).trim();
+                    if(queryMap.containsKey(key)){
+                        throw new BridgeError("A query can only contain one "+key+" parameter.");
+                    }
+                    String value = hasValue ? query.substring(equals + 1, end).trim() : "";
+                    if (logger.isTraceEnabled()) {
+                        logger.trace("Query Map Key: "+key+" Value: "+value);
+                    }
+                    queryMap.put(key,value);
                 }
-                String value = keyValuePair.length > 1 ? keyValuePair[1].trim() : "";
-                logger.trace("Query Map Key: "+key+" Value: "+value);
-                queryMap.put(key,value);
+                start = end + 1;
             }
         }
         return queryMap;
@@ -307,117 +716,789 @@ public class HarvestAdapter implements BridgeAdapter {
 
     // Each Structure requires it's own specific url and some require that a query parameter be passed in.
     private String buildSearchUrl(String structure, String query) throws BridgeError{
-        Map<String,String> queryMap = getQueryMap(query);
-        String url = this.harvestEndpoint;
-        if(structure.equals("Clients")){
-            url += "/clients";
-        }else if(structure.equals("Projects")){
-            url += "/projects";
-        }else if(structure.equals("Tasks")){
-            url += "/tasks";
-        }else if(structure.equals("Task Assignments")){
-            if(queryMap.containsKey("project_id")){
-                url += "/projects/"+queryMap.get("project_id")+"/task_assignments";
-                queryMap.remove("project_id");
-            }else{
-                throw new BridgeError("A project_id is required for the Task Assignmenets structure");
-            }
-        }else if(structure.equals("Entries")){
-            if(queryMap.containsKey("project_id") && queryMap.containsKey("user_id")){
-                throw new BridgeError("A project_id or user_id can be provieded but not both");
-            }else if(queryMap.containsKey("project_id") || queryMap.containsKey("user_id")){
-                if(queryMap.containsKey("from") && queryMap.containsKey("to")){
-                    if(queryMap.containsKey("project_id")){
-                        url += "/projects/"+queryMap.get("project_id")+"/entries";
-                        queryMap.remove("project_id");
-                    }else if( queryMap.containsKey("project_id")){
-                        url += "/people/"+queryMap.get("user_id")+"/entries";
-                        queryMap.remove("user_id");
+        String url = HarvestStructure.get(structure).buildListUrl(this.harvestEndpoint, getQueryMap(query));
+        if (logger.isTraceEnabled()) {
+            logger.trace("Search url: "+url);
+        }
+        return url;
+    }
+
+    // Each Structure requires it's own specific url and some require that a query parameter be passed in.
+    private String buildRetrieveUrl(String structure, String query) throws BridgeError{
+        String url = HarvestStructure.get(structure).buildRetrieveUrl(this.harvestEndpoint, getQueryMap(query));
+        if (logger.isTraceEnabled()) {
+            logger.trace("Retrieve url: "+url);
+        }
+        return url;
+    }
+
+    // Retrieves the unwrapped objects at the url.  Responses are served from the response cache
+    // when possible and cached after they are retrieved from Harvest.  Identical requests that are
+    // already in flight are shared rather than repeated.  The returned objects may be shared with
+    // other callers, so they must not be modified (records are built from copies).  If the response
+    // isn't cached only the requested fields are read from the response (all fields are read when
+    // none are given).  An expired cached response is revalidated with a conditional request, and
+    // reused without being downloaded or parsed again if Harvest responds that it is not modified.
+    // If Harvest is unavailable the last cached response is served instead (marked as stale).
+    private List<Map<String,Object>> getRecords(final String structure, final String url,
+        final boolean single, List<String> fields) throws BridgeError
+    {
+        final boolean cacheable = cache.isEnabled(structure);
+        List<Map<String,Object>> objects = getCachedRecords(structure, url);
+        if (objects == null) {
+            // Cached responses need every field because later requests may ask for other fields
+            final Set<String> projection = cacheable || fields == null || fields.isEmpty()
+                ? null : new TreeSet<String>(fields);
+
+            String key = (single ? "retrieve " : "search ") + projection + " "
+                + HarvestResponseCache.key(url, this.credentialKey);
+            try {
+                objects = fetchRecords(key, structure, url, single, cacheable, projection);
+            } catch (HarvestUnavailableError e) {
+                objects = getStaleRecords(structure, url, e);
+            }
+        }
+        return objects;
+    }
+
+    // Retrieves the objects at the url from Harvest (sharing the request with identical requests
+    // that are in flight) and caches them
+    private List<Map<String,Object>> fetchRecords(String key, final String structure, final String url,
+        final boolean single, final boolean cacheable, final Set<String> projection) throws BridgeError
+    {
+        return coalescer.execute(key, getCallDeadline(), new Callable<List<Map<String,Object>>>() {
+            @Override
+            public List<Map<String,Object>> call() throws BridgeError {
+                String cacheKey = HarvestResponseCache.key(url, credentialKey);
+                final HarvestResponseCache.CachedResponse expired = cacheable ? cache.getExpired(cacheKey) : null;
+                // The ETag and Last-Modified headers of the response
+                final String[] validators = new String[2];
+
+                // Parse the response as it is read and remove the envelope from each object
+                List<Map<String,Object>> result = getResource(structure, url, expired,
+                    new ResponseReader<List<Map<String,Object>>>() {
+                        @Override
+                        public List<Map<String,Object>> read(HttpResponse response, HttpEntity entity)
+                            throws IOException, BridgeError
+                        {
+                            validators[0] = getHeaderValue(response, "ETag");
+                            validators[1] = getHeaderValue(response, "Last-Modified");
+                            if (entity == null) {
+                                // Not modified, so the expired records are still current
+                                return expired.getRecords();
+                            }
+                            return HarvestJsonReader.read(getReader(entity), !single,
+                                HarvestStructure.get(structure).getEnvelope(), projection);
+                        }
+                    });
+                if (expired != null && result == expired.getRecords()) {
+                    if (logger.isTraceEnabled()) {
+                        logger.trace("Revalidated the cached response for "+url);
                     }
-                }else{
-                    throw new BridgeError("A date range must be provided with the format of from=YYYYMMDD&to=YYYYMMDD");
+                    cache.revalidate(cacheKey, expired, validators[0], validators[1]);
+                    return result;
                 }
-            }else{
-                throw new BridgeError("A project_id or user_id is required for the Entries structure");
+                if (logger.isTraceEnabled()) {
+                    logger.trace("Read "+result.size()+" objects from "+url);
+                }
+                if (cacheable) {
+                    cache.put(cacheKey, structure, result, validators[0], validators[1]);
+                }
+                return result;
             }
-        }else if(structure.equals("Users")){
-            url += "/people";
-        }else{ // This option is for the User Assignments Structure
-            if(queryMap.containsKey("project_id")){
-                url += "/projects/"+queryMap.get("project_id")+"/user_assignments";
-                queryMap.remove("project_id");
-            }else{
-                throw new BridgeError("A project_id is required for the User Assignmenets structure");
+        });
+    }
+
+    // Returns the last response cached for the url in place of the response that Harvest failed to
+    // return, and marks the bridge call as stale.  If there isn't one the error is rethrown.
+    private List<Map<String,Object>> getStaleRecords(String structure, String url, HarvestUnavailableError error)
+        throws BridgeError
+    {
+        HarvestResponseCache.CachedResponse stale = cache.isEnabled(structure)
+            ? cache.getStale(HarvestResponseCache.key(url, this.credentialKey)) : null;
+        if (stale == null) {
+            throw error;
+        }
+        logger.warn("Serving the cached response for "+url+" because Harvest is unavailable: "+error.getMessage());
+        Call call = currentCall.get();
+        if (call != null) {
+            call.markStale();
+        }
+        return stale.getRecords();
+    }
+
+    // Returns the locally held objects matching the query, or null if they can't answer it.  The
+    // conditions are evaluated against the mirror if the structure is mirrored, otherwise against a
+    // cached unfiltered list of the structure (if there is one).  The cached list of a paged
+    // structure is only its first page, so it can't answer conditions.
+    private List<Map<String,Object>> searchLocally(String structure, String query) throws BridgeError {
+        return searchLocally(structure, getQueryMap(query));
+    }
+
+    private List<Map<String,Object>> searchLocally(String structure, Map<String,String> conditions) {
+        List<Map<String,Object>> objects = mirror == null ? null : mirror.search(structure, conditions);
+        if (objects == null && !conditions.isEmpty() && cache.isEnabled(structure)
+            && !HarvestStructure.get(structure).isPaged())
+        {
+            String listUrl;
+            try {
+                listUrl = HarvestStructure.get(structure).buildListUrl(this.harvestEndpoint, new LinkedHashMap<String,String>());
+            } catch (BridgeError e) {
+                // The structure can't be listed without a query (ie. Task Assignments)
+                return null;
             }
+            objects = cache.select(HarvestResponseCache.key(listUrl, this.credentialKey), conditions);
         }
-        if(!queryMap.isEmpty()){
-            url += "?"+escapeQuery(queryMap);
+        return objects;
+    }
+
+    // Returns the locally held object identified by the query, or null if it isn't held locally.  The
+    // object is looked for in the mirror if the structure is mirrored, otherwise in a cached
+    // unfiltered list of the structure (if there is one).  An object that isn't held locally may
+    // have been created since it was listed, so Harvest is asked.
+    private List<Map<String,Object>> retrieveLocally(String structure, String query) throws BridgeError {
+        Map<String,String> conditions = getQueryMap(query);
+        List<Map<String,Object>> objects = mirror == null ? null : mirror.retrieve(structure, conditions);
+        String id = getBatchableId(structure, conditions);
+        if ((objects == null || objects.isEmpty()) && id != null && cache.isEnabled(structure)) {
+            String listUrl = HarvestStructure.get(structure).buildListUrl(this.harvestEndpoint, new LinkedHashMap<String,String>());
+            objects = cache.select(HarvestResponseCache.key(listUrl, this.credentialKey), Collections.singletonMap("id", id));
         }
-        logger.trace("Search url: "+url);
-        return url;
+        return objects == null || objects.isEmpty() ? null : objects;
     }
 
-    // Each Structure requires it's own specific url and some require that a query parameter be passed in.
-    private String buildRetrieveUrl(String structure, String query) throws BridgeError{
+    // Returns the object identified by the query from a list of the structure shared with other
+    // retrieves made at the same time, or null if the retrieve wasn't batched (see
+    // HarvestRetrieveBatcher).  Retrieves are only batched if the list is kept (cached or mirrored),
+    // otherwise every batch would download the whole list to save a few requests.
+    private List<Map<String,Object>> retrieveBatched(String structure, String query) throws BridgeError {
+        String id = retrieveBatcher.isEnabled() && isHeldLocally(structure)
+            ? getBatchableId(structure, getQueryMap(query)) : null;
+        Map<String,Object> object = id == null ? null : retrieveBatcher.retrieve(structure, id, getCallDeadline());
+        return object == null ? null : Collections.singletonList(object);
+    }
+
+    // Returns true if lists of the structure are cached or mirrored
+    private boolean isHeldLocally(String structure) {
+        return cache.isEnabled(structure) || (mirror != null && mirror.contains(structure));
+    }
+
+    // Returns the id of a retrieve that only identifies one object of a structure that can be found
+    // in the structure's list (ie. client_id=1), otherwise null
+    private String getBatchableId(String structure, Map<String,String> conditions) {
+        HarvestStructure definition = HarvestStructure.get(structure);
+        if (!definition.isBatchable() || conditions.size() != 1) {
+            return null;
+        }
+        String id = conditions.get(definition.getIdKey());
+        return id == null || id.indexOf(',') >= 0 ? null : id;
+    }
+
+    // Answers a query that lists several comma separated ids of the structure (ie. client_id=1,2,3)
+    // from one list of the structure, or returns null if it isn't such a query.  The objects are
+    // returned in the order of the ids, and ids that aren't listed are left out.  Any other
+    // parameters of the query are applied to the list.
+    private List<Map<String,Object>> searchIds(String structure, String query, List<String> fields)
+        throws BridgeError
+    {
+        HarvestStructure definition = HarvestStructure.get(structure);
+        if (!definition.isBatchable() || query == null || query.indexOf(',') < 0) {
+            return null;
+        }
+        Map<String,String> conditions = getQueryMap(query);
+        String idList = conditions.remove(definition.getIdKey());
+        if (idList == null || idList.indexOf(',') < 0) {
+            return null;
+        }
+        Set<String> ids = new LinkedHashSet<String>();
+        for (String id : idList.split(",")) {
+            if (!id.trim().isEmpty()) {
+                ids.add(id.trim());
+            }
+        }
+
+        // The ids are needed to select the objects even if they weren't asked for
+        List<String> readFields = fields;
+        if (fields != null && !fields.isEmpty() && !fields.contains("id")) {
+            readFields = new ArrayList<String>(fields);
+            readFields.add("id");
+        }
+        Map<String,Map<String,Object>> selected = HarvestRetrieveBatcher.selectIds(
+            listRecords(structure, conditions, readFields), ids);
+        List<Map<String,Object>> objects = new ArrayList<Map<String,Object>>(selected.size());
+        for (String id : ids) {
+            if (selected.containsKey(id)) {
+                objects.add(selected.get(id));
+            }
+        }
+        return objects;
+    }
+
+    // Returns the objects of the structure that match the conditions from the mirror, a cached list
+    // or Harvest
+    private List<Map<String,Object>> listRecords(String structure, Map<String,String> conditions,
+        List<String> fields) throws BridgeError
+    {
+        List<Map<String,Object>> objects = searchLocally(structure, conditions);
+        if (objects == null) {
+            String url = HarvestStructure.get(structure).buildListUrl(this.harvestEndpoint,
+                new LinkedHashMap<String,String>(conditions));
+            objects = getRecords(structure, url, false, fields);
+        }
+        return objects;
+    }
+
+    // Builds the mirror of the configured structures, or returns null if nothing is mirrored
+    private HarvestMirror buildMirror() throws BridgeError {
+        long refreshInterval = getIntegerProperty(Properties.PROPERTY_MIRROR_REFRESH_INTERVAL, 300) * 1000L;
+        long maxStaleness = getIntegerProperty(Properties.PROPERTY_MIRROR_MAX_STALENESS, 900) * 1000L;
+        Map<String,Long> refreshIntervals = getStructureSettings(Properties.PROPERTY_MIRROR_STRUCTURE_REFRESH_INTERVALS, 1000L);
+        Map<String,Long> maxStalenesses = getStructureSettings(Properties.PROPERTY_MIRROR_STRUCTURE_MAX_STALENESS, 1000L);
+
+        HarvestMirror result = new HarvestMirror(new HarvestMirror.Loader() {
+            @Override
+            public List<Map<String,Object>> load(final String structure, String updatedSince) throws BridgeError {
+                String query = updatedSince == null ? "" : "updated_since="+updatedSince;
+                return getResource(structure, buildSearchUrl(structure, query), new ResponseReader<List<Map<String,Object>>>() {
+                    @Override
+                    public List<Map<String,Object>> read(HttpResponse response, HttpEntity entity)
+                        throws IOException, BridgeError
+                    {
+                        return HarvestJsonReader.read(getReader(entity), true,
+                            HarvestStructure.get(structure).getEnvelope(), null);
+                    }
+                });
+            }
+        }, getIntegerProperty(Properties.PROPERTY_MIRROR_FULL_RELOAD_INTERVAL, 3600) * 1000L,
+            getIntegerProperty(Properties.PROPERTY_COLUMNAR_THRESHOLD, 1000));
+
+        String structures = properties.getValue(Properties.PROPERTY_MIRROR_STRUCTURES);
+        if (structures != null) {
+            for (String structure : structures.split(",")) {
+                structure = structure.trim();
+                if (!structure.isEmpty()) {
+                    result.addStructure(structure,
+                        refreshIntervals.containsKey(structure) ? refreshIntervals.get(structure) : refreshInterval,
+                        maxStalenesses.containsKey(structure) ? maxStalenesses.get(structure) : maxStaleness);
+                }
+            }
+        }
+        return result.isEmpty() ? null : result;
+    }
+
+    // Builds the warm-up from the warm-up properties.  Warm-up validates the credentials with the
+    // who_am_i request and lists the configured structures (through the mirror and cache).
+    private HarvestWarmUp buildWarmUp() throws BridgeError {
+        List<String> structures = new ArrayList<String>();
+        String value = properties.getValue(Properties.PROPERTY_WARM_UP_STRUCTURES);
+        if (value != null) {
+            for (String structure : value.split(",")) {
+                structure = structure.trim();
+                if (structure.isEmpty()) {
+                    continue;
+                }
+                HarvestStructure definition = HarvestStructure.get(structure);
+                try {
+                    if (definition == null || definition.isDateRange()) {
+                        throw new BridgeError("The "+structure+" structure can not be listed.");
+                    }
+                    definition.buildListUrl(this.harvestEndpoint, new LinkedHashMap<String,String>());
+                } catch (BridgeError e) {
+                    throw new BridgeError("The '"+Properties.PROPERTY_WARM_UP_STRUCTURES+"' property contains a structure "
+                        + "that can't be listed without a query: '"+structure+"'.");
+                }
+                structures.add(structure);
+            }
+        }
+        return new HarvestWarmUp(structures, new HarvestWarmUp.Steps() {
+            @Override
+            public void validateCredentials() throws BridgeError {
+                getResource("Account", harvestEndpoint+"/account/who_am_i", new ResponseReader<Void>() {
+                    @Override
+                    public Void read(HttpResponse response, HttpEntity entity) throws IOException {
+                        EntityUtils.consume(entity);
+                        return null;
+                    }
+                });
+            }
+
+            @Override
+            public int preload(String structure) throws BridgeError {
+                return listRecords(structure, new LinkedHashMap<String,String>(), null).size();
+            }
+        });
+    }
+
+    // Stops writing the snapshot periodically and writes it one last time
+    private void stopSnapshot() {
+        if (this.snapshot != null) {
+            this.snapshot.stop();
+            this.snapshot.writeQuietly();
+            logger.debug("Snapshot: "+this.snapshot);
+            this.snapshot = null;
+        }
+    }
+
+    private void stopWarmUp() {
+        if (this.warmUp != null) {
+            this.warmUp.stop();
+            this.warmUp = null;
+        }
+    }
+
+    // Builds the metrics from the metrics properties, instantiating the registry class if there is one
+    private HarvestMetrics buildMetrics() throws BridgeError {
+        if (!"true".equalsIgnoreCase(String.valueOf(properties.getValue(Properties.PROPERTY_METRICS_ENABLED)).trim())) {
+            return HarvestMetrics.DISABLED;
+        }
+        HarvestMetricsRegistry registry = null;
+        String registryClass = properties.getValue(Properties.PROPERTY_METRICS_REGISTRY_CLASS);
+        if (registryClass != null && !registryClass.trim().isEmpty()) {
+            try {
+                registry = Class.forName(registryClass.trim()).asSubclass(HarvestMetricsRegistry.class)
+                    .getDeclaredConstructor().newInstance();
+            } catch (Exception e) {
+                throw new BridgeError("Unable to create the metrics registry '"+registryClass.trim()+"'.", e);
+            }
+        }
+        return new HarvestMetrics(true, registry);
+    }
+
+    private void stopMirror() {
+        if (this.mirror != null) {
+            this.mirror.stop();
+            this.mirror = null;
+        }
+    }
+
+    // Counts the objects at the url, using a cached search of the same url if there is one.
+    // Otherwise the elements of the returned array are counted as it is read without parsing them
+    // (or, if Harvest is unavailable, the stale cached search is counted).
+    private Integer countResource(final String structure, final String url) throws BridgeError {
+        List<Map<String,Object>> objects = getCachedRecords(structure, url);
+        if (objects != null) {
+            return objects.size();
+        }
+        try {
+            return coalescer.execute("count " + HarvestResponseCache.key(url, this.credentialKey), getCallDeadline(),
+                new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws BridgeError {
+                        return getResource(structure, url, new ResponseReader<Integer>() {
+                            @Override
+                            public Integer read(HttpResponse response, HttpEntity entity) throws IOException, BridgeError {
+                                return HarvestJsonReader.count(entity.getContent());
+                            }
+                        });
+                    }
+                });
+        } catch (HarvestUnavailableError e) {
+            return getStaleRecords(structure, url, e).size();
+        }
+    }
+
+    // Searches a date range structure (ie. Entries) for every requested project or user over the
+    // whole date range by running the sub-requests in parallel.  The results are merged in the order
+    // of the sub-requests (the order the ids were given in, then by date).
+    private List<Map<String,Object>> searchDateRange(final String structure, String query, final List<String> fields)
+        throws BridgeError
+    {
+        List<Callable<List<Map<String,Object>>>> calls = new ArrayList<Callable<List<Map<String,Object>>>>();
+        for (final String rangeUrl : buildDateRangeUrls(structure, query)) {
+            calls.add(new Callable<List<Map<String,Object>>>() {
+                @Override
+                public List<Map<String,Object>> call() throws BridgeError {
+                    return getRecords(structure, rangeUrl, false, fields);
+                }
+            });
+        }
+        List<Map<String,Object>> objects = new ArrayList<Map<String,Object>>();
+        for (List<Map<String,Object>> result : fanOut(calls)) {
+            objects.addAll(result);
+        }
+        return objects;
+    }
+
+    // Runs the calls on the fan-out executor and returns their results in the same order.  Every
+    // call still waits for the shared rate limit and has the deadline of the bridge call.  If any
+    // call fails the others are cancelled.
+    private <T> List<T> fanOut(List<Callable<T>> calls) throws BridgeError {
+        List<T> results = new ArrayList<T>(calls.size());
+        if (calls.size() == 1) {
+            try {
+                results.add(calls.get(0).call());
+            } catch (BridgeError e) {
+                throw e;
+            } catch (Exception e) {
+                throw new BridgeError(e);
+            }
+            return results;
+        }
+        List<Future<T>> futures = new ArrayList<Future<T>>(calls.size());
+        try {
+            for (Callable<T> call : calls) {
+                futures.add(fanOutExecutor.submit(withCall(call, currentCall.get())));
+            }
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BridgeError("Interrupted while waiting for Harvest requests.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BridgeError) {
+                throw (BridgeError)e.getCause();
+            }
+            throw new BridgeError(e.getCause());
+        } catch (RejectedExecutionException e) {
+            throw new BridgeError("The adapter has been shut down.", e);
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    // Splits a date range structure query, which may list several comma separated project_id or
+    // user_id values and a long from/to date range, into one url per id and date window.
+    private List<String> buildDateRangeUrls(String structure, String query) throws BridgeError {
+        long start = metrics.start();
+        HarvestStructure definition = HarvestStructure.get(structure);
         Map<String,String> queryMap = getQueryMap(query);
-        String url = this.harvestEndpoint;
-        if(structure.equals("Clients")){
-            if(queryMap.containsKey("client_id")){
-                url += "/clients/"+queryMap.get("client_id");
-                queryMap.remove("client_id");
-            }else{
-                throw new BridgeError("A client_id is required to retrieve a client");
-            }
-        }else if(structure.equals("Projects")){
-            if(queryMap.containsKey("project_id")){
-                url += "/projects/"+queryMap.get("project_id");
-                queryMap.remove("project_id");
-            }else{
-                throw new BridgeError("A project_id is required to retrieve a project");
-            }
-        }else if(structure.equals("Tasks")){
-            url += "/tasks";
-            if(queryMap.containsKey("task_id")){
-                url += "/tasks/"+queryMap.get("task_id");
-                queryMap.remove("task_id");
-            }else{
-                throw new BridgeError("A task_id is required to retrieve a task");
-            }
-        }else if(structure.equals("Task Assignments")){
-            if(queryMap.containsKey("project_id") && queryMap.containsKey("task_assignment_id")){
-                url += "/projects/"+queryMap.get("project_id")+"/task_assignments/"+queryMap.get("task_assignment_id");
-                queryMap.remove("project_id");
-                queryMap.remove("task_assignment_id");
-            }else{
-                throw new BridgeError("A project_id and task_assignment_id are required to retrieve a task assignment");
-            }
-        }else if(structure.equals("Users")){
-            if(queryMap.containsKey("user_id")){
-                url += "/people/"+queryMap.get("user_id");
-                queryMap.remove("user_id");
-            }else{
-                throw new BridgeError("A user_id is required to retrieve a user");
-            }
-        }else if(structure.equals("Users Assignment")){
-            if(queryMap.containsKey("project_id") && queryMap.containsKey("user_assignment_id")){
-                url += "/projects/"+queryMap.get("project_id")+"/user_assignments"+queryMap.get("user_assignment_id");
-                queryMap.remove("project_id");
-                queryMap.remove("user_assignment_id");
-            }else{
-                throw new BridgeError("A project_id and user_assignment_id are required to retrieve users assignment");
-            }
-        }else{
-            throw new BridgeError("The " + structure + " structure does not have a retrieve option");
-        }
-        logger.trace("Retrieve url: "+url);
-        return url;
+        String idKey = null;
+        for (String key : definition.getListKeys()) {
+            if (queryMap.containsKey(key)) {
+                if (idKey != null) {
+                    throw new BridgeError("A "+idKey+" or "+key+" can be provided but not both");
+                }
+                idKey = key;
+            }
+        }
+        if (idKey == null) {
+            // Fails with the message describing the required parameters
+            definition.buildListUrl(this.harvestEndpoint, queryMap);
+        } else if(!queryMap.containsKey("from") || !queryMap.containsKey("to")){
+            throw new BridgeError("A date range must be provided with the format of from=YYYYMMDD&to=YYYYMMDD");
+        }
+        String[] ids = queryMap.remove(idKey).split(",");
+        List<String[]> windows = getDateWindows(queryMap.remove("from"), queryMap.remove("to"));
+
+        List<String> urls = new ArrayList<String>();
+        for (String id : ids) {
+            if (id.trim().isEmpty()) {
+                continue;
+            }
+            for (String[] window : windows) {
+                Map<String,String> rangeQuery = new LinkedHashMap<String,String>();
+                rangeQuery.put(idKey, id.trim());
+                rangeQuery.put("from", window[0]);
+                rangeQuery.put("to", window[1]);
+                rangeQuery.putAll(queryMap);
+                urls.add(definition.buildListUrl(this.harvestEndpoint, rangeQuery));
+            }
+        }
+        if (urls.isEmpty()) {
+            throw new BridgeError("A "+idKey+" is required for the "+structure+" structure");
+        }
+        metrics.recordPhase(structure, HarvestMetrics.Phase.URL_BUILD, start);
+        return urls;
+    }
+
+    // Splits the from/to date range (YYYYMMDD, inclusive) into consecutive windows of the
+    // configured number of days.
+    private List<String[]> getDateWindows(String from, String to) throws BridgeError {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+        format.setLenient(false);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Calendar start = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        Calendar end = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        try {
+            start.setTime(format.parse(from));
+            end.setTime(format.parse(to));
+        } catch (ParseException e) {
+            throw new BridgeError("A date range must be provided with the format of from=YYYYMMDD&to=YYYYMMDD");
+        }
+        if (start.after(end)) {
+            throw new BridgeError("The from date must not be after the to date.");
+        }
+
+        List<String[]> windows = new ArrayList<String[]>();
+        if (entriesWindow <= 0) {
+            windows.add(new String[] {from, to});
+            return windows;
+        }
+        while (!start.after(end)) {
+            Calendar windowEnd = (Calendar)start.clone();
+            windowEnd.add(Calendar.DAY_OF_MONTH, entriesWindow - 1);
+            if (windowEnd.after(end)) {
+                windowEnd = end;
+            }
+            windows.add(new String[] {format.format(start.getTime()), format.format(windowEnd.getTime())});
+            start = (Calendar)windowEnd.clone();
+            start.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        return windows;
+    }
+
+    // Wraps the callable so that it is part of the bridge call (and has its deadline) on the thread
+    // it runs on
+    private <T> Callable<T> withCall(final Callable<T> callable, final Call call) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                currentCall.set(call);
+                try {
+                    return callable.call();
+                } finally {
+                    currentCall.remove();
+                }
+            }
+        };
+    }
+
+    // Starts a bridge call on the current thread, starting its deadline
+    private Call beginCall() {
+        Call call = new Call(callDeadlineMillis > 0 ? System.currentTimeMillis() + callDeadlineMillis : 0);
+        currentCall.set(call);
+        return call;
+    }
+
+    private void endCall() {
+        currentCall.remove();
+    }
+
+    // Returns the time by which the current bridge call must complete, or 0 if there is no deadline
+    private long getCallDeadline() {
+        Call call = currentCall.get();
+        return call == null ? 0 : call.getDeadline();
     }
 
-    // Count Search and Retrieve get the resoucre the same and use the same output object.
-    private String getResource(String url) throws BridgeError {
-        // Initialize the HTTP Client,Response, and HTTP GET objects
-        HttpClient client = HttpClients.createDefault();
-        HttpResponse response;
+    // Marks a result that was served from a stale cached response
+    private Map<String,String> staleMetadata() {
+        Map<String,String> metadata = new LinkedHashMap<String,String>();
+        metadata.put("stale", "true");
+        return metadata;
+    }
+
+    // The state of a count, retrieve or search call, which is shared with the fan-out threads that
+    // make its requests
+    private static class Call {
+        private final long deadline;
+        private volatile boolean stale;
+
+        Call(long deadline) {
+            this.deadline = deadline;
+        }
+
+        long getDeadline() {
+            return deadline;
+        }
+
+        // True if any of the results were served from a stale cached response
+        boolean isStale() {
+            return stale;
+        }
+
+        void markStale() {
+            stale = true;
+        }
+    }
+
+    private void shutdownFanOut() {
+        if (this.fanOutExecutor != null) {
+            this.fanOutExecutor.shutdownNow();
+            this.fanOutExecutor = null;
+        }
+    }
+
+    // Returns the cached objects for the url, or null if the structure isn't cached or there is no
+    // valid cached response.
+    private List<Map<String,Object>> getCachedRecords(String structure, String url) {
+        if (!cache.isEnabled(structure)) {
+            return null;
+        }
+        return cache.get(HarvestResponseCache.key(url, this.credentialKey));
+    }
+
+    // Copies the specified fields of the object into a new map so that the shared object is never
+    // modified.  If no fields were specified all of the properties are copied.
+    private Map<String,Object> project(Map<String,Object> object, List<String> fields) {
+        Map<String,Object> result = new HashMap<String,Object>();
+        if (fields == null || fields.isEmpty()) {
+            result.putAll(object);
+        } else {
+            for (String field : fields) {
+                if (object.containsKey(field)) {
+                    result.put(field, object.get(field));
+                }
+            }
+        }
+        return result;
+    }
+
+    // Parses a per structure property value such as "Clients=600,Users=300" into a map of
+    // structure name to value (multiplied by the given unit).
+    private Map<String,Long> getStructureSettings(String name, long unit) throws BridgeError {
+        Map<String,Long> settings = new HashMap<String,Long>();
+        String value = properties.getValue(name);
+        if (value != null && !value.trim().isEmpty()) {
+            for (String setting : value.split(",")) {
+                int index = setting.indexOf('=');
+                String structure = index > 0 ? setting.substring(0, index).trim() : "";
+                if (!VALID_STRUCTURES.contains(structure)) {
+                    throw new BridgeError("The '"+name+"' property contains an invalid structure setting: '"+setting.trim()+"'.");
+                }
+                try {
+                    settings.put(structure, Long.parseLong(setting.substring(index+1).trim()) * unit);
+                } catch (NumberFormatException e) {
+                    throw new BridgeError("The '"+name+"' property contains an invalid value for "+structure+".");
+                }
+            }
+        }
+        return settings;
+    }
+
+    // Reads the body of a successful Harvest response.  The entity is null if the response to a
+    // conditional request was 304 Not Modified.
+    private interface ResponseReader<T> {
+        T read(HttpResponse response, HttpEntity entity) throws IOException, BridgeError;
+    }
+
+    private <T> T getResource(String structure, String url, ResponseReader<T> reader) throws BridgeError {
+        return getResource(structure, url, null, reader);
+    }
+
+    // Count Search and Retrieve get the resoucre the same and hand the response body to the reader
+    // without buffering it.  Every attempt waits for the shared rate limit, and throttled or
+    // unavailable responses (and connection failures) are retried with backoff.  The structure is
+    // only used to label the metrics of the request and to choose the circuit of its endpoint.  If an
+    // expired cached response is given the request is made conditional on its validators.  Requests
+    // aren't made while the endpoint's circuit is open, and a HarvestUnavailableError is thrown if
+    // Harvest could not be reached or failed to respond in time.
+    private <T> T getResource(String structure, String url, HarvestResponseCache.CachedResponse expired,
+        ResponseReader<T> reader) throws BridgeError
+    {
+        HarvestCircuitBreaker.Circuit circuit = circuitBreaker.getCircuit(structure);
+        for (int attempt = 0; ; attempt++) {
+            // Waiting for the rate limit (or failing to before the deadline) says nothing about
+            // Harvest's health, so it happens before the circuit is asked
+            rateLimiter.acquire(getCallDeadline());
+            if (!circuit.tryAcquire()) {
+                throw new HarvestUnavailableError("Requests to the Harvest "+structure+" endpoint are failing, so "
+                    +url+" was not requested (requests resume in "+circuit.getRemainingOpenMillis()+"ms).");
+            }
+
+            // Make the call to the source to retrieve data and pass the response stream to the reader
+            long delay;
+            HttpResponse response = null;
+            // Whether Harvest responded properly (even if it was an error), which the circuit records
+            boolean healthy = false;
+            long attemptStart = System.currentTimeMillis();
+            // How long Harvest took to respond, which doesn't include reading and parsing the body
+            // (a large list can take a long time to parse without Harvest being slow)
+            long latency = -1;
+            try {
+                // A context is only needed to collect the timings of the request
+                long start = metrics.start();
+                HttpClientContext context = metrics.isEnabled() ? HttpClientContext.create() : null;
+                HttpGet get = buildGet(url);
+                if (expired != null) {
+                    if (expired.getEtag() != null) {
+                        get.setHeader("If-None-Match", expired.getEtag());
+                    }
+                    if (expired.getLastModified() != null) {
+                        get.setHeader("If-Modified-Since", expired.getLastModified());
+                    }
+                }
+                response = execute(get, context);
+                latency = System.currentTimeMillis() - attemptStart;
+                int responseCode = response.getStatusLine().getStatusCode();
+                metrics.recordResponse(structure, start, context, responseCode);
+                if (logger.isTraceEnabled()) {
+                    logger.trace("Request response code: " + responseCode);
+                }
+                if(responseCode == 304 && expired != null){
+                    healthy = true;
+                    return reader.read(response, null);
+                }else if(responseCode == 404){
+                    healthy = true;
+                    throw new BridgeError("404 Page not found at "+url+".");
+                }else if(responseCode == 401){
+                    healthy = true;
+                    throw new BridgeError("401 Access on valid.");
+                }else if(retryPolicy.isRetryable(responseCode)){
+                    // Throttling means Harvest is busy rather than failing, so it doesn't open the circuit
+                    healthy = responseCode == 429;
+                    delay = retryPolicy.getDelay(attempt, response.getFirstHeader("Retry-After"));
+                    if (delay < 0) {
+                        throw new HarvestUnavailableError(responseCode+" returned by Harvest for "+url
+                            +" after "+(attempt+1)+" attempts: "+getErrorMessage(response));
+                    }
+                    logger.debug(responseCode+" returned by Harvest, retrying in "+delay+"ms.");
+                }else if(responseCode >= 500){
+                    throw new HarvestUnavailableError(responseCode+" returned by Harvest for "+url+": "
+                        +getErrorMessage(response));
+                }else if(responseCode < 200 || responseCode >= 300){
+                    healthy = true;
+                    throw new BridgeError(responseCode+" returned by Harvest for "+url+": "
+                        +getErrorMessage(response));
+                }else{
+                    // Harvest responded successfully, so a body that can't be parsed doesn't count
+                    // against the circuit (failing to read it does, see below)
+                    healthy = true;
+                    // The body is decompressed (if it is encoded) as it is read by the reader
+                    HttpEntity timed = metrics.timeBody(response.getEntity());
+                    HttpEntity entity = HarvestDecodingEntity.decode(timed, metrics.isEnabled());
+                    long readStart = metrics.start();
+                    T output = reader.read(response, entity);
+                    metrics.recordBody(structure, timed, readStart);
+                    metrics.recordBytes(structure, entity);
+                    // Read anything left in the body so the connection can be reused
+                    EntityUtils.consume(entity);
+                    return output;
+                }
+            }
+            catch (IOException e) {
+                // Including a connection that failed or timed out while the body was read
+                healthy = false;
+                delay = retryPolicy.getDelay(attempt, null);
+                if (delay < 0) {
+                    logger.error(e.getMessage());
+                    throw new HarvestUnavailableError("Unable to make a connection to Kinetic Core.", e);
+                }
+                logger.debug("Unable to connect to Harvest ("+e.getMessage()+"), retrying in "+delay+"ms.");
+            }
+            finally {
+                // Closing the response returns the connection to the pool (or closes it if the
+                // entity was not fully consumed).  Async responses cancel the request instead.
+                if (response instanceof CloseableHttpResponse) {
+                    closeQuietly((CloseableHttpResponse)response);
+                } else if (response != null) {
+                    HarvestAsyncEngine.release(response);
+                }
+                circuit.record(latency >= 0 ? latency : System.currentTimeMillis() - attemptStart, !healthy);
+            }
+            long deadline = getCallDeadline();
+            if (deadline > 0 && System.currentTimeMillis() + delay >= deadline) {
+                throw new HarvestUnavailableError("Harvest did not respond successfully to "+url+" before the call's deadline ("
+                    +(attempt+1)+" attempts).");
+            }
+            retryPolicy.await(delay);
+        }
+    }
+
+    // Executes the request with the async engine (waiting until the call's deadline) or the blocking
+    // client, depending on the execution mode
+    private HttpResponse execute(HttpGet get, HttpClientContext context) throws IOException, BridgeError {
+        if (asyncEngine != null) {
+            return asyncEngine.execute(get, context, getCallDeadline());
+        }
+        return client.execute(get, context);
+    }
+
+    // Builds the GET request for the url with the authorization headers
+    private HttpGet buildGet(String url) {
         HttpGet get = new HttpGet(url);
 
         // Append HTTP BASIC Authorization header to HttpGet call
@@ -425,40 +1506,144 @@ public class HarvestAdapter implements BridgeAdapter {
         byte[] basicAuthBytes = Base64.encodeBase64(creds.getBytes());
         get.setHeader("Authorization", "Basic " + new String(basicAuthBytes));
         get.setHeader("Accept", "application/json");
+        if (this.compressResponses) {
+            get.setHeader("Accept-Encoding", HarvestDecodingEntity.ACCEPT_ENCODING);
+        }
+        return get;
+    }
+
+    // Returns the value of the response header, or null if the response doesn't have it
+    private String getHeaderValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    // Returns the start of the body of an error response so it can be included in the error
+    private String getErrorMessage(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return response.getStatusLine().getReasonPhrase();
+        }
+        char[] buffer = new char[512];
+        Reader reader = getReader(HarvestDecodingEntity.decode(entity, false));
+        int length = 0;
+        int read;
+        while (length < buffer.length && (read = reader.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+        }
+        return new String(buffer, 0, length);
+    }
+
+    // Returns a character reader over the response body using the charset of the response.
+    private Reader getReader(HttpEntity entity) throws IOException {
+        Charset charset = ContentType.getOrDefault(entity).getCharset();
+        return new InputStreamReader(entity.getContent(), charset == null ? Consts.UTF_8 : charset);
+    }
+
+    // Builds the pooled HTTP client from the connection properties.  The connection manager is
+    // owned by the client, so closing the client also shuts the pool down.
+    private CloseableHttpClient buildClient() throws BridgeError {
+        int maxConnections = getIntegerProperty(Properties.PROPERTY_MAX_CONNECTIONS, 20);
+        int maxConnectionsPerRoute = getIntegerProperty(Properties.PROPERTY_MAX_CONNECTIONS_PER_ROUTE, 20);
+        int idleTimeout = getIntegerProperty(Properties.PROPERTY_IDLE_CONNECTION_TIMEOUT, 60000);
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        // Re-check connections that have been sitting in the pool for a while before leasing them
+        // so that a connection closed by Harvest does not fail the next call
+        connectionManager.setValidateAfterInactivity(Math.min(idleTimeout, 2000));
+
+        HttpClientBuilder builder = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(buildRequestConfig())
+            // Compression is requested and decoded by the adapter (see HarvestDecodingEntity)
+            .disableContentCompression()
+            .setKeepAliveStrategy(buildKeepAliveStrategy())
+            // Starts a background thread that closes expired and long idle connections
+            .evictExpiredConnections()
+            .evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+        if (this.metrics.isEnabled()) {
+            // Times each exchange so the connection lease and HTTP wait can be told apart
+            builder.setRequestExecutor(this.metrics.createRequestExecutor());
+        }
+        return builder.build();
+    }
+
+    // Builds the non-blocking client used in the Async execution mode from the same connection
+    // properties as the blocking client
+    private HarvestAsyncEngine buildAsyncEngine() throws BridgeError {
+        return new HarvestAsyncEngine(
+            getIntegerProperty(Properties.PROPERTY_ASYNC_IO_THREADS, 2),
+            getIntegerProperty(Properties.PROPERTY_MAX_CONNECTIONS, 20),
+            getIntegerProperty(Properties.PROPERTY_MAX_CONNECTIONS_PER_ROUTE, 20),
+            getIntegerProperty(Properties.PROPERTY_CONNECT_TIMEOUT, 10000),
+            getIntegerProperty(Properties.PROPERTY_SOCKET_TIMEOUT, 30000),
+            getIntegerProperty(Properties.PROPERTY_IDLE_CONNECTION_TIMEOUT, 60000),
+            buildRequestConfig(),
+            buildKeepAliveStrategy());
+    }
+
+    private RequestConfig buildRequestConfig() throws BridgeError {
+        int connectTimeout = getIntegerProperty(Properties.PROPERTY_CONNECT_TIMEOUT, 10000);
+        return RequestConfig.custom()
+            .setConnectTimeout(connectTimeout)
+            .setConnectionRequestTimeout(connectTimeout)
+            .setSocketTimeout(getIntegerProperty(Properties.PROPERTY_SOCKET_TIMEOUT, 30000))
+            .build();
+    }
+
+    // Use the Keep-Alive header sent by Harvest if there is one, otherwise the configured value
+    private ConnectionKeepAliveStrategy buildKeepAliveStrategy() throws BridgeError {
+        final int keepAlive = getIntegerProperty(Properties.PROPERTY_KEEP_ALIVE, 30000);
+        return new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                return duration > 0 ? duration : keepAlive;
+            }
+        };
+    }
 
-        // Make the call to the source to retrieve data and convert the response
-        // from a HttpEntity object into a Java String
-        String output = "";
+    private void closeAsyncEngine() {
+        if (this.asyncEngine != null) {
+            closeQuietly(this.asyncEngine);
+            this.asyncEngine = null;
+        }
+    }
+
+    private void closeClient() {
+        if (this.client != null) {
+            closeQuietly(this.client);
+            this.client = null;
+        }
+    }
+
+    private void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                logger.debug("Unable to close "+closeable.getClass().getSimpleName(), e);
+            }
+        }
+    }
+
+    // Retrieves a property value that is expected to be a non-negative whole number.  Properties
+    // that were left blank fall back to the default value.
+    private int getIntegerProperty(String name, int defaultValue) throws BridgeError {
+        String value = properties.getValue(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
         try {
-            response = client.execute(get);
-            HttpEntity entity = response.getEntity();
-            output = EntityUtils.toString(entity);
-            int responseCode = response.getStatusLine().getStatusCode();
-            logger.trace("Request response code: " + responseCode);
-            if(responseCode == 404){
-                throw new BridgeError("404 Page not found at "+url+".");
-            }else if(responseCode == 401){
-                throw new BridgeError("401 Access on valid.");
-            }
-        }
-        catch (IOException e) {
-            logger.error(e.getMessage());
-            throw new BridgeError("Unable to make a connection to Kinetic Core.", e);
-        }
-        return output;
-    }
-
-    // Each Structure returns an object with a different property accessor name.  This is a generic method to get that name.
-    // If the returned object has multiple properties we throw an error.
-    private String getPropertyName(JSONObject obj) throws BridgeError {
-        Object[] keyList =  obj.keySet().toArray();
-        String key = "";
-        if(keyList.length == 1){
-            key = keyList[0].toString();
-            logger.trace("Key: "+key);
-        }else{
-           throw new BridgeError("Only one key is valid from responce object.");
-        }
-        return key;
+            int result = Integer.parseInt(value.trim());
+            if (result < 0) {
+                throw new NumberFormatException();
+            }
+            return result;
+        } catch (RuntimeException e) {
+            throw new BridgeError("The '"+name+"' property must be a non-negative number, found: '"+value+"'.");
+        }
     }
 }
@@ -0,0 +1,268 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.nio.util.HeapByteBufferAllocator;
+import org.apache.http.nio.util.SharedInputBuffer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Executes Harvest requests on a non-blocking HTTP client.
+ *
+ * Requests are multiplexed over a small number of I/O reactor threads, so outstanding requests
+ * (ie. the sub-requests of an Entries search, or calls waiting on a slow Harvest) don't each hold a
+ * connection thread.  The response is returned to the caller as soon as its headers arrive, and the
+ * body (still compressed, if it was compressed) is streamed from the reactor to the caller through a
+ * small buffer, so it is parsed as it arrives rather than held in memory first.  The reactor stops
+ * reading from the connection while the buffer is full.  Callers wait for the headers until their
+ * deadline, after which the request is cancelled, and closing a body that wasn't read to the end
+ * cancels the request too.  A background thread closes pooled connections that have expired or been
+ * idle for too long.
+ */
+class HarvestAsyncEngine implements Closeable {
+
+    // The size of the buffer between the reactor and the caller reading a response body
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final CloseableHttpAsyncClient client;
+    private final PoolingNHttpClientConnectionManager connectionManager;
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * @param ioThreads the number of I/O reactor threads
+     * @param idleTimeout pooled connections idle for longer than this (in milliseconds) are closed
+     */
+    HarvestAsyncEngine(int ioThreads, int maxConnections, int maxConnectionsPerRoute, int connectTimeout,
+        int socketTimeout, final int idleTimeout, RequestConfig requestConfig,
+        ConnectionKeepAliveStrategy keepAliveStrategy) throws BridgeError
+    {
+        try {
+            connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(
+                IOReactorConfig.custom()
+                    .setIoThreadCount(Math.max(1, ioThreads))
+                    .setConnectTimeout(connectTimeout)
+                    .setSoTimeout(socketTimeout)
+                    .build()));
+        } catch (IOReactorException e) {
+            throw new BridgeError("Unable to start the asynchronous Harvest client.", e);
+        }
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+
+        client = HttpAsyncClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .setKeepAliveStrategy(keepAliveStrategy)
+            .build();
+        client.start();
+
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Harvest Async Connection Evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long interval = Math.max(1000, idleTimeout / 2);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Executes the request and waits for its response headers.  The body of the response is read as
+     * it arrives, and must be closed (or read to the end) to release the connection.
+     *
+     * @param deadline the time (in milliseconds) by which the response must be received, or 0 to
+     *     wait until the request completes or fails
+     * @throws IOException if the request failed (and may be retried)
+     * @throws HarvestUnavailableError if the deadline passed
+     * @throws BridgeError if the caller was interrupted
+     */
+    HttpResponse execute(HttpUriRequest request, HttpContext context, long deadline) throws IOException, BridgeError {
+        StreamingConsumer consumer = new StreamingConsumer();
+        Future<HttpResponse> exchange = client.execute(HttpAsyncMethods.create(request), consumer, context, null);
+        consumer.setExchange(exchange);
+        Future<HttpResponse> future = consumer.getReceived();
+        try {
+            if (deadline <= 0) {
+                return future.get();
+            }
+            return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            exchange.cancel(true);
+            throw new HarvestUnavailableError("Harvest did not respond to "+request.getURI()+" before the call's deadline.");
+        } catch (InterruptedException e) {
+            exchange.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new BridgeError("Interrupted while waiting for a Harvest request.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new BridgeError(e.getCause());
+        }
+    }
+
+    /**
+     * Closes the body of a response returned by {@link #execute}, which cancels the request if the
+     * body wasn't read to the end.
+     */
+    static void release(HttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        if (entity != null && entity.isStreaming()) {
+            try {
+                entity.getContent().close();
+            } catch (IOException e) {
+                // The body stream doesn't fail to close
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        evictor.shutdownNow();
+        client.close();
+    }
+
+    /**
+     * Completes the received future once the response headers arrive, and then passes the body to the
+     * caller through a shared buffer as the reactor receives it.
+     */
+    private static class StreamingConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+
+        private final BasicFuture<HttpResponse> received = new BasicFuture<HttpResponse>(null);
+        private final SharedInputBuffer buffer = new SharedInputBuffer(BUFFER_SIZE, HeapByteBufferAllocator.INSTANCE);
+        private volatile Future<HttpResponse> exchange;
+        private HttpResponse response;
+        private boolean completed;
+
+        Future<HttpResponse> getReceived() {
+            return received;
+        }
+
+        void setExchange(Future<HttpResponse> exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) {
+            this.response = response;
+            if (response.getEntity() == null) {
+                received.completed(response);
+            }
+        }
+
+        @Override
+        protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+            BasicHttpEntity streamed = new BasicHttpEntity();
+            streamed.setContentLength(entity.getContentLength());
+            streamed.setContentType(entity.getContentType());
+            streamed.setContentEncoding(entity.getContentEncoding());
+            streamed.setChunked(entity.isChunked());
+            streamed.setContent(new BodyStream());
+            response.setEntity(streamed);
+            received.completed(response);
+        }
+
+        @Override
+        protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+            // Suspends the input once the buffer is full, and the caller's reads resume it
+            buffer.consumeContent(decoder, ioctrl);
+        }
+
+        @Override
+        protected HttpResponse buildResult(HttpContext context) {
+            completed = true;
+            return response;
+        }
+
+        @Override
+        protected void releaseResources() {
+            // A body received completely stays readable, otherwise the caller's reads fail
+            if (!completed) {
+                buffer.shutdown();
+                if (getException() != null) {
+                    received.failed(getException());
+                } else {
+                    received.cancel();
+                }
+            }
+        }
+
+        // The body of the response, which cancels the request if it is closed before the end
+        private class BodyStream extends InputStream {
+
+            private boolean ended;
+            private boolean closed;
+
+            @Override
+            public int read() throws IOException {
+                ensureOpen();
+                int b = buffer.read();
+                ended = b < 0;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                ensureOpen();
+                int read = buffer.read(bytes, offset, length);
+                ended = read < 0;
+                return read;
+            }
+
+            @Override
+            public void close() {
+                if (!closed) {
+                    closed = true;
+                    if (!ended) {
+                        Future<HttpResponse> exchange = StreamingConsumer.this.exchange;
+                        if (exchange != null) {
+                            exchange.cancel(true);
+                        }
+                        buffer.shutdown();
+                    }
+                }
+            }
+
+            private void ensureOpen() throws IOException {
+                if (closed) {
+                    throw new IOException("The Harvest response body has been closed.");
+                }
+            }
+        }
+    }
+}
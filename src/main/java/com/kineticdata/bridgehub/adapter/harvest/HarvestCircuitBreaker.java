@@ -0,0 +1,194 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops sending requests to a Harvest endpoint that is failing or responding too slowly.
+ *
+ * Each endpoint (ie. the resource behind a structure) has its own circuit.  A closed circuit lets
+ * every request through and records the outcome of the most recent ones; once enough of them have
+ * been recorded and the share that failed (or took longer than the slow call threshold) reaches the
+ * failure rate, the circuit opens.  An open circuit rejects requests immediately until the open
+ * duration has passed, then becomes half-open and lets a few trial requests through.  If all of the
+ * trials succeed the circuit closes again, otherwise it opens for another open duration.
+ */
+class HarvestCircuitBreaker {
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureRate;
+    private final long slowCallMillis;
+    private final int windowSize;
+    private final long openMillis;
+    private final int trialCalls;
+    private final ConcurrentMap<String,Circuit> circuits = new ConcurrentHashMap<String,Circuit>();
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param failureRate the percentage of failed or slow requests that opens a circuit (0 disables
+     *     the circuit breaker)
+     * @param slowCallMillis requests that take at least this long count as failures (0 disables)
+     * @param windowSize the number of recent requests the failure rate is calculated over
+     * @param openMillis how long an open circuit rejects requests before trial requests are made
+     * @param trialCalls the number of trial requests that must succeed to close a circuit again
+     */
+    HarvestCircuitBreaker(int failureRate, long slowCallMillis, int windowSize, long openMillis, int trialCalls) {
+        this.failureRate = failureRate;
+        this.slowCallMillis = slowCallMillis;
+        this.windowSize = Math.max(1, windowSize);
+        this.openMillis = openMillis;
+        this.trialCalls = Math.max(1, trialCalls);
+    }
+
+    boolean isEnabled() {
+        return failureRate > 0;
+    }
+
+    /** Returns the circuit of the endpoint, creating it the first time the endpoint is used. */
+    Circuit getCircuit(String endpoint) {
+        Circuit circuit = circuits.get(endpoint);
+        if (circuit == null) {
+            Circuit created = new Circuit();
+            circuit = circuits.putIfAbsent(endpoint, created);
+            if (circuit == null) {
+                circuit = created;
+            }
+        }
+        return circuit;
+    }
+
+    /** Returns the number of times a circuit was opened. */
+    long getOpened() {
+        return opened.get();
+    }
+
+    /** Returns the number of requests that were rejected because their circuit was open. */
+    long getRejected() {
+        return rejected.get();
+    }
+
+    /** Returns the number of circuits that are currently open or half-open. */
+    int getOpenCircuits() {
+        int count = 0;
+        for (Circuit circuit : circuits.values()) {
+            if (circuit.getState() != State.CLOSED) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        Map<String,State> states = new TreeMap<String,State>();
+        for (Map.Entry<String,Circuit> entry : circuits.entrySet()) {
+            states.put(entry.getKey(), entry.getValue().getState());
+        }
+        return states+", opened="+getOpened()+", rejected="+getRejected();
+    }
+
+    /** The state of a single endpoint's circuit */
+    class Circuit {
+        private State state = State.CLOSED;
+        // The outcomes of the most recent requests (true if the request failed) in a ring
+        private final boolean[] outcomes = new boolean[windowSize];
+        private int position;
+        private int recorded;
+        private int failures;
+        private long openedAt;
+        private int trialsStarted;
+        private int trialsSucceeded;
+
+        /**
+         * Returns true if a request may be made to the endpoint.  Every permitted request must have
+         * its outcome recorded with {@link #record(long, boolean)}.
+         */
+        synchronized boolean tryAcquire() {
+            if (!isEnabled()) {
+                return true;
+            }
+            if (state == State.OPEN) {
+                if (System.currentTimeMillis() - openedAt < openMillis) {
+                    rejected.incrementAndGet();
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                trialsStarted = 0;
+                trialsSucceeded = 0;
+            }
+            if (state == State.HALF_OPEN) {
+                if (trialsStarted >= trialCalls) {
+                    rejected.incrementAndGet();
+                    return false;
+                }
+                trialsStarted++;
+            }
+            return true;
+        }
+
+        /**
+         * Records the outcome of a permitted request.
+         *
+         * @param millis how long the request took
+         * @param failed true if the request failed (a request that was too slow also counts as failed)
+         */
+        synchronized void record(long millis, boolean failed) {
+            if (!isEnabled()) {
+                return;
+            }
+            failed = failed || (slowCallMillis > 0 && millis >= slowCallMillis);
+            if (state == State.HALF_OPEN) {
+                if (failed) {
+                    open();
+                } else if (++trialsSucceeded >= trialCalls) {
+                    close();
+                }
+            } else if (state == State.CLOSED) {
+                if (recorded == outcomes.length) {
+                    if (outcomes[position]) {
+                        failures--;
+                    }
+                } else {
+                    recorded++;
+                }
+                outcomes[position] = failed;
+                if (failed) {
+                    failures++;
+                }
+                position = (position + 1) % outcomes.length;
+                if (recorded == outcomes.length && failures * 100L >= (long)failureRate * recorded) {
+                    open();
+                }
+            }
+            // Requests that were made before the circuit opened don't change an open circuit
+        }
+
+        synchronized State getState() {
+            return state;
+        }
+
+        /** Returns how long (in milliseconds) until an open circuit lets trial requests through. */
+        synchronized long getRemainingOpenMillis() {
+            return state == State.OPEN ? Math.max(0, openedAt + openMillis - System.currentTimeMillis()) : 0;
+        }
+
+        private void open() {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            opened.incrementAndGet();
+        }
+
+        private void close() {
+            state = State.CLOSED;
+            position = 0;
+            recorded = 0;
+            failures = 0;
+        }
+    }
+}
@@ -0,0 +1,541 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A read-only list of Harvest objects stored column by column.
+ *
+ * Parsed objects are each a hash map holding their own copy of every property name and a boxed
+ * copy of every number, which for large lists uses several times the memory of the values
+ * themselves.  This list instead keeps one column per property: numbers and booleans in primitive
+ * arrays, strings as codes into a dictionary of the distinct values (so repeated values such as
+ * client names or dates are held once), and anything else (nested objects, or a property whose
+ * values have mixed types) as references.  Property names are interned across every columnar list.
+ *
+ * The objects returned by {@link #get(int)} are lightweight read-only views of a row, and values
+ * are only read out of the columns (and boxed) when a property of the view is asked for, so only
+ * the rows and properties that are actually returned by a search are materialized.
+ */
+class HarvestColumnarRecords extends AbstractList<Map<String,Object>> implements RandomAccess {
+
+    // Property name -> the one copy of the name that every columnar list uses
+    private static final ConcurrentMap<String,String> NAMES = new ConcurrentHashMap<String,String>();
+
+    private final int size;
+    // The rows that are null (ie. Harvest returned {"project":null}) rather than objects
+    private final BitSet nullRows;
+    private final String[] names;
+    private final Map<String,Integer> positions;
+    private final Column[] columns;
+    private final long estimatedBytes;
+
+    private HarvestColumnarRecords(List<Map<String,Object>> records) {
+        this.size = records.size();
+        this.nullRows = new BitSet();
+
+        // Find every property name, in the order they first appear
+        Map<String,Integer> found = new LinkedHashMap<String,Integer>();
+        for (int row = 0; row < size; row++) {
+            Map<String,Object> record = records.get(row);
+            if (record == null) {
+                nullRows.set(row);
+                continue;
+            }
+            for (String name : record.keySet()) {
+                if (!found.containsKey(name)) {
+                    found.put(name, found.size());
+                }
+            }
+        }
+
+        this.names = new String[found.size()];
+        this.positions = new HashMap<String,Integer>(found.size() * 4 / 3 + 1);
+        this.columns = new Column[found.size()];
+        long bytes = 64 + bitSetBytes(size);
+        for (Map.Entry<String,Integer> entry : found.entrySet()) {
+            String name = intern(entry.getKey());
+            int position = entry.getValue();
+            names[position] = name;
+            positions.put(name, position);
+            columns[position] = buildColumn(records, name);
+            bytes += 48 + columns[position].estimateBytes();
+        }
+        this.estimatedBytes = bytes;
+    }
+
+    /**
+     * Returns the records as a columnar list if there are at least threshold of them (a threshold
+     * of 0 never does), otherwise as an unmodifiable view of the list.
+     */
+    static List<Map<String,Object>> compact(List<Map<String,Object>> records, int threshold) {
+        if (records instanceof HarvestColumnarRecords) {
+            return records;
+        }
+        if (threshold <= 0 || records.size() < threshold) {
+            return Collections.unmodifiableList(records);
+        }
+        return new HarvestColumnarRecords(records);
+    }
+
+    /**
+     * Returns the estimated number of bytes used by the records, whether they are stored in a
+     * columnar list or as a list of parsed objects.
+     */
+    static long estimateBytes(List<Map<String,Object>> records) {
+        if (records instanceof HarvestColumnarRecords) {
+            return ((HarvestColumnarRecords)records).estimatedBytes;
+        }
+        long bytes = 16 + 4L * records.size();
+        for (Map<String,Object> record : records) {
+            if (record != null) {
+                // The map, its table and an entry (with its own copy of the name) per property
+                bytes += 48 + 8L * record.size();
+                for (Map.Entry<String,Object> property : record.entrySet()) {
+                    bytes += 32 + stringBytes(property.getKey()) + valueBytes(property.getValue());
+                }
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public Map<String,Object> get(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Index: "+row+", Size: "+size);
+        }
+        return nullRows.get(row) ? null : new Row(row);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // Builds the most compact column that can hold every value of the property
+    private Column buildColumn(List<Map<String,Object>> records, String name) {
+        BitSet present = new BitSet();
+        Class<?> type = null;
+        boolean mixed = false;
+        for (int row = 0; row < size; row++) {
+            Map<String,Object> record = records.get(row);
+            if (record == null || !record.containsKey(name)) {
+                continue;
+            }
+            present.set(row);
+            Object value = record.get(name);
+            if (value != null) {
+                Class<?> valueType = value.getClass();
+                if (type == null) {
+                    type = valueType;
+                } else if (type != valueType) {
+                    mixed = true;
+                }
+            }
+        }
+        // Most properties are present in every object, so their presence isn't stored
+        if (present.cardinality() == size - nullRows.cardinality()) {
+            present = null;
+        }
+
+        Column column;
+        if (type == null) {
+            return new NullColumn(present);
+        } else if (mixed) {
+            column = new ObjectColumn(present, size);
+        } else if (type == Long.class) {
+            column = new LongColumn(present, size);
+        } else if (type == Double.class) {
+            column = new DoubleColumn(present, size);
+        } else if (type == Boolean.class) {
+            column = new BooleanColumn(present);
+        } else if (type == String.class) {
+            column = new StringColumn(present, size);
+        } else {
+            column = new ObjectColumn(present, size);
+        }
+        for (int row = 0; row < size; row++) {
+            Map<String,Object> record = records.get(row);
+            if (record != null) {
+                Object value = record.get(name);
+                if (value != null) {
+                    column.set(row, value);
+                }
+            }
+        }
+        column.complete();
+        return column;
+    }
+
+    private static String intern(String name) {
+        String existing = NAMES.putIfAbsent(name, name);
+        return existing == null ? name : existing;
+    }
+
+    private static long bitSetBytes(int bits) {
+        return 40 + bits / 8;
+    }
+
+    private static long stringBytes(String value) {
+        return 40 + 2L * value.length();
+    }
+
+    // Booleans are shared instances, other values are estimated by their type
+    private static long valueBytes(Object value) {
+        if (value instanceof String) {
+            return stringBytes((String)value);
+        } else if (value instanceof Number) {
+            return 24;
+        } else if (value instanceof Boolean || value == null) {
+            return 0;
+        }
+        return 32 + 2L * String.valueOf(value).length();
+    }
+
+    /** The values of one property */
+    private abstract static class Column {
+        // The rows that have the property, or null if every object has it
+        private final BitSet present;
+
+        Column(BitSet present) {
+            this.present = present;
+        }
+
+        boolean isPresent(int row) {
+            return present == null || present.get(row);
+        }
+
+        /** Returns the value of the row, or null if the row doesn't have the property. */
+        abstract Object get(int row);
+
+        /** Called with every value that is not null (rows that aren't set are null). */
+        abstract void set(int row, Object value);
+
+        /** Called once every value has been set. */
+        void complete() {}
+
+        long estimateBytes() {
+            return present == null ? 0 : bitSetBytes(present.size());
+        }
+    }
+
+    /** A property that is null in every object that has it */
+    private static class NullColumn extends Column {
+        NullColumn(BitSet present) {
+            super(present);
+        }
+
+        @Override
+        Object get(int row) {
+            return null;
+        }
+
+        @Override
+        void set(int row, Object value) {
+            throw new IllegalStateException("The column only holds nulls.");
+        }
+    }
+
+    /** A column of primitive values, which tracks the rows that have a value rather than null */
+    private abstract static class PrimitiveColumn extends Column {
+        protected final BitSet set = new BitSet();
+
+        PrimitiveColumn(BitSet present) {
+            super(present);
+        }
+
+        @Override
+        Object get(int row) {
+            return isPresent(row) && set.get(row) ? getValue(row) : null;
+        }
+
+        abstract Object getValue(int row);
+
+        @Override
+        long estimateBytes() {
+            return super.estimateBytes() + bitSetBytes(set.size());
+        }
+    }
+
+    private static class LongColumn extends PrimitiveColumn {
+        private final long[] values;
+
+        LongColumn(BitSet present, int size) {
+            super(present);
+            this.values = new long[size];
+        }
+
+        @Override
+        void set(int row, Object value) {
+            values[row] = (Long)value;
+            set.set(row);
+        }
+
+        @Override
+        Object getValue(int row) {
+            return values[row];
+        }
+
+        @Override
+        long estimateBytes() {
+            return super.estimateBytes() + 16 + 8L * values.length;
+        }
+    }
+
+    private static class DoubleColumn extends PrimitiveColumn {
+        private final double[] values;
+
+        DoubleColumn(BitSet present, int size) {
+            super(present);
+            this.values = new double[size];
+        }
+
+        @Override
+        void set(int row, Object value) {
+            values[row] = (Double)value;
+            set.set(row);
+        }
+
+        @Override
+        Object getValue(int row) {
+            return values[row];
+        }
+
+        @Override
+        long estimateBytes() {
+            return super.estimateBytes() + 16 + 8L * values.length;
+        }
+    }
+
+    private static class BooleanColumn extends PrimitiveColumn {
+        private final BitSet values = new BitSet();
+
+        BooleanColumn(BitSet present) {
+            super(present);
+        }
+
+        @Override
+        void set(int row, Object value) {
+            values.set(row, (Boolean)value);
+            set.set(row);
+        }
+
+        @Override
+        Object getValue(int row) {
+            return values.get(row);
+        }
+
+        @Override
+        long estimateBytes() {
+            return super.estimateBytes() + bitSetBytes(values.size());
+        }
+    }
+
+    private static class StringColumn extends Column {
+        // Codes into the dictionary, -1 for null
+        private final int[] codes;
+        private Map<String,Integer> lookup = new HashMap<String,Integer>();
+        private String[] dictionary;
+
+        StringColumn(BitSet present, int size) {
+            super(present);
+            this.codes = new int[size];
+            Arrays.fill(codes, -1);
+        }
+
+        @Override
+        Object get(int row) {
+            int code = codes[row];
+            return code < 0 || !isPresent(row) ? null : dictionary[code];
+        }
+
+        @Override
+        void set(int row, Object value) {
+            Integer code = lookup.get(value);
+            if (code == null) {
+                code = lookup.size();
+                lookup.put((String)value, code);
+            }
+            codes[row] = code;
+        }
+
+        @Override
+        void complete() {
+            dictionary = new String[lookup.size()];
+            for (Map.Entry<String,Integer> entry : lookup.entrySet()) {
+                dictionary[entry.getValue()] = entry.getKey();
+            }
+            // The lookup is only needed while the column is built
+            lookup = null;
+        }
+
+        @Override
+        long estimateBytes() {
+            long bytes = super.estimateBytes() + 16 + 4L * codes.length + 16 + 4L * dictionary.length;
+            for (String value : dictionary) {
+                bytes += stringBytes(value);
+            }
+            return bytes;
+        }
+    }
+
+    private static class ObjectColumn extends Column {
+        private final Object[] values;
+
+        ObjectColumn(BitSet present, int size) {
+            super(present);
+            this.values = new Object[size];
+        }
+
+        @Override
+        Object get(int row) {
+            return isPresent(row) ? values[row] : null;
+        }
+
+        @Override
+        void set(int row, Object value) {
+            values[row] = value;
+        }
+
+        @Override
+        long estimateBytes() {
+            long bytes = super.estimateBytes() + 16 + 4L * values.length;
+            for (Object value : values) {
+                bytes += valueBytes(value);
+            }
+            return bytes;
+        }
+    }
+
+    /** A read-only view of one row, whose values are read from the columns when they are asked for */
+    private class Row extends AbstractMap<String,Object> {
+        private final int row;
+
+        Row(int row) {
+            this.row = row;
+        }
+
+        @Override
+        public Object get(Object key) {
+            Integer position = positions.get(key);
+            return position == null ? null : columns[position].get(row);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            Integer position = positions.get(key);
+            return position != null && columns[position].isPresent(row);
+        }
+
+        @Override
+        public Set<Map.Entry<String,Object>> entrySet() {
+            return new AbstractSet<Map.Entry<String,Object>>() {
+                @Override
+                public Iterator<Map.Entry<String,Object>> iterator() {
+                    return new Iterator<Map.Entry<String,Object>>() {
+                        private int next = advance(0);
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < columns.length;
+                        }
+
+                        @Override
+                        public Map.Entry<String,Object> next() {
+                            if (next >= columns.length) {
+                                throw new NoSuchElementException();
+                            }
+                            Property property = new Property(next);
+                            next = advance(next + 1);
+                            return property;
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    int count = 0;
+                    for (Column column : columns) {
+                        if (column.isPresent(row)) {
+                            count++;
+                        }
+                    }
+                    return count;
+                }
+            };
+        }
+
+        /** A property of the row, whose value is only read when it is asked for */
+        private class Property implements Map.Entry<String,Object> {
+            private final int position;
+
+            Property(int position) {
+                this.position = position;
+            }
+
+            @Override
+            public String getKey() {
+                return names[position];
+            }
+
+            @Override
+            public Object getValue() {
+                return columns[position].get(row);
+            }
+
+            @Override
+            public Object setValue(Object value) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public boolean equals(Object object) {
+                if (!(object instanceof Map.Entry)) {
+                    return false;
+                }
+                Map.Entry<?,?> entry = (Map.Entry<?,?>)object;
+                Object value = getValue();
+                return getKey().equals(entry.getKey())
+                    && (value == null ? entry.getValue() == null : value.equals(entry.getValue()));
+            }
+
+            @Override
+            public int hashCode() {
+                Object value = getValue();
+                return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+            }
+
+            @Override
+            public String toString() {
+                return getKey()+"="+getValue();
+            }
+        }
+
+        // Returns the position of the first property of the row at or after the position
+        private int advance(int position) {
+            while (position < columns.length && !columns[position].isPresent(row)) {
+                position++;
+            }
+            return position;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Decompresses a gzip or deflate encoded Harvest response as it is read.
+ *
+ * The adapter asks for compressed responses itself (rather than letting HttpClient do it) so that
+ * the decompressed stream goes straight to the parser and so that the bytes received can be
+ * compared to the bytes decoded.  Responses that are not encoded are passed through unchanged.
+ */
+class HarvestDecodingEntity extends HttpEntityWrapper {
+
+    /** The Accept-Encoding header value sent when compression is enabled */
+    static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private final String encoding;
+    private final boolean counted;
+    private InputStream content;
+    private long wireBytes;
+    private long decodedBytes;
+
+    private HarvestDecodingEntity(HttpEntity entity, String encoding, boolean counted) {
+        super(entity);
+        this.encoding = encoding;
+        this.counted = counted;
+    }
+
+    /**
+     * Returns the entity with its content decoded, or the entity itself if it is not encoded and the
+     * bytes don't need to be counted.
+     */
+    static HttpEntity decode(HttpEntity entity, boolean count) {
+        if (entity == null) {
+            return null;
+        }
+        Header header = entity.getContentEncoding();
+        String encoding = header == null || header.getValue() == null ? "" : header.getValue().trim().toLowerCase();
+        if ((encoding.isEmpty() || encoding.equals("identity")) && !count) {
+            return entity;
+        }
+        return new HarvestDecodingEntity(entity, encoding, count);
+    }
+
+    /** Returns the number of bytes read from the connection so far. */
+    long getWireBytes() {
+        return wireBytes;
+    }
+
+    /** Returns the number of decoded bytes read so far. */
+    long getDecodedBytes() {
+        return decodedBytes;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        // Streamed entities return the same stream each time, so the decoder does too
+        if (content == null) {
+            InputStream wire = super.getContent();
+            if (counted) {
+                wire = new FilterInputStream(wire) {
+                    @Override
+                    public int read() throws IOException {
+                        int read = super.read();
+                        if (read != -1) {
+                            wireBytes++;
+                        }
+                        return read;
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int length) throws IOException {
+                        int read = super.read(buffer, offset, length);
+                        if (read > 0) {
+                            wireBytes += read;
+                        }
+                        return read;
+                    }
+                };
+            }
+            InputStream decoded;
+            if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+                decoded = new GZIPInputStream(wire, 8192);
+            } else if (encoding.equals("deflate")) {
+                decoded = inflate(wire);
+            } else if (encoding.isEmpty() || encoding.equals("identity")) {
+                decoded = wire;
+            } else {
+                throw new IOException("Unsupported Content-Encoding returned by Harvest: "+encoding);
+            }
+            if (counted) {
+                decoded = new FilterInputStream(decoded) {
+                    @Override
+                    public int read() throws IOException {
+                        int read = super.read();
+                        if (read != -1) {
+                            decodedBytes++;
+                        }
+                        return read;
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int length) throws IOException {
+                        int read = super.read(buffer, offset, length);
+                        if (read > 0) {
+                            decodedBytes += read;
+                        }
+                        return read;
+                    }
+                };
+            }
+            content = decoded;
+        }
+        return content;
+    }
+
+    @Override
+    public Header getContentEncoding() {
+        return null;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    // "deflate" should be zlib wrapped, but some servers send a raw deflate stream, so the zlib
+    // header is checked for before inflating
+    private InputStream inflate(InputStream wire) throws IOException {
+        PushbackInputStream stream = new PushbackInputStream(wire, 2);
+        byte[] header = new byte[2];
+        int length = 0;
+        int read;
+        while (length < 2 && (read = stream.read(header, length, 2 - length)) != -1) {
+            length += read;
+        }
+        if (length > 0) {
+            stream.unread(header, 0, length);
+        }
+        boolean zlib = length == 2 && (header[0] & 0x0F) == 8
+            && (((header[0] & 0xFF) << 8) | (header[1] & 0xFF)) % 31 == 0;
+        final Inflater inflater = new Inflater(!zlib);
+        return new InflaterInputStream(stream, inflater, 8192) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // Inflaters that aren't the stream's default aren't released when it is closed
+                    inflater.end();
+                }
+            }
+        };
+    }
+}
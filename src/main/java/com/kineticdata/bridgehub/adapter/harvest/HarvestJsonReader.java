@@ -0,0 +1,299 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Streaming reader for Harvest responses.
+ *
+ * Harvest wraps each returned object in a single property named after the structure (its
+ * envelope, see {@link HarvestStructure#getEnvelope()}), ie. [{"project":{...}},{"project":{...}}]
+ * for a list or {"project":{...}} for a single object.  Objects that aren't wrapped in the envelope
+ * are read as they are.  This reader is driven by the json-simple SAX style parser and builds only
+ * the unwrapped objects, and only the properties of those objects that were requested.  Values of
+ * properties that are not kept are skipped without being built.
+ *
+ * Responses that are only counted are scanned by {@link #count(InputStream)} instead, which does
+ * not build any objects at all.
+ */
+class HarvestJsonReader implements ContentHandler {
+
+    private final boolean list;
+    private final String envelope;
+    private final Set<String> fields;
+    // The number of open containers before an envelope object starts
+    private final int envelopeDepth;
+
+    private final List<Map<String,Object>> records = new ArrayList<Map<String,Object>>();
+    private int depth;
+    private int envelopeKeys;
+    private Map<String,Object> record;
+    // Whether the current object is wrapped in an envelope, and the depth of its properties
+    private boolean wrapped;
+    private int fieldDepth;
+    private String field;
+    private boolean keep;
+    // The containers (and the current key of object containers) of the property value being built
+    private final LinkedList<Object> containers = new LinkedList<Object>();
+    private final LinkedList<String> keys = new LinkedList<String>();
+    private String error;
+
+    /**
+     * @param list true if the response is an array of objects, false for a single object
+     * @param envelope the key objects are wrapped in, or null if every object is wrapped in one key
+     * @param fields the properties to keep, or null to keep all of them
+     */
+    private HarvestJsonReader(boolean list, String envelope, Set<String> fields) {
+        this.list = list;
+        this.envelope = envelope;
+        this.fields = fields;
+        this.envelopeDepth = list ? 1 : 0;
+    }
+
+    /**
+     * Reads the response and returns the unwrapped objects.  A single object response is returned
+     * as a list of one object.  Wrappers with a null value are returned as null entries.  Objects
+     * whose first key isn't the envelope are bare, and are returned as they are.
+     */
+    static List<Map<String,Object>> read(Reader reader, boolean list, String envelope, Set<String> fields)
+        throws IOException, BridgeError
+    {
+        HarvestJsonReader handler = new HarvestJsonReader(list, envelope, fields);
+        try {
+            new JSONParser().parse(reader, handler);
+        } catch (ParseException e) {
+            throw new BridgeError("Unable to parse the Harvest response: "+e, e);
+        }
+        if (handler.error != null) {
+            throw new BridgeError(handler.error);
+        }
+        return handler.records;
+    }
+
+    /**
+     * Counts the elements of the top level array of a list response by scanning the raw UTF-8 (or
+     * ASCII) bytes.  Only the array nesting and string boundaries are tracked, so no strings or
+     * objects are created for the elements.
+     */
+    static int count(InputStream stream) throws IOException, BridgeError {
+        byte[] buffer = new byte[8192];
+        int depth = 0;
+        int count = 0;
+        boolean started = false;
+        boolean inString = false;
+        boolean escaped = false;
+        // True once the current top level element has been counted
+        boolean counted = false;
+        int read;
+        while ((read = stream.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                byte b = buffer[i];
+                if (inString) {
+                    if (escaped) {
+                        escaped = false;
+                    } else if (b == '\\') {
+                        escaped = true;
+                    } else if (b == '"') {
+                        inString = false;
+                    }
+                    continue;
+                }
+                if (b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                    continue;
+                }
+                if (!started) {
+                    if (b != '[') {
+                        throw new BridgeError("Unexpected response returned by Harvest, expected a list.");
+                    }
+                    started = true;
+                    depth = 1;
+                    continue;
+                }
+                if (depth == 0) {
+                    throw new BridgeError("Unexpected content after the list returned by Harvest.");
+                }
+                if (depth == 1) {
+                    if (b == ',') {
+                        counted = false;
+                        continue;
+                    } else if (b == ']') {
+                        depth = 0;
+                        continue;
+                    } else if (!counted) {
+                        count++;
+                        counted = true;
+                    }
+                }
+                if (b == '"') {
+                    inString = true;
+                } else if (b == '[' || b == '{') {
+                    depth++;
+                } else if (b == ']' || b == '}') {
+                    depth--;
+                }
+            }
+        }
+        if (depth != 0 || inString) {
+            throw new BridgeError("Unable to parse the Harvest response: the list was not complete.");
+        }
+        return count;
+    }
+
+    @Override
+    public void startJSON() {}
+
+    @Override
+    public void endJSON() {}
+
+    @Override
+    public boolean startObject() {
+        if (depth == envelopeDepth) {
+            // The object is known to be wrapped or bare once its first key is read
+            envelopeKeys = 0;
+            wrapped = false;
+            fieldDepth = Integer.MAX_VALUE;
+            record = null;
+        } else if (wrapped && depth == envelopeDepth + 1) {
+            record = newObject();
+        } else if (isValue()) {
+            if (keep) {
+                JSONObject object = new JSONObject();
+                addValue(object);
+                containers.addLast(object);
+            }
+        } else {
+            return fail("Unexpected object returned by Harvest.");
+        }
+        depth++;
+        return true;
+    }
+
+    @Override
+    public boolean endObject() {
+        depth--;
+        if (depth == envelopeDepth) {
+            if (wrapped && envelopeKeys != 1) {
+                return fail("Only one key is valid from responce object.");
+            }
+            // An empty object is a bare object without any properties
+            records.add(fieldDepth == Integer.MAX_VALUE ? newObject() : record);
+        } else if (isValue() && keep) {
+            containers.removeLast();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean startObjectEntry(String key) {
+        if (depth == envelopeDepth + 1 && fieldDepth == Integer.MAX_VALUE) {
+            wrapped = envelope == null || envelope.equals(key);
+            fieldDepth = wrapped ? envelopeDepth + 2 : envelopeDepth + 1;
+            if (!wrapped) {
+                record = newObject();
+            }
+        }
+        if (wrapped && depth == envelopeDepth + 1) {
+            envelopeKeys++;
+        } else if (depth == fieldDepth) {
+            field = key;
+            keep = fields == null || fields.contains(key);
+        } else if (keep) {
+            keys.addLast(key);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endObjectEntry() {
+        if (depth > fieldDepth && keep) {
+            keys.removeLast();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean startArray() {
+        if (depth == 0 && list) {
+            // The top level array
+        } else if (isValue()) {
+            if (keep) {
+                JSONArray array = new JSONArray();
+                addValue(array);
+                containers.addLast(array);
+            }
+        } else {
+            return fail("Unexpected array returned by Harvest.");
+        }
+        depth++;
+        return true;
+    }
+
+    @Override
+    public boolean endArray() {
+        depth--;
+        if (isValue() && keep) {
+            containers.removeLast();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean primitive(Object value) {
+        if (wrapped && depth == envelopeDepth + 1) {
+            // The wrapped value is not an object (ie. {"project":null})
+            record = null;
+        } else if (isValue()) {
+            if (keep) {
+                addValue(value);
+            }
+        } else {
+            return fail("Unexpected value returned by Harvest.");
+        }
+        return true;
+    }
+
+    // Returns true if the parser is within the value of a property of a record
+    private boolean isValue() {
+        return depth > envelopeDepth && depth >= fieldDepth;
+    }
+
+    // Adds the value to the container currently being built, or to the record if the value
+    // belongs directly to a property of the record.
+    @SuppressWarnings("unchecked") // JSONArray and JSONObject are raw collections
+    private void addValue(Object value) {
+        if (containers.isEmpty()) {
+            record.put(field, value);
+        } else {
+            Object container = containers.getLast();
+            if (container instanceof JSONArray) {
+                ((JSONArray)container).add(value);
+            } else {
+                ((JSONObject)container).put(keys.getLast(), value);
+            }
+        }
+    }
+
+    // Records are JSONObjects so that they are written as JSON
+    @SuppressWarnings("unchecked") // JSONObject is a raw map
+    private static Map<String,Object> newObject() {
+        return new JSONObject();
+    }
+
+    // Records the error and stops the parser
+    private boolean fail(String message) {
+        error = message;
+        return false;
+    }
+}
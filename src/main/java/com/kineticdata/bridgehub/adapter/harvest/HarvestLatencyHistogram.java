@@ -0,0 +1,84 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies.
+ *
+ * Latencies are counted in power of two microsecond buckets (under 1us, under 2us, under 4us, ...),
+ * so recording one is a few atomic increments and never allocates.  Percentiles are reported as the
+ * upper bound of the bucket they fall in (and never more than the largest recorded latency), which
+ * is within a factor of two of the actual value.
+ */
+class HarvestLatencyHistogram {
+
+    // Bucket i holds latencies below 2^i microseconds, and the last bucket holds everything longer
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+            // Another thread recorded a new maximum, check again
+        }
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    /** Returns the mean latency in microseconds. */
+    long getMeanMicros() {
+        long current = count.get();
+        return current == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos.get() / current);
+    }
+
+    /** Returns the largest latency in microseconds. */
+    long getMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxNanos.get());
+    }
+
+    /** Returns the latency (in microseconds) that the fraction (ie. 0.99) of latencies are below. */
+    long getPercentileMicros(double fraction) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(1L << i, getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+}
@@ -0,0 +1,487 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters and phase timings of the adapter's calls.
+ *
+ * Each count, retrieve and search is split into phases (qualification parse, url build, connection
+ * lease, HTTP wait, body read, JSON parse and record build) whose latencies are kept in histograms,
+ * along with per structure call counts and latencies and the status codes Harvest returned.  The
+ * statistics kept by the cache, coalescer, rate limiter, retry policy, circuit breaker, retrieve
+ * batcher, warm-up and mirror are reported with them.  Metrics are published as an MXBean and, if
+ * one is configured, sent to a {@link HarvestMetricsRegistry}.
+ *
+ * When metrics are disabled every method returns immediately without reading the clock or
+ * allocating, so the instrumentation can stay in the call paths.
+ */
+class HarvestMetrics implements HarvestMetricsMXBean {
+
+    /** Defines the logger */
+    protected static final Logger logger = LoggerFactory.getLogger(HarvestMetrics.class);
+
+    /** The timed phases of a call */
+    enum Phase {
+        QUALIFICATION_PARSE("qualificationParse"),
+        URL_BUILD("urlBuild"),
+        // Includes establishing a new connection when there is no pooled connection to reuse
+        CONNECTION_LEASE("connectionLease"),
+        // From sending the request until the response headers have been received
+        HTTP_WAIT("httpWait"),
+        // Time spent waiting on the response body stream while it is parsed
+        BODY_READ("bodyRead"),
+        JSON_PARSE("jsonParse"),
+        RECORD_BUILD("recordBuild");
+
+        private final String name;
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        String getName() {
+            return name;
+        }
+    }
+
+    /** The adapter calls */
+    enum Operation {
+        COUNT("count"), RETRIEVE("retrieve"), SEARCH("search");
+
+        private final String name;
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        String getName() {
+            return name;
+        }
+    }
+
+    /** A metrics instance that records nothing */
+    static final HarvestMetrics DISABLED = new HarvestMetrics(false, null);
+
+    // The context attribute that the request executor stores the HTTP wait in
+    private static final String HTTP_WAIT_ATTRIBUTE = HarvestMetrics.class.getName() + ".httpWait";
+
+    // Call counts, errors and latencies of one structure
+    private static class StructureMetrics {
+        private final AtomicLongArray calls = new AtomicLongArray(Operation.values().length);
+        private final AtomicLongArray errors = new AtomicLongArray(Operation.values().length);
+        private final HarvestLatencyHistogram[] latencies = new HarvestLatencyHistogram[Operation.values().length];
+
+        StructureMetrics() {
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new HarvestLatencyHistogram();
+            }
+        }
+    }
+
+    private final boolean enabled;
+    private final HarvestMetricsRegistry registry;
+    private final HarvestLatencyHistogram[] phases = new HarvestLatencyHistogram[Phase.values().length];
+    private final ConcurrentMap<String,StructureMetrics> structures = new ConcurrentHashMap<String,StructureMetrics>();
+    private final AtomicLongArray statuses = new AtomicLongArray(600);
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong wireBytes = new AtomicLong();
+    private final AtomicLong decodedBytes = new AtomicLong();
+
+    // The components whose own statistics are reported with the metrics
+    private HarvestResponseCache cache;
+    private HarvestRequestCoalescer coalescer;
+    private HarvestRateLimiter rateLimiter;
+    private HarvestRetryPolicy retryPolicy;
+    private HarvestCircuitBreaker circuitBreaker;
+    private HarvestRetrieveBatcher retrieveBatcher;
+    private HarvestWarmUp warmUp;
+    private HarvestSnapshot snapshot;
+    private HarvestMirror mirror;
+    private ObjectName objectName;
+
+    /**
+     * @param registry also receives every measurement, or null
+     */
+    HarvestMetrics(boolean enabled, HarvestMetricsRegistry registry) {
+        this.enabled = enabled;
+        this.registry = registry;
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new HarvestLatencyHistogram();
+        }
+    }
+
+    /**
+     * Sets the components whose statistics are reported with the metrics (the warm-up, snapshot and
+     * mirror may be null).
+     */
+    void setSources(HarvestResponseCache cache, HarvestRequestCoalescer coalescer, HarvestRateLimiter rateLimiter,
+        HarvestRetryPolicy retryPolicy, HarvestCircuitBreaker circuitBreaker, HarvestRetrieveBatcher retrieveBatcher,
+        HarvestWarmUp warmUp, HarvestSnapshot snapshot, HarvestMirror mirror)
+    {
+        if (!enabled) {
+            return;
+        }
+        this.cache = cache;
+        this.coalescer = coalescer;
+        this.rateLimiter = rateLimiter;
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = circuitBreaker;
+        this.retrieveBatcher = retrieveBatcher;
+        this.warmUp = warmUp;
+        this.snapshot = snapshot;
+        this.mirror = mirror;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Returns the start time of something being timed (0 if metrics are disabled). */
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /** Records a phase that started at the time returned by {@link #start()}. */
+    void recordPhase(String structure, Phase phase, long start) {
+        if (enabled) {
+            recordPhaseNanos(structure, phase, System.nanoTime() - start);
+        }
+    }
+
+    void recordPhaseNanos(String structure, Phase phase, long nanos) {
+        if (!enabled) {
+            return;
+        }
+        phases[phase.ordinal()].record(nanos);
+        if (registry != null) {
+            registry.recordPhase(structure, phase.getName(), nanos);
+        }
+    }
+
+    /** Records a call that started at the time returned by {@link #start()}. */
+    void recordCall(String structure, Operation operation, long start, boolean failed) {
+        if (!enabled) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        StructureMetrics metrics = getStructureMetrics(structure);
+        metrics.calls.incrementAndGet(operation.ordinal());
+        if (failed) {
+            metrics.errors.incrementAndGet(operation.ordinal());
+        }
+        metrics.latencies[operation.ordinal()].record(nanos);
+        if (registry != null) {
+            registry.recordCall(structure, operation.getName(), nanos, failed);
+        }
+    }
+
+    /**
+     * Records the connection lease and HTTP wait phases of a request that was executed with the
+     * context (see {@link #createRequestExecutor()}) and the status code of its response.
+     */
+    void recordResponse(String structure, long start, HttpContext context, int status) {
+        if (!enabled) {
+            return;
+        }
+        long total = System.nanoTime() - start;
+        Object wait = context == null ? null : context.getAttribute(HTTP_WAIT_ATTRIBUTE);
+        if (wait instanceof Long) {
+            long waitNanos = (Long)wait;
+            recordPhaseNanos(structure, Phase.CONNECTION_LEASE, total - waitNanos);
+            recordPhaseNanos(structure, Phase.HTTP_WAIT, waitNanos);
+        } else {
+            // The async client doesn't expose the exchange, so the whole request (up to receiving
+            // the response headers) is the HTTP wait
+            recordPhaseNanos(structure, Phase.HTTP_WAIT, total);
+        }
+        requests.incrementAndGet();
+        if (status >= 0 && status < statuses.length()) {
+            statuses.incrementAndGet(status);
+        }
+        if (registry != null) {
+            registry.recordStatus(structure, status);
+        }
+    }
+
+    /**
+     * Returns the entity with its body wrapped so that the time spent waiting on the stream can be
+     * measured, or the entity itself if metrics are disabled.
+     */
+    HttpEntity timeBody(HttpEntity entity) {
+        return enabled && entity != null ? new TimedEntity(entity) : entity;
+    }
+
+    /**
+     * Records the body read and JSON parse phases of reading an entity returned by
+     * {@link #timeBody(HttpEntity)}, where reading started at start.
+     */
+    void recordBody(String structure, HttpEntity entity, long start) {
+        if (!enabled) {
+            return;
+        }
+        long total = System.nanoTime() - start;
+        long read = entity instanceof TimedEntity ? ((TimedEntity)entity).readNanos : 0;
+        recordPhaseNanos(structure, Phase.BODY_READ, read);
+        recordPhaseNanos(structure, Phase.JSON_PARSE, total - read);
+    }
+
+    /**
+     * Records the bytes received and decoded for an entity returned by
+     * {@link HarvestDecodingEntity#decode(HttpEntity, boolean)} once it has been read.
+     */
+    void recordBytes(String structure, HttpEntity entity) {
+        if (!enabled || !(entity instanceof HarvestDecodingEntity)) {
+            return;
+        }
+        HarvestDecodingEntity decoded = (HarvestDecodingEntity)entity;
+        wireBytes.addAndGet(decoded.getWireBytes());
+        decodedBytes.addAndGet(decoded.getDecodedBytes());
+        if (registry != null) {
+            registry.recordBytes(structure, decoded.getWireBytes(), decoded.getDecodedBytes());
+        }
+    }
+
+    /** Returns a request executor that records the HTTP wait of each request in its context. */
+    HttpRequestExecutor createRequestExecutor() {
+        return new HttpRequestExecutor() {
+            @Override
+            public HttpResponse execute(HttpRequest request, HttpClientConnection connection, HttpContext context)
+                throws IOException, HttpException
+            {
+                if (!enabled) {
+                    return super.execute(request, connection, context);
+                }
+                long start = System.nanoTime();
+                try {
+                    return super.execute(request, connection, context);
+                } finally {
+                    context.setAttribute(HTTP_WAIT_ATTRIBUTE, System.nanoTime() - start);
+                }
+            }
+        };
+    }
+
+    /** Registers the metrics with the platform MBean server (if they are enabled). */
+    synchronized void register(String name) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            ObjectName candidate = new ObjectName("com.kineticdata.bridgehub.adapter.harvest:type=HarvestAdapter,name="
+                + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new StandardMBean(this, HarvestMetricsMXBean.class, true), candidate);
+            objectName = candidate;
+        } catch (JMException e) {
+            logger.warn("Unable to register the Harvest metrics MBean for "+name+".", e);
+        }
+    }
+
+    synchronized void unregister() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                logger.debug("Unable to unregister the Harvest metrics MBean "+objectName+".", e);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public Map<String,Long> getCounters() {
+        Map<String,Long> counters = new TreeMap<String,Long>();
+        for (Map.Entry<String,StructureMetrics> entry : structures.entrySet()) {
+            for (Operation operation : Operation.values()) {
+                long calls = entry.getValue().calls.get(operation.ordinal());
+                if (calls > 0) {
+                    counters.put("calls."+operation.getName()+"."+entry.getKey(), calls);
+                    counters.put("errors."+operation.getName()+"."+entry.getKey(),
+                        entry.getValue().errors.get(operation.ordinal()));
+                }
+            }
+        }
+        counters.put("requests", requests.get());
+        counters.put("bytes.wire", wireBytes.get());
+        counters.put("bytes.decoded", decodedBytes.get());
+        for (int status = 0; status < statuses.length(); status++) {
+            long count = statuses.get(status);
+            if (count > 0) {
+                counters.put("status."+status, count);
+            }
+        }
+        if (cache != null) {
+            counters.put("cache.entries", (long)cache.size());
+            counters.put("cache.hits", cache.getHits());
+            counters.put("cache.misses", cache.getMisses());
+            counters.put("cache.evictions", cache.getEvictions());
+            counters.put("cache.revalidations", cache.getRevalidations());
+            counters.put("cache.staleServed", cache.getStaleServed());
+            counters.put("cache.indexBytes", cache.getIndexBytes());
+            for (Map.Entry<String,Long> bytes : cache.getRecordBytes().entrySet()) {
+                counters.put("cache.recordBytes."+bytes.getKey(), bytes.getValue());
+            }
+        }
+        if (coalescer != null) {
+            counters.put("coalesced", coalescer.getCoalesced());
+        }
+        if (rateLimiter != null) {
+            counters.put("rateLimit.waits", rateLimiter.getWaits());
+            counters.put("rateLimit.waitMillis", rateLimiter.getWaitMillis());
+        }
+        if (retryPolicy != null) {
+            counters.put("retries", retryPolicy.getRetries());
+            counters.put("retries.waitMillis", retryPolicy.getRetryWaitMillis());
+            counters.put("retries.maxWaitMillis", retryPolicy.getMaxRetryWaitMillis());
+        }
+        if (circuitBreaker != null) {
+            counters.put("circuit.open", (long)circuitBreaker.getOpenCircuits());
+            counters.put("circuit.opened", circuitBreaker.getOpened());
+            counters.put("circuit.rejected", circuitBreaker.getRejected());
+        }
+        if (retrieveBatcher != null) {
+            counters.put("batch.lists", retrieveBatcher.getBatches());
+            counters.put("batch.retrieves", retrieveBatcher.getBatched());
+        }
+        if (warmUp != null && warmUp.getMillis() >= 0) {
+            counters.put("warmUp.millis", warmUp.getMillis());
+        }
+        if (snapshot != null) {
+            // Unknown until a snapshot has been loaded or written
+            if (snapshot.getLoadBytes() >= 0) {
+                counters.put("snapshot.loadMillis", snapshot.getLoadMillis());
+                counters.put("snapshot.loadBytes", snapshot.getLoadBytes());
+            }
+            if (snapshot.getWriteBytes() >= 0) {
+                counters.put("snapshot.writeMillis", snapshot.getWriteMillis());
+                counters.put("snapshot.writeBytes", snapshot.getWriteBytes());
+            }
+        }
+        if (mirror != null) {
+            counters.put("mirror.indexBytes", mirror.getIndexBytes());
+            for (Map.Entry<String,Long> bytes : mirror.getRecordBytes().entrySet()) {
+                counters.put("mirror.recordBytes."+bytes.getKey(), bytes.getValue());
+            }
+        }
+        return counters;
+    }
+
+    @Override
+    public Map<String,Long> getLatencies() {
+        Map<String,Long> latencies = new TreeMap<String,Long>();
+        for (Phase phase : Phase.values()) {
+            putLatencies(latencies, "phase."+phase.getName(), phases[phase.ordinal()]);
+        }
+        for (Map.Entry<String,StructureMetrics> entry : structures.entrySet()) {
+            for (Operation operation : Operation.values()) {
+                putLatencies(latencies, operation.getName()+"."+entry.getKey(),
+                    entry.getValue().latencies[operation.ordinal()]);
+            }
+        }
+        return latencies;
+    }
+
+    @Override
+    public void reset() {
+        for (HarvestLatencyHistogram histogram : phases) {
+            histogram.reset();
+        }
+        structures.clear();
+        for (int status = 0; status < statuses.length(); status++) {
+            statuses.set(status, 0);
+        }
+        requests.set(0);
+        wireBytes.set(0);
+        decodedBytes.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "counters="+getCounters()+", latencies="+getLatencies();
+    }
+
+    private void putLatencies(Map<String,Long> latencies, String name, HarvestLatencyHistogram histogram) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+        latencies.put(name+".count", histogram.getCount());
+        latencies.put(name+".mean", histogram.getMeanMicros());
+        latencies.put(name+".p50", histogram.getPercentileMicros(0.5));
+        latencies.put(name+".p99", histogram.getPercentileMicros(0.99));
+        latencies.put(name+".max", histogram.getMaxMicros());
+    }
+
+    private StructureMetrics getStructureMetrics(String structure) {
+        StructureMetrics metrics = structures.get(structure);
+        if (metrics == null) {
+            StructureMetrics created = new StructureMetrics();
+            metrics = structures.putIfAbsent(structure, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    // Wraps an entity's content so the time spent blocked reading it is added up
+    private static class TimedEntity extends HttpEntityWrapper {
+        private long readNanos;
+        private InputStream content;
+
+        TimedEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            // Streamed entities return the same stream each time, so the wrapper does too
+            if (content == null) {
+                content = new FilterInputStream(super.getContent()) {
+                    @Override
+                    public int read() throws IOException {
+                        long start = System.nanoTime();
+                        try {
+                            return super.read();
+                        } finally {
+                            readNanos += System.nanoTime() - start;
+                        }
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int length) throws IOException {
+                        long start = System.nanoTime();
+                        try {
+                            return super.read(buffer, offset, length);
+                        } finally {
+                            readNanos += System.nanoTime() - start;
+                        }
+                    }
+                };
+            }
+            return content;
+        }
+    }
+}
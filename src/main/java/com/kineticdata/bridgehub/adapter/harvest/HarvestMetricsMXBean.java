@@ -0,0 +1,25 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import java.util.Map;
+
+/**
+ * JMX view of an adapter's metrics, registered as
+ * com.kineticdata.bridgehub.adapter.harvest:type=HarvestAdapter,name="{username}@{endpoint}".
+ */
+public interface HarvestMetricsMXBean {
+
+    /**
+     * Returns the counters, ie. calls.search.Clients, errors.search.Clients, status.200,
+     * bytes.wire, bytes.decoded, cache.hits, coalesced, rateLimit.waits or retries.
+     */
+    Map<String,Long> getCounters();
+
+    /**
+     * Returns the count, mean, p50, p99 and max (in microseconds) of each phase and of each
+     * operation per structure, ie. phase.jsonParse.p99 or search.Clients.mean
+     */
+    Map<String,Long> getLatencies();
+
+    /** Resets the counters and latencies that are kept by the metrics (not the cache statistics). */
+    void reset();
+}
@@ -0,0 +1,36 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+/**
+ * Receives the measurements made by the adapter so they can be published to a metrics system.
+ *
+ * An implementation is configured with the adapter's Metrics Registry Class property and must
+ * have a public no argument constructor.  The methods are called on the threads making Harvest
+ * calls, so they must be thread safe and return quickly.
+ */
+public interface HarvestMetricsRegistry {
+
+    /**
+     * Records how long a phase of a call took.
+     *
+     * @param structure the structure being called
+     * @param phase qualificationParse, urlBuild, connectionLease, httpWait, bodyRead, jsonParse or
+     *     recordBuild
+     */
+    void recordPhase(String structure, String phase, long nanos);
+
+    /**
+     * Records a completed count, retrieve or search call.
+     *
+     * @param failed true if the call threw an error
+     */
+    void recordCall(String structure, String operation, long nanos, boolean failed);
+
+    /** Records the status code of a response received from Harvest. */
+    void recordStatus(String structure, int status);
+
+    /**
+     * Records the size of a response body as it was received (which may be compressed) and once it
+     * was decoded.
+     */
+    void recordBytes(String structure, long wireBytes, long decodedBytes);
+}
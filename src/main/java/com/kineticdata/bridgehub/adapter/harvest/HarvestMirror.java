@@ -0,0 +1,315 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local, incrementally refreshed copy of Harvest structures.
+ *
+ * A background thread does a full load of each mirrored structure and then refreshes it with
+ * updated_since delta requests, merging the changed objects by id.  Because deltas do not include
+ * deleted objects a full load is repeated periodically.  Requests are only answered from the mirror
+ * while its copy is within the structure's staleness bound; otherwise (or if the query uses
+ * something that can't be evaluated locally) the caller goes to Harvest.  Each refreshed copy is
+ * indexed (see {@link HarvestRecordIndex}) so queries on the common keys don't scan every object,
+ * and large copies are stored column by column (see {@link HarvestColumnarRecords}).
+ * Structures restored from a snapshot (see {@link HarvestSnapshot}) start with a delta refresh.
+ */
+class HarvestMirror {
+
+    /** Defines the logger */
+    protected static final Logger logger = LoggerFactory.getLogger(HarvestMirror.class);
+
+    /** Loads a structure from Harvest, either completely or only the objects updated since a time */
+    interface Loader {
+        List<Map<String,Object>> load(String structure, String updatedSince) throws BridgeError;
+    }
+
+    /** The records and refresh state of a mirrored structure, as saved in a snapshot */
+    static class State {
+        private final String structure;
+        private final String cursor;
+        private final long syncedAt;
+        private final long fullLoadAt;
+        private final List<Map<String,Object>> records;
+
+        State(String structure, String cursor, long syncedAt, long fullLoadAt, List<Map<String,Object>> records) {
+            this.structure = structure;
+            this.cursor = cursor;
+            this.syncedAt = syncedAt;
+            this.fullLoadAt = fullLoadAt;
+            this.records = records;
+        }
+
+        String getStructure() {
+            return structure;
+        }
+
+        /** Returns the updated_since value of the next delta refresh. */
+        String getCursor() {
+            return cursor;
+        }
+
+        long getSyncedAt() {
+            return syncedAt;
+        }
+
+        long getFullLoadAt() {
+            return fullLoadAt;
+        }
+
+        List<Map<String,Object>> getRecords() {
+            return records;
+        }
+    }
+
+    /** The mirrored copy of a single structure */
+    static class MirroredStructure {
+        private final String name;
+        private final long refreshInterval;
+        private final long maxStaleness;
+        // Replaced (never modified) on each refresh, so readers don't need to lock
+        private volatile HarvestRecordIndex index;
+        private volatile long recordBytes;
+        private volatile long syncedAt;
+        // Read by snapshots while the structure is refreshed
+        private volatile String cursor;
+        private volatile long fullLoadAt;
+
+        MirroredStructure(String name, long refreshInterval, long maxStaleness) {
+            this.name = name;
+            this.refreshInterval = refreshInterval;
+            this.maxStaleness = maxStaleness;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /** Returns the indexed records if they are within the staleness bound, otherwise null. */
+        HarvestRecordIndex getIndex(long now) {
+            HarvestRecordIndex current = index;
+            return current != null && now - syncedAt <= maxStaleness ? current : null;
+        }
+    }
+
+    private final Loader loader;
+    private final long fullReloadInterval;
+    private final int columnarThreshold;
+    private final Map<String,MirroredStructure> structures = new LinkedHashMap<String,MirroredStructure>();
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param loader used to retrieve the structures from Harvest
+     * @param fullReloadInterval how often (in milliseconds) a structure is completely reloaded
+     * @param columnarThreshold structures with at least this many objects are stored column by column
+     *     (see {@link HarvestColumnarRecords}), 0 never does
+     */
+    HarvestMirror(Loader loader, long fullReloadInterval, int columnarThreshold) {
+        this.loader = loader;
+        this.fullReloadInterval = fullReloadInterval;
+        this.columnarThreshold = columnarThreshold;
+    }
+
+    /**
+     * Adds a structure to the mirror.
+     *
+     * @param refreshInterval how often (in milliseconds) the structure is refreshed
+     * @param maxStaleness how old (in milliseconds) the copy may be and still be used
+     */
+    void addStructure(String structure, long refreshInterval, long maxStaleness) throws BridgeError {
+        HarvestStructure definition = HarvestStructure.get(structure);
+        if (definition == null || !definition.isMirrorable()) {
+            throw new BridgeError("The "+structure+" structure can not be mirrored.");
+        }
+        structures.put(structure, new MirroredStructure(structure, refreshInterval, maxStaleness));
+    }
+
+    /** Returns true if the structure is mirrored. */
+    boolean contains(String structure) {
+        return structures.containsKey(structure);
+    }
+
+    boolean isEmpty() {
+        return structures.isEmpty();
+    }
+
+    /** Starts loading and refreshing the mirrored structures in the background. */
+    synchronized void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Harvest Mirror");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (final MirroredStructure structure : structures.values()) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    refresh(structure);
+                }
+            }, 0, Math.max(1000, structure.refreshInterval), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Stops refreshing the mirrored structures. */
+    synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Returns the mirrored objects of the structure that match all of the conditions, or null if
+     * the mirror can't answer (the structure isn't mirrored, the copy is too stale, or a condition
+     * is not a property of the objects).
+     */
+    List<Map<String,Object>> search(String structure, Map<String,String> conditions) {
+        MirroredStructure mirrored = structures.get(structure);
+        HarvestRecordIndex index = mirrored == null ? null : mirrored.getIndex(System.currentTimeMillis());
+        return index == null ? null : index.select(conditions);
+    }
+
+    /**
+     * Returns a list containing the mirrored object identified by the structure's retrieve key (or
+     * an empty list if there is no such object), or null if the mirror can't answer.
+     */
+    List<Map<String,Object>> retrieve(String structure, Map<String,String> conditions) {
+        HarvestStructure definition = HarvestStructure.get(structure);
+        String key = definition == null ? null : definition.getIdKey();
+        if (key == null || !conditions.containsKey(key)) {
+            return null;
+        }
+        Map<String,String> idConditions = new HashMap<String,String>(conditions);
+        idConditions.put("id", idConditions.remove(key));
+        return search(structure, idConditions);
+    }
+
+    /** Returns the state of each structure that has been loaded, to be saved in a snapshot. */
+    List<State> getStates() {
+        List<State> states = new ArrayList<State>();
+        for (MirroredStructure mirrored : structures.values()) {
+            // The cursor is read first because a refresh replaces the records before the cursor, so
+            // restored records are never older than their cursor
+            String cursor = mirrored.cursor;
+            long fullLoadAt = mirrored.fullLoadAt;
+            HarvestRecordIndex index = mirrored.index;
+            if (index != null && cursor != null) {
+                states.add(new State(mirrored.name, cursor, mirrored.syncedAt, fullLoadAt, index.getRecords()));
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Restores a structure from a snapshot before the mirror is started, so that its first refresh
+     * is a delta from the saved cursor (unless a full load is due).  Returns false if the structure
+     * is not mirrored.
+     */
+    boolean restore(State state) {
+        MirroredStructure mirrored = structures.get(state.getStructure());
+        if (mirrored == null || state.getCursor() == null) {
+            return false;
+        }
+        setRecords(mirrored, new ArrayList<Map<String,Object>>(state.getRecords()));
+        mirrored.cursor = state.getCursor();
+        mirrored.fullLoadAt = state.getFullLoadAt();
+        mirrored.syncedAt = state.getSyncedAt();
+        return true;
+    }
+
+    /** Returns the estimated number of bytes used by the records of each loaded structure. */
+    Map<String,Long> getRecordBytes() {
+        Map<String,Long> bytes = new TreeMap<String,Long>();
+        for (MirroredStructure mirrored : structures.values()) {
+            if (mirrored.index != null) {
+                bytes.put(mirrored.name, mirrored.recordBytes);
+            }
+        }
+        return bytes;
+    }
+
+    /** Returns the estimated number of bytes used by the indexes of the mirrored structures. */
+    long getIndexBytes() {
+        long bytes = 0;
+        for (MirroredStructure mirrored : structures.values()) {
+            HarvestRecordIndex index = mirrored.index;
+            if (index != null) {
+                bytes += index.getEstimatedBytes();
+            }
+        }
+        return bytes;
+    }
+
+    // Loads the structure completely or merges the objects updated since the last refresh
+    void refresh(MirroredStructure structure) {
+        long start = System.currentTimeMillis();
+        // Harvest compares updated_since to the minute, so the next delta overlaps this one slightly
+        String cursor = formatCursor(new Date(start - 60000));
+        try {
+            boolean full = structure.index == null || start - structure.fullLoadAt >= fullReloadInterval;
+            List<Map<String,Object>> loaded = loader.load(structure.name, full ? null : structure.cursor);
+            if (full) {
+                setRecords(structure, new ArrayList<Map<String,Object>>(loaded));
+                structure.fullLoadAt = start;
+            } else if (!loaded.isEmpty()) {
+                setRecords(structure, merge(structure.index.getRecords(), loaded));
+            }
+            structure.cursor = cursor;
+            structure.syncedAt = start;
+            logger.debug("Mirrored "+structure.name+" ("+(full ? "full load" : loaded.size()+" updated")
+                +", "+structure.index.getRecords().size()+" objects) in "+(System.currentTimeMillis()-start)+"ms");
+        } catch (Exception e) {
+            // Keep using the current copy until it is too stale
+            logger.warn("Unable to refresh the mirrored "+structure.name+" structure.", e);
+        }
+    }
+
+    // Compacts and indexes the structure's new copy of the records
+    private void setRecords(MirroredStructure structure, List<Map<String,Object>> records) {
+        List<Map<String,Object>> compacted = HarvestColumnarRecords.compact(records, columnarThreshold);
+        structure.recordBytes = HarvestColumnarRecords.estimateBytes(compacted);
+        structure.index = new HarvestRecordIndex(compacted);
+    }
+
+    // Replaces the objects that were updated (by id) and appends the new ones.  Null objects (that a
+    // full load may contain) are dropped.
+    private List<Map<String,Object>> merge(List<Map<String,Object>> records, List<Map<String,Object>> updated) {
+        Map<String,Map<String,Object>> merged = new LinkedHashMap<String,Map<String,Object>>();
+        for (Map<String,Object> record : records) {
+            if (record != null) {
+                merged.put(String.valueOf(record.get("id")), record);
+            }
+        }
+        for (Map<String,Object> record : updated) {
+            if (record != null) {
+                merged.put(String.valueOf(record.get("id")), record);
+            }
+        }
+        return new ArrayList<Map<String,Object>>(merged.values());
+    }
+
+    // Harvest expects updated_since as a UTC "yyyy-MM-dd HH:mm" time
+    private String formatCursor(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+}
@@ -0,0 +1,98 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket that limits the rate of requests made to Harvest by all of the adapter's calls.
+ *
+ * The bucket holds up to burst tokens and is refilled at the configured rate.  Callers that find
+ * the bucket empty reserve the next token under a fair lock (the bucket goes into debt) and then
+ * wait for it without holding the lock, so waiting callers are served in the order that they
+ * arrived rather than failing.  A caller whose token wouldn't arrive before its deadline fails
+ * without reserving one.
+ */
+class HarvestRateLimiter {
+
+    private final double tokensPerNano;
+    private final double burst;
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private double tokens;
+    private long refilledAt;
+
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitMillis = new AtomicLong();
+
+    /**
+     * @param requestsPerSecond the sustained request rate, or 0 to disable the limiter
+     * @param burst the number of requests that can be made at once after a quiet period
+     */
+    HarvestRateLimiter(int requestsPerSecond, int burst) {
+        this.tokensPerNano = requestsPerSecond / (double)TimeUnit.SECONDS.toNanos(1);
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /**
+     * Waits until a request may be made and returns how long that took (in milliseconds).
+     *
+     * @param deadline the time (in milliseconds) by which the request must be allowed, or 0 to wait
+     *     as long as it takes
+     * @throws HarvestUnavailableError if the request would not be allowed before the deadline
+     */
+    long acquire(long deadline) throws BridgeError {
+        if (tokensPerNano <= 0) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        try {
+            if (deadline <= 0) {
+                lock.lockInterruptibly();
+            } else if (!lock.tryLock(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                throw new HarvestUnavailableError("The Harvest rate limit did not allow a request before the call's deadline.");
+            }
+            long waitNanos;
+            try {
+                refill();
+                waitNanos = tokens < 1 ? (long)Math.ceil((1 - tokens) / tokensPerNano) : 0;
+                if (deadline > 0 && System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(waitNanos) > deadline) {
+                    throw new HarvestUnavailableError("The Harvest rate limit would not allow a request before the call's deadline.");
+                }
+                tokens -= 1;
+            } finally {
+                lock.unlock();
+            }
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BridgeError("Interrupted while waiting for the Harvest rate limit.", e);
+        }
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (waited > 0) {
+            waits.incrementAndGet();
+            waitMillis.addAndGet(waited);
+        }
+        return waited;
+    }
+
+    /** Returns the number of requests that had to wait for a token. */
+    long getWaits() {
+        return waits.get();
+    }
+
+    /** Returns the total time (in milliseconds) that requests waited for tokens. */
+    long getWaitMillis() {
+        return waitMillis.get();
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerNano);
+        refilledAt = now;
+    }
+}
@@ -0,0 +1,143 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hash indexes over a list of locally held Harvest objects.
+ *
+ * The common equality keys (id, client_id, project_id, user_id, active and email) are indexed when
+ * the index is built, so that query conditions on them can be answered without scanning every
+ * object.  Conditions on other properties are checked against the candidates of the most selective
+ * indexed condition (or every object if there is none).  Results keep the order of the objects.
+ */
+class HarvestRecordIndex {
+
+    /** The properties that are indexed */
+    static final List<String> INDEXED_KEYS = Collections.unmodifiableList(Arrays.asList(
+        "id", "client_id", "project_id", "user_id", "active", "email"));
+
+    private static final int[] NO_POSITIONS = new int[0];
+
+    private final List<Map<String,Object>> records;
+    private final Set<String> propertyNames = new HashSet<String>();
+    // Indexed property name -> property value (as a string) -> positions of the matching objects
+    private final Map<String,Map<String,int[]>> indexes = new HashMap<String,Map<String,int[]>>();
+    private final long estimatedBytes;
+
+    /** Builds the indexes over the objects, which must not be modified afterwards. */
+    HarvestRecordIndex(List<Map<String,Object>> records) {
+        this.records = records;
+
+        Map<String,Map<String,List<Integer>>> positions = new HashMap<String,Map<String,List<Integer>>>();
+        for (int i = 0; i < records.size(); i++) {
+            Map<String,Object> record = records.get(i);
+            if (record == null) {
+                continue;
+            }
+            propertyNames.addAll(record.keySet());
+            for (String key : INDEXED_KEYS) {
+                if (record.containsKey(key)) {
+                    Map<String,List<Integer>> index = positions.get(key);
+                    if (index == null) {
+                        index = new HashMap<String,List<Integer>>();
+                        positions.put(key, index);
+                    }
+                    String value = String.valueOf(record.get(key));
+                    List<Integer> list = index.get(value);
+                    if (list == null) {
+                        list = new ArrayList<Integer>(1);
+                        index.put(value, list);
+                    }
+                    list.add(i);
+                }
+            }
+        }
+
+        // Store the positions compactly and estimate the memory that the indexes use
+        long bytes = 0;
+        for (Map.Entry<String,Map<String,List<Integer>>> entry : positions.entrySet()) {
+            Map<String,int[]> index = new HashMap<String,int[]>(entry.getValue().size() * 4 / 3 + 1);
+            for (Map.Entry<String,List<Integer>> value : entry.getValue().entrySet()) {
+                List<Integer> list = value.getValue();
+                int[] array = new int[list.size()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = list.get(i);
+                }
+                index.put(value.getKey(), array);
+                // Map entry and table slot, the value string and the positions array
+                bytes += 48 + (40 + 2 * value.getKey().length()) + (16 + 4 * array.length);
+            }
+            indexes.put(entry.getKey(), index);
+        }
+        this.estimatedBytes = bytes;
+    }
+
+    /** Returns the indexed objects. */
+    List<Map<String,Object>> getRecords() {
+        return records;
+    }
+
+    /** Returns the estimated number of bytes used by the indexes (not including the objects). */
+    long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * Returns the objects whose properties equal all of the conditions, or null if a condition is
+     * for a property the objects don't have (it is probably a Harvest request parameter instead).
+     */
+    List<Map<String,Object>> select(Map<String,String> conditions) {
+        if (conditions.isEmpty()) {
+            return records;
+        }
+        if (!records.isEmpty() && !propertyNames.containsAll(conditions.keySet())) {
+            return null;
+        }
+
+        // Use the indexed condition with the fewest matches to find the candidates
+        int[] candidates = null;
+        String candidateKey = null;
+        for (Map.Entry<String,String> condition : conditions.entrySet()) {
+            Map<String,int[]> index = indexes.get(condition.getKey());
+            if (index != null) {
+                int[] matches = index.get(condition.getValue());
+                if (matches == null) {
+                    matches = NO_POSITIONS;
+                }
+                if (candidates == null || matches.length < candidates.length) {
+                    candidates = matches;
+                    candidateKey = condition.getKey();
+                }
+            }
+        }
+
+        List<Map<String,Object>> result = new ArrayList<Map<String,Object>>();
+        int count = candidates == null ? records.size() : candidates.length;
+        for (int i = 0; i < count; i++) {
+            Map<String,Object> record = records.get(candidates == null ? i : candidates[i]);
+            if (record != null && matches(record, conditions, candidateKey)) {
+                result.add(record);
+            }
+        }
+        return result;
+    }
+
+    // Checks the conditions other than the one that the candidates were found with
+    private boolean matches(Map<String,Object> record, Map<String,String> conditions, String skipKey) {
+        for (Map.Entry<String,String> condition : conditions.entrySet()) {
+            if (!condition.getKey().equals(skipKey)
+                && !condition.getValue().equals(String.valueOf(record.get(condition.getKey()))))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,104 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Orders Harvest objects by one or more properties and selects a page of them.
+ *
+ * Only the properties being ordered by are compared.  When a page is requested only the objects up
+ * to the end of the page are kept (in a bounded heap) rather than sorting every object, so the cost
+ * of showing the first pages of a large list stays low.  Ties keep the order Harvest returned.
+ */
+class HarvestRecordOrder implements Comparator<Map<String,Object>> {
+
+    private final String[] fields;
+    private final boolean[] descending;
+
+    /**
+     * @param order the properties to order by mapped to ASC or DESC, in order of precedence
+     */
+    HarvestRecordOrder(Map<String,String> order) {
+        this.fields = new String[order.size()];
+        this.descending = new boolean[order.size()];
+        int i = 0;
+        for (Map.Entry<String,String> entry : order.entrySet()) {
+            fields[i] = entry.getKey();
+            descending[i] = "DESC".equalsIgnoreCase(entry.getValue());
+            i++;
+        }
+    }
+
+    @Override
+    public int compare(Map<String,Object> a, Map<String,Object> b) {
+        for (int i = 0; i < fields.length; i++) {
+            int result = compareValues(a == null ? null : a.get(fields[i]), b == null ? null : b.get(fields[i]));
+            if (result != 0) {
+                return descending[i] ? -result : result;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the page of objects starting at offset (a page size of 0 returns every object after
+     * the offset).  If order is null the objects keep the order that they are in.
+     */
+    static List<Map<String,Object>> page(final List<Map<String,Object>> records, final HarvestRecordOrder order,
+        int offset, int pageSize)
+    {
+        int size = records.size();
+        int end = pageSize > 0 ? (int)Math.min((long)offset + pageSize, size) : size;
+        if (offset >= end) {
+            return Collections.emptyList();
+        }
+        if (order == null) {
+            return records.subList(offset, end);
+        }
+
+        // Keep the first "end" objects in a heap whose head is the largest of them, so each
+        // remaining object only needs to be compared to the head
+        Comparator<Integer> positionOrder = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int result = order.compare(records.get(a), records.get(b));
+                return result != 0 ? result : a.compareTo(b);
+            }
+        };
+        PriorityQueue<Integer> heap = new PriorityQueue<Integer>(end, Collections.reverseOrder(positionOrder));
+        for (int i = 0; i < size; i++) {
+            if (heap.size() < end) {
+                heap.add(i);
+            } else if (positionOrder.compare(i, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(i);
+            }
+        }
+        List<Integer> positions = new ArrayList<Integer>(heap);
+        Collections.sort(positions, positionOrder);
+
+        List<Map<String,Object>> result = new ArrayList<Map<String,Object>>(end - offset);
+        for (Integer position : positions.subList(offset, end)) {
+            result.add(records.get(position));
+        }
+        return result;
+    }
+
+    // Nulls sort first, numbers and booleans by value, and anything else by its case insensitive text
+    private int compareValues(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        if (a instanceof Number && b instanceof Number) {
+            return Double.compare(((Number)a).doubleValue(), ((Number)b).doubleValue());
+        }
+        if (a instanceof Boolean && b instanceof Boolean) {
+            return ((Boolean)a).compareTo((Boolean)b);
+        }
+        return a.toString().compareToIgnoreCase(b.toString());
+    }
+}
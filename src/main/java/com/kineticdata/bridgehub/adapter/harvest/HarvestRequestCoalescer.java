@@ -0,0 +1,79 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deduplicates identical Harvest calls that are in flight at the same time.
+ *
+ * The first caller for a key runs the call on its own thread; callers that arrive with the same
+ * key while it is running wait for (and share) its result instead of making their own request.
+ * Once the call completes the key is released, so later callers make a new request.  A waiting
+ * caller only waits until its own deadline, even if the call it is sharing has a later one.
+ */
+class HarvestRequestCoalescer {
+
+    private final ConcurrentMap<String,FutureTask<?>> inFlight = new ConcurrentHashMap<String,FutureTask<?>>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Runs the call, or waits for the result of an identical call that is already running.  The
+     * result may be shared by several callers, so it must not be modified.
+     *
+     * @param deadline the time (in milliseconds) by which a caller waiting for an identical call
+     *     stops waiting, or 0 to wait until the call completes
+     * @throws HarvestUnavailableError if the deadline passed while waiting for an identical call
+     */
+    <T> T execute(String key, long deadline, Callable<T> call) throws BridgeError {
+        FutureTask<T> task = new FutureTask<T>(call);
+        // Calls with the same key are identical, so they return the same type
+        @SuppressWarnings("unchecked")
+        FutureTask<T> existing = (FutureTask<T>)inFlight.putIfAbsent(key, task);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return getResult(existing, deadline);
+        }
+        try {
+            task.run();
+        } finally {
+            inFlight.remove(key, task);
+        }
+        return getResult(task, 0);
+    }
+
+    /** Returns the number of calls that were answered by another caller's request. */
+    long getCoalesced() {
+        return coalesced.get();
+    }
+
+    private <T> T getResult(FutureTask<T> task, long deadline) throws BridgeError {
+        try {
+            if (deadline <= 0) {
+                return task.get();
+            }
+            return task.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new HarvestUnavailableError("An identical Harvest request did not complete before the call's deadline.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BridgeError("Interrupted while waiting for a Harvest request.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof BridgeError) {
+                throw (BridgeError)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new BridgeError(cause);
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, in-memory cache of parsed Harvest responses.
+ *
+ * Entries are keyed by the final request url (plus the credentials used to make the request) and
+ * hold the unwrapped records that Harvest returned.  Each structure has its own time to live and
+ * the least recently used entries are evicted once the cache holds more than the configured number
+ * of entries.  Cached record maps are shared between callers and must never be modified.
+ *
+ * A cached list can also answer queries that filter it (see {@link #select(String, Map)}), using
+ * indexes that are built the first time the list is queried this way.
+ *
+ * Entries that Harvest sent an ETag or Last-Modified header with are kept after they expire (until
+ * they are evicted) so that they can be revalidated with a conditional request.  If Harvest responds
+ * that they have not been modified they are used again for another time to live (see
+ * {@link #revalidate(String, CachedResponse, String, String)}) without reading or parsing them again.
+ *
+ * Large responses are stored column by column (see {@link HarvestColumnarRecords}) to reduce the
+ * memory they use.
+ *
+ * Expired entries are also kept for the stale-if-error period, during which they can be served in
+ * place of a response that Harvest failed to return (see {@link #getStale(String)}).
+ */
+class HarvestResponseCache {
+
+    /** Holds the cached records along with when they stop being valid and how to revalidate them */
+    static class CachedResponse {
+        private final String structure;
+        private final List<Map<String,Object>> records;
+        private final long expiresAt;
+        private final String etag;
+        private final String lastModified;
+        private volatile HarvestRecordIndex index;
+        private volatile long recordBytes = -1;
+
+        CachedResponse(String structure, List<Map<String,Object>> records, long expiresAt, String etag,
+            String lastModified)
+        {
+            this.structure = structure;
+            this.records = records;
+            this.expiresAt = expiresAt;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        String getStructure() {
+            return structure;
+        }
+
+        List<Map<String,Object>> getRecords() {
+            return records;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+
+        /** Returns the time (in milliseconds) the records expire(d) at. */
+        long getExpiresAt() {
+            return expiresAt;
+        }
+
+        /** Returns the ETag header that Harvest sent with the records, or null. */
+        String getEtag() {
+            return etag;
+        }
+
+        /** Returns the Last-Modified header that Harvest sent with the records, or null. */
+        String getLastModified() {
+            return lastModified;
+        }
+
+        /** Returns true if the records can be revalidated with a conditional request. */
+        boolean isRevalidatable() {
+            return etag != null || lastModified != null;
+        }
+
+        /** Returns the estimated number of bytes used by the records (not including the index). */
+        long getRecordBytes() {
+            // Estimated once, since the records never change
+            long bytes = recordBytes;
+            if (bytes < 0) {
+                bytes = HarvestColumnarRecords.estimateBytes(records);
+                recordBytes = bytes;
+            }
+            return bytes;
+        }
+
+        HarvestRecordIndex getIndex() {
+            // Concurrent callers may both build the index, but either one can be used
+            HarvestRecordIndex current = index;
+            if (current == null) {
+                current = new HarvestRecordIndex(records);
+                index = current;
+            }
+            return current;
+        }
+    }
+
+    private final int maxEntries;
+    private final long defaultTtl;
+    private final Map<String,Long> structureTtls;
+    private final long staleIfError;
+    private final int columnarThreshold;
+    private final LinkedHashMap<String,CachedResponse> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong staleServed = new AtomicLong();
+
+    /**
+     * @param maxEntries the number of responses to keep before the least recently used is evicted
+     * @param defaultTtl the time to live (in milliseconds) for structures without their own value
+     * @param structureTtls time to live overrides (in milliseconds) keyed by structure name
+     * @param staleIfError how long (in milliseconds) after they expire responses may still be served
+     *     when Harvest is unavailable
+     * @param columnarThreshold responses with at least this many records are stored column by column
+     *     (see {@link HarvestColumnarRecords}), 0 never does
+     */
+    HarvestResponseCache(int maxEntries, long defaultTtl, Map<String,Long> structureTtls, long staleIfError,
+        int columnarThreshold)
+    {
+        this.maxEntries = maxEntries;
+        this.defaultTtl = defaultTtl;
+        this.structureTtls = structureTtls;
+        this.staleIfError = staleIfError;
+        this.columnarThreshold = columnarThreshold;
+        // An access ordered map keeps the least recently used entry first
+        this.entries = new LinkedHashMap<String,CachedResponse>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,CachedResponse> eldest) {
+                if (size() > HarvestResponseCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /** Builds the cache key for a url requested with the given credential fingerprint. */
+    static String key(String url, String credentials) {
+        return credentials + " " + url;
+    }
+
+    /** Returns true if responses for the structure are cached at all. */
+    boolean isEnabled(String structure) {
+        return maxEntries > 0 && getTtl(structure) > 0;
+    }
+
+    /** Returns the cached records for the key, or null if nothing valid is cached. */
+    List<Map<String,Object>> get(String key) {
+        CachedResponse entry = getEntry(key);
+        return entry == null ? null : entry.getRecords();
+    }
+
+    /**
+     * Returns the cached records for the key that match all of the conditions, or null if nothing
+     * valid is cached or the conditions can't be evaluated against the cached records.  The cache is
+     * only asked in case the key happens to be cached, so a selection is counted as a hit when it
+     * answers the conditions and isn't counted as a miss when it doesn't (the request made instead
+     * is counted).
+     */
+    List<Map<String,Object>> select(String key, Map<String,String> conditions) {
+        CachedResponse entry = peekEntry(key);
+        List<Map<String,Object>> selected = entry == null ? null : entry.getIndex().select(conditions);
+        if (selected != null) {
+            hits.incrementAndGet();
+        }
+        return selected;
+    }
+
+    /** Returns the estimated number of bytes used by the indexes of the cached responses. */
+    synchronized long getIndexBytes() {
+        long bytes = 0;
+        for (CachedResponse entry : entries.values()) {
+            HarvestRecordIndex index = entry.index;
+            if (index != null) {
+                bytes += index.getEstimatedBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /** Returns the estimated number of bytes used by the cached records of each structure. */
+    synchronized Map<String,Long> getRecordBytes() {
+        Map<String,Long> bytes = new TreeMap<String,Long>();
+        for (CachedResponse entry : entries.values()) {
+            Long total = bytes.get(entry.getStructure());
+            bytes.put(entry.getStructure(), (total == null ? 0 : total) + entry.getRecordBytes());
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the expired entry for the key if it can be revalidated with a conditional request,
+     * otherwise null.
+     */
+    synchronized CachedResponse getExpired(String key) {
+        CachedResponse entry = entries.get(key);
+        return entry != null && entry.isRevalidatable() && entry.isExpired(System.currentTimeMillis())
+            ? entry : null;
+    }
+
+    /**
+     * Returns the entry for the key, even if it has expired, as long as it expired less than the
+     * stale-if-error period ago, otherwise null.  This is only used when Harvest is unavailable, so
+     * every entry returned is counted as a stale response that was served.
+     */
+    synchronized CachedResponse getStale(String key) {
+        CachedResponse entry = entries.get(key);
+        if (entry == null || !isServable(entry, System.currentTimeMillis())) {
+            return null;
+        }
+        staleServed.incrementAndGet();
+        return entry;
+    }
+
+    private synchronized CachedResponse getEntry(String key) {
+        CachedResponse entry = peekEntry(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    // Returns the unexpired entry for the key without counting a hit or miss
+    private synchronized CachedResponse peekEntry(String key) {
+        CachedResponse entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired(System.currentTimeMillis())) {
+            // Expired entries are kept if they can be revalidated or served while Harvest is unavailable
+            if (!entry.isRevalidatable() && !isServable(entry, System.currentTimeMillis())) {
+                entries.remove(key);
+            }
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Stores the records for the key if responses for the structure are cached.
+     *
+     * @param etag the ETag header of the response, or null
+     * @param lastModified the Last-Modified header of the response, or null
+     */
+    void put(String key, String structure, List<Map<String,Object>> records, String etag, String lastModified) {
+        if (!isEnabled(structure)) {
+            return;
+        }
+        // Large responses are compacted before the cache is locked
+        List<Map<String,Object>> stored = HarvestColumnarRecords.compact(records, columnarThreshold);
+        long expiresAt = System.currentTimeMillis() + getTtl(structure);
+        synchronized (this) {
+            entries.put(key, new CachedResponse(structure, stored, expiresAt, etag, lastModified));
+        }
+    }
+
+    /**
+     * Stores the expired entry for another time to live after Harvest responded that it has not been
+     * modified.  The records (and their indexes) are reused, and the validators are replaced by any
+     * that were sent with the not modified response.
+     */
+    synchronized void revalidate(String key, CachedResponse expired, String etag, String lastModified) {
+        if (!isEnabled(expired.getStructure())) {
+            return;
+        }
+        revalidations.incrementAndGet();
+        CachedResponse entry = new CachedResponse(expired.getStructure(), expired.getRecords(),
+            System.currentTimeMillis() + getTtl(expired.getStructure()),
+            etag != null ? etag : expired.getEtag(), lastModified != null ? lastModified : expired.getLastModified());
+        entry.index = expired.index;
+        entry.recordBytes = expired.recordBytes;
+        entries.put(key, entry);
+    }
+
+    /**
+     * Returns a copy of the entries that are worth saving in a snapshot, ie. those that are fresh,
+     * can be revalidated, or can still be served while Harvest is unavailable.
+     */
+    synchronized Map<String,CachedResponse> getRestorableEntries() {
+        long now = System.currentTimeMillis();
+        Map<String,CachedResponse> restorable = new LinkedHashMap<String,CachedResponse>();
+        for (Map.Entry<String,CachedResponse> entry : entries.entrySet()) {
+            if (isRestorable(entry.getValue(), now)) {
+                restorable.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return restorable;
+    }
+
+    /**
+     * Stores an entry loaded from a snapshot, keeping the time it expires at.  Returns false if
+     * responses for its structure are no longer cached or it is no longer worth keeping.
+     */
+    boolean restore(String key, CachedResponse entry) {
+        if (!isEnabled(entry.getStructure()) || !isRestorable(entry, System.currentTimeMillis())) {
+            return false;
+        }
+        CachedResponse restored = new CachedResponse(entry.getStructure(),
+            HarvestColumnarRecords.compact(entry.getRecords(), columnarThreshold), entry.getExpiresAt(),
+            entry.getEtag(), entry.getLastModified());
+        synchronized (this) {
+            entries.put(key, restored);
+        }
+        return true;
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    /** Returns the number of expired entries that were reused after a not modified response. */
+    long getRevalidations() {
+        return revalidations.get();
+    }
+
+    /** Returns the number of stale responses that were served because Harvest was unavailable. */
+    long getStaleServed() {
+        return staleServed.get();
+    }
+
+    // Returns true if the entry is still fresh or within the stale-if-error period
+    private boolean isServable(CachedResponse entry, long now) {
+        return now < entry.getExpiresAt() + staleIfError;
+    }
+
+    private boolean isRestorable(CachedResponse entry, long now) {
+        return !entry.isExpired(now) || entry.isRevalidatable() || isServable(entry, now);
+    }
+
+    private long getTtl(String structure) {
+        Long ttl = structureTtls.get(structure);
+        return ttl == null ? defaultTtl : ttl;
+    }
+
+    @Override
+    public String toString() {
+        return "entries="+size()+", hits="+getHits()+", misses="+getMisses()+", evictions="+getEvictions()
+            +", revalidations="+getRevalidations()+", stale served="+getStaleServed()+", index bytes="+getIndexBytes();
+    }
+}
@@ -0,0 +1,147 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers retrieves of the same structure that arrive close together with a single list request.
+ *
+ * The first retrieve of a structure opens a batch and waits for the batching window; retrieves of
+ * the structure that arrive in the meantime join the batch.  When the window closes, if more than
+ * one object was asked for, the structure is listed once and each caller is given its object from
+ * the list.  A caller whose retrieve was not batched with any others, whose object is not in the
+ * list, or whose batch failed is given null and retrieves the object by itself.  A caller waiting for
+ * a batch only waits until its own deadline.
+ */
+class HarvestRetrieveBatcher {
+
+    /** Defines the logger */
+    protected static final Logger logger = LoggerFactory.getLogger(HarvestRetrieveBatcher.class);
+
+    /** Lists every object of a structure */
+    interface Lister {
+        List<Map<String,Object>> list(String structure) throws BridgeError;
+    }
+
+    /** The retrieves of a structure made during one batching window */
+    private static class Batch {
+        private final Set<String> ids = new HashSet<String>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Map<String,Map<String,Object>> objects;
+    }
+
+    private final long window;
+    private final Lister lister;
+    // Structure -> the batch that retrieves of the structure are currently joining
+    private final Map<String,Batch> open = new HashMap<String,Batch>();
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batched = new AtomicLong();
+
+    /**
+     * @param window how long (in milliseconds) a batch collects retrieves for (0 disables batching)
+     */
+    HarvestRetrieveBatcher(long window, Lister lister) {
+        this.window = window;
+        this.lister = lister;
+    }
+
+    boolean isEnabled() {
+        return window > 0;
+    }
+
+    /**
+     * Returns the object of the structure with the id, or null if the caller should retrieve it by
+     * itself.  The returned object may be shared, so it must not be modified.
+     *
+     * @param deadline the time (in milliseconds) by which a caller waiting for another caller's
+     *     batch stops waiting, or 0 to wait until the batch completes
+     * @throws HarvestUnavailableError if the deadline passed while waiting for the batch
+     */
+    Map<String,Object> retrieve(String structure, String id, long deadline) throws BridgeError {
+        Batch batch;
+        boolean first = false;
+        synchronized (open) {
+            batch = open.get(structure);
+            if (batch == null) {
+                batch = new Batch();
+                open.put(structure, batch);
+                first = true;
+            }
+            batch.ids.add(id);
+        }
+
+        if (first) {
+            try {
+                Thread.sleep(window);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Set<String> ids;
+            synchronized (open) {
+                open.remove(structure);
+                ids = batch.ids;
+            }
+            try {
+                // A batch of one is no cheaper as a list request
+                if (ids.size() > 1 && !Thread.currentThread().isInterrupted()) {
+                    batch.objects = selectIds(lister.list(structure), ids);
+                    batches.incrementAndGet();
+                    batched.addAndGet(ids.size());
+                }
+            } catch (BridgeError e) {
+                logger.debug("Unable to list the "+structure+" for a batch of "+ids.size()+" retrieves, "
+                    + "retrieving them individually: "+e.getMessage());
+            } finally {
+                batch.done.countDown();
+            }
+        } else {
+            try {
+                if (deadline <= 0) {
+                    batch.done.await();
+                } else if (!batch.done.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                    throw new HarvestUnavailableError("A batch of Harvest retrieves did not complete before the call's deadline.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BridgeError("Interrupted while waiting for a batch of Harvest retrieves.", e);
+            }
+        }
+        Map<String,Map<String,Object>> objects = batch.objects;
+        return objects == null ? null : objects.get(id);
+    }
+
+    /** Returns the number of list requests that answered a batch of retrieves. */
+    long getBatches() {
+        return batches.get();
+    }
+
+    /** Returns the number of retrieves that were part of a batch. */
+    long getBatched() {
+        return batched.get();
+    }
+
+    /** Returns the objects (keyed by id) with the given ids. */
+    static Map<String,Map<String,Object>> selectIds(List<Map<String,Object>> objects, Collection<String> ids) {
+        Map<String,Map<String,Object>> selected = new HashMap<String,Map<String,Object>>(ids.size() * 4 / 3 + 1);
+        for (Map<String,Object> object : objects) {
+            if (object != null) {
+                String id = String.valueOf(object.get("id"));
+                if (ids.contains(id)) {
+                    selected.put(id, object);
+                }
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,109 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.Header;
+import org.apache.http.client.utils.DateUtils;
+
+/**
+ * Decides whether (and after how long) a failed Harvest request is retried.
+ *
+ * Throttled (429) and unavailable (502, 503, 504) responses and connection failures are retried up
+ * to the configured number of times.  The delay grows exponentially from the base delay with random
+ * jitter, unless Harvest sent a Retry-After header, in which case that is honoured.
+ */
+class HarvestRetryPolicy {
+
+    private final int maxRetries;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random = new Random();
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong retryWaitMillis = new AtomicLong();
+    private final AtomicLong maxRetryWaitMillis = new AtomicLong();
+
+    /**
+     * @param maxRetries the number of times a request is retried before it fails
+     * @param baseDelay the delay (in milliseconds) before the first retry
+     * @param maxDelay the longest delay (in milliseconds) that will be waited before a retry
+     */
+    HarvestRetryPolicy(int maxRetries, long baseDelay, long maxDelay) {
+        this.maxRetries = maxRetries;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /** Returns true if a response with the status code may succeed if it is retried. */
+    boolean isRetryable(int statusCode) {
+        return statusCode == 429 || statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    /**
+     * Returns how long to wait (in milliseconds) before retrying the attempt (numbered from 0), or
+     * -1 if the request should not be retried.
+     *
+     * @param retryAfter the Retry-After header of the response, or null
+     */
+    long getDelay(int attempt, Header retryAfter) {
+        if (attempt >= maxRetries) {
+            return -1;
+        }
+        long retryAfterDelay = parseRetryAfter(retryAfter);
+        if (retryAfterDelay >= 0) {
+            // Waiting less than Harvest asked for would only be throttled again
+            return retryAfterDelay <= maxDelay ? retryAfterDelay : -1;
+        }
+        // Exponential backoff with "equal jitter": half of the delay is fixed and half is random
+        long delay = Math.min(maxDelay, baseDelay << Math.min(attempt, 30));
+        long half = delay / 2;
+        return half + (long)(random.nextDouble() * (delay - half));
+    }
+
+    /** Waits before retrying a request and records the wait. */
+    void await(long delay) throws BridgeError {
+        retries.incrementAndGet();
+        retryWaitMillis.addAndGet(delay);
+        long max;
+        while (delay > (max = maxRetryWaitMillis.get()) && !maxRetryWaitMillis.compareAndSet(max, delay)) {
+            // Another retry recorded a new maximum, check again
+        }
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BridgeError("Interrupted while waiting to retry a Harvest request.", e);
+        }
+    }
+
+    /** Returns the number of retries that were made. */
+    long getRetries() {
+        return retries.get();
+    }
+
+    /** Returns the total time (in milliseconds) spent waiting before retries. */
+    long getRetryWaitMillis() {
+        return retryWaitMillis.get();
+    }
+
+    /** Returns the longest time (in milliseconds) spent waiting before a single retry. */
+    long getMaxRetryWaitMillis() {
+        return maxRetryWaitMillis.get();
+    }
+
+    // Retry-After is either a number of seconds or an HTTP date
+    private long parseRetryAfter(Header header) {
+        if (header == null || header.getValue() == null) {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            return date == null ? -1 : Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
+}
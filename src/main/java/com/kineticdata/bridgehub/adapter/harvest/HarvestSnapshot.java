@@ -0,0 +1,492 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import org.json.simple.JSONAware;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves the cached responses and the mirrored structures to a local file so that they survive a
+ * restart.
+ *
+ * The snapshot is written periodically and when the adapter is destroyed, to a temporary file that
+ * then replaces the previous snapshot, so a snapshot is never read half written.  It is loaded
+ * (memory-mapped) when the adapter is initialized, before the mirror starts, so mirrored structures
+ * resume with a delta refresh from their saved cursors rather than a full load.  Snapshots written
+ * for other credentials or another endpoint, or in an unknown format, are ignored.
+ *
+ * The snapshot holds Harvest data (names, email addresses, rates), so on file systems with POSIX
+ * permissions the file is only readable by its owner (elsewhere it keeps the permissions of its
+ * directory).  It identifies the credentials and endpoint it belongs to with a salted PBKDF2
+ * fingerprint, so the file can't be used to cheaply test guesses of the password.
+ *
+ * The format is length-prefixed and big-endian: a header (magic number, version, fingerprint salt,
+ * owner fingerprint and the time written), the mirrored structures (name, cursor, synced and full
+ * load times and the records) and then the cached responses (url, structure, records, expiry and
+ * validators).  Each list of records starts with a table of the field names used by the records,
+ * so each field is written as its index in the table followed by a type tag and the value.  Nested
+ * objects and arrays are written as JSON text.  Every length is checked against the rest of the
+ * file before it is allocated, so a damaged file is ignored rather than exhausting the heap.
+ */
+class HarvestSnapshot {
+
+    /** Defines the logger */
+    protected static final Logger logger = LoggerFactory.getLogger(HarvestSnapshot.class);
+
+    private static final int MAGIC = 0x48565354;
+    private static final int VERSION = 2;
+    private static final int FINGERPRINT_ITERATIONS = 20000;
+
+    // Value type tags
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte TRUE = 4;
+    private static final byte FALSE = 5;
+    private static final byte JSON = 6;
+
+    private final File file;
+    private final String identity;
+    private final String credentials;
+    private final HarvestResponseCache cache;
+    private final HarvestMirror mirror;
+    private ScheduledExecutorService scheduler;
+    // The salt and fingerprint written with this adapter's snapshots, computed on the first write
+    private byte[] salt;
+    private byte[] fingerprint;
+    // Set once it has been logged that the file system can't restrict the file to its owner
+    private volatile boolean unrestrictedLogged;
+
+    private volatile long writeMillis = -1;
+    private volatile long writeBytes = -1;
+    private volatile long loadMillis = -1;
+    private volatile long loadBytes = -1;
+
+    /**
+     * @param identity identifies the credentials and endpoint the snapshot belongs to (only a salted
+     *     fingerprint of it is written to the file)
+     * @param credentials the credential fingerprint that cache keys start with (which is not written
+     *     to the file, only entries cached for these credentials are)
+     * @param mirror the mirror, or null if nothing is mirrored
+     */
+    HarvestSnapshot(File file, String identity, String credentials, HarvestResponseCache cache, HarvestMirror mirror) {
+        this.file = file;
+        this.identity = identity;
+        this.credentials = credentials;
+        this.cache = cache;
+        this.mirror = mirror;
+    }
+
+    /** Starts writing the snapshot in the background every interval (in milliseconds). */
+    synchronized void start(long interval) {
+        if (interval <= 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Harvest Snapshot");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                writeQuietly();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stops writing the snapshot in the background. */
+    synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Restores the cached responses and mirrored structures from the snapshot file, if there is one
+     * that belongs to the same credentials and endpoint.  Returns false if nothing was restored.
+     */
+    boolean load() {
+        if (!file.isFile()) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(file);
+            FileChannel channel = input.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                logger.warn("Ignoring the snapshot "+file+" because it is not in a known format.");
+                return false;
+            }
+            byte[] fileSalt = readBytes(buffer);
+            if (!MessageDigest.isEqual(fingerprint(identity, fileSalt), readBytes(buffer))) {
+                logger.info("Ignoring the snapshot "+file+" because it was written for other credentials or another endpoint.");
+                return false;
+            }
+            long writtenAt = buffer.getLong();
+
+            // Everything is read before anything is restored, so a damaged file restores nothing
+            List<HarvestMirror.State> states = new ArrayList<HarvestMirror.State>();
+            for (int i = buffer.getInt(); i > 0; i--) {
+                states.add(new HarvestMirror.State(readString(buffer), readString(buffer), buffer.getLong(),
+                    buffer.getLong(), readRecords(buffer)));
+            }
+            Map<String,HarvestResponseCache.CachedResponse> responses = new LinkedHashMap<String,HarvestResponseCache.CachedResponse>();
+            for (int i = buffer.getInt(); i > 0; i--) {
+                String key = HarvestResponseCache.key(readString(buffer), credentials);
+                responses.put(key, new HarvestResponseCache.CachedResponse(readString(buffer),
+                    readRecords(buffer), buffer.getLong(), readString(buffer), readString(buffer)));
+            }
+
+            int restored = 0;
+            for (HarvestMirror.State state : states) {
+                if (mirror != null && mirror.restore(state)) {
+                    restored++;
+                }
+            }
+            for (Map.Entry<String,HarvestResponseCache.CachedResponse> response : responses.entrySet()) {
+                if (cache.restore(response.getKey(), response.getValue())) {
+                    restored++;
+                }
+            }
+            loadBytes = buffer.capacity();
+            loadMillis = System.currentTimeMillis() - start;
+            logger.info("Loaded the snapshot "+file+" ("+loadBytes+" bytes, written "
+                + (System.currentTimeMillis() - writtenAt) / 1000+"s ago) in "+loadMillis+"ms, restoring "
+                + restored+" of "+(states.size() + responses.size())+" structures and responses.");
+            return restored > 0;
+        } catch (Exception e) {
+            // ie. a truncated file (BufferUnderflowException) or one that can't be read
+            logger.warn("Unable to load the snapshot "+file+", ignoring it.", e);
+            return false;
+        } finally {
+            // The mapping itself is released when the buffer is garbage collected
+            closeQuietly(input);
+        }
+    }
+
+    /** Writes the snapshot, replacing the previous one. */
+    void write() throws IOException {
+        long start = System.currentTimeMillis();
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the directory "+directory);
+        }
+        // The permissions are restricted before anything is written, and the file keeps them when
+        // it replaces the previous snapshot
+        File temporary = new File(file.getAbsolutePath()+".tmp");
+        createPrivateFile(temporary);
+        FileOutputStream stream = new FileOutputStream(temporary);
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            writeFingerprint(output);
+            output.writeLong(System.currentTimeMillis());
+
+            List<HarvestMirror.State> states = mirror == null
+                ? Collections.<HarvestMirror.State>emptyList() : mirror.getStates();
+            output.writeInt(states.size());
+            for (HarvestMirror.State state : states) {
+                writeString(output, state.getStructure());
+                writeString(output, state.getCursor());
+                output.writeLong(state.getSyncedAt());
+                output.writeLong(state.getFullLoadAt());
+                writeRecords(output, state.getRecords());
+            }
+
+            // Only the responses cached for these credentials are written, without the fingerprint
+            String prefix = HarvestResponseCache.key("", credentials);
+            Map<String,HarvestResponseCache.CachedResponse> entries = new LinkedHashMap<String,HarvestResponseCache.CachedResponse>();
+            for (Map.Entry<String,HarvestResponseCache.CachedResponse> entry : cache.getRestorableEntries().entrySet()) {
+                if (entry.getKey().startsWith(prefix)) {
+                    entries.put(entry.getKey().substring(prefix.length()), entry.getValue());
+                }
+            }
+            output.writeInt(entries.size());
+            for (Map.Entry<String,HarvestResponseCache.CachedResponse> entry : entries.entrySet()) {
+                HarvestResponseCache.CachedResponse response = entry.getValue();
+                writeString(output, entry.getKey());
+                writeString(output, response.getStructure());
+                writeRecords(output, response.getRecords());
+                output.writeLong(response.getExpiresAt());
+                writeString(output, response.getEtag());
+                writeString(output, response.getLastModified());
+            }
+            output.flush();
+            stream.getFD().sync();
+        } finally {
+            closeQuietly(stream);
+        }
+        // Renaming over the previous snapshot is atomic on POSIX file systems, elsewhere it has to
+        // be deleted first
+        if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))) {
+            temporary.delete();
+            throw new IOException("Unable to replace the snapshot "+file);
+        }
+        writeBytes = file.length();
+        writeMillis = System.currentTimeMillis() - start;
+        logger.debug("Wrote the snapshot "+file+" ("+writeBytes+" bytes) in "+writeMillis+"ms");
+    }
+
+    /** Writes the snapshot, logging rather than throwing any error. */
+    void writeQuietly() {
+        try {
+            write();
+        } catch (Exception e) {
+            logger.warn("Unable to write the snapshot "+file+".", e);
+        }
+    }
+
+    /** Returns how long (in milliseconds) the last snapshot took to write, or -1. */
+    long getWriteMillis() {
+        return writeMillis;
+    }
+
+    /** Returns the size (in bytes) of the last snapshot written, or -1. */
+    long getWriteBytes() {
+        return writeBytes;
+    }
+
+    /** Returns how long (in milliseconds) the snapshot took to load, or -1 if none was loaded. */
+    long getLoadMillis() {
+        return loadMillis;
+    }
+
+    /** Returns the size (in bytes) of the snapshot that was loaded, or -1 if none was loaded. */
+    long getLoadBytes() {
+        return loadBytes;
+    }
+
+    private synchronized void writeFingerprint(DataOutputStream output) throws IOException {
+        if (fingerprint == null) {
+            salt = new byte[16];
+            new SecureRandom().nextBytes(salt);
+            fingerprint = fingerprint(identity, salt);
+        }
+        writeBytes(output, salt);
+        writeBytes(output, fingerprint);
+    }
+
+    // Derives the fingerprint of the identity with the salt, which is deliberately slow to compute
+    static byte[] fingerprint(String identity, byte[] salt) throws IOException {
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+            return factory.generateSecret(
+                new PBEKeySpec(identity.toCharArray(), salt, FINGERPRINT_ITERATIONS, 256)).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to fingerprint the snapshot owner: "+e.getMessage());
+        }
+    }
+
+    // Creates the file (replacing any existing one) so that it is only readable and writable by its
+    // owner.  File systems without POSIX permissions (ie. on Windows) create it with the permissions
+    // it inherits from its directory instead.
+    private void createPrivateFile(File file) throws IOException {
+        Path path = file.toPath();
+        Files.deleteIfExists(path);
+        if (Files.getFileStore(path.getParent()).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(
+                EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+        } else {
+            Files.createFile(path);
+            if (!unrestrictedLogged) {
+                unrestrictedLogged = true;
+                logger.info("The file system of "+file+" does not support POSIX permissions, so the snapshot "
+                    + "keeps the permissions of its directory.");
+            }
+        }
+    }
+
+    // Writes the field name table and then each record
+    private static void writeRecords(DataOutputStream output, List<Map<String,Object>> records) throws IOException {
+        Map<String,Integer> names = new LinkedHashMap<String,Integer>();
+        for (Map<String,Object> record : records) {
+            if (record != null) {
+                for (String name : record.keySet()) {
+                    if (!names.containsKey(name)) {
+                        names.put(name, names.size());
+                    }
+                }
+            }
+        }
+        output.writeInt(names.size());
+        for (String name : names.keySet()) {
+            writeString(output, name);
+        }
+        output.writeInt(records.size());
+        for (Map<String,Object> record : records) {
+            if (record == null) {
+                output.writeInt(-1);
+                continue;
+            }
+            output.writeInt(record.size());
+            for (Map.Entry<String,Object> field : record.entrySet()) {
+                output.writeInt(names.get(field.getKey()));
+                writeValue(output, field.getValue());
+            }
+        }
+    }
+
+    private static List<Map<String,Object>> readRecords(ByteBuffer buffer) throws IOException {
+        // Each name and record takes at least its 4 byte length
+        String[] names = new String[readLength(buffer, 4)];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = readString(buffer);
+        }
+        int size = readLength(buffer, 4);
+        List<Map<String,Object>> records = new ArrayList<Map<String,Object>>(size);
+        for (int i = 0; i < size; i++) {
+            int fields = buffer.getInt();
+            if (fields < 0) {
+                records.add(null);
+                continue;
+            }
+            // The same map type the response reader builds
+            @SuppressWarnings("unchecked") // JSONObject is a raw map
+            Map<String,Object> record = new JSONObject();
+            for (int j = 0; j < fields; j++) {
+                record.put(names[buffer.getInt()], readValue(buffer));
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static void writeValue(DataOutputStream output, Object value) throws IOException {
+        if (value == null) {
+            output.writeByte(NULL);
+        } else if (value instanceof String) {
+            output.writeByte(STRING);
+            writeString(output, (String)value);
+        } else if (value instanceof Long || value instanceof Integer) {
+            output.writeByte(LONG);
+            output.writeLong(((Number)value).longValue());
+        } else if (value instanceof Double) {
+            output.writeByte(DOUBLE);
+            output.writeDouble((Double)value);
+        } else if (value instanceof Boolean) {
+            output.writeByte((Boolean)value ? TRUE : FALSE);
+        } else if (value instanceof JSONAware) {
+            output.writeByte(JSON);
+            writeString(output, ((JSONAware)value).toJSONString());
+        } else {
+            output.writeByte(STRING);
+            writeString(output, String.valueOf(value));
+        }
+    }
+
+    private static Object readValue(ByteBuffer buffer) throws IOException {
+        byte tag = buffer.get();
+        switch (tag) {
+            case NULL: return null;
+            case STRING: return readString(buffer);
+            case LONG: return buffer.getLong();
+            case DOUBLE: return buffer.getDouble();
+            case TRUE: return Boolean.TRUE;
+            case FALSE: return Boolean.FALSE;
+            case JSON: return JSONValue.parse(readString(buffer));
+            default: throw new IOException("Unknown value type "+tag+" in the snapshot.");
+        }
+    }
+
+    // Writes the length of the UTF-8 bytes (-1 for null) followed by the bytes
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[readLength(buffer, 1)];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static String readString(ByteBuffer buffer) throws UnsupportedEncodingException {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    // Reads the number of items that follow, checking that the rest of the file can hold that many
+    // items of at least the given size (in bytes) so that a damaged length isn't allocated
+    private static int readLength(ByteBuffer buffer, int minimumSize) {
+        int length = buffer.getInt();
+        if (length < 0 || (long)length * minimumSize > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        return length;
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                logger.debug("Unable to close "+closeable.getClass().getSimpleName(), e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "file="+file+", loaded="+loadBytes+" bytes in "+loadMillis+"ms, written="+writeBytes+" bytes in "
+            + writeMillis+"ms";
+    }
+}
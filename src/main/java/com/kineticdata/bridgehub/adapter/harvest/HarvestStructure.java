@@ -0,0 +1,325 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Describes how a bridge structure maps onto the Harvest API.
+ *
+ * The structures are defined once in the table below.  Each has the url templates its objects are
+ * listed from (the first template whose parameters are all in the query is used, so the more
+ * specific templates come first), the template one object is retrieved from, the key of the
+ * envelope Harvest wraps each object in, the filters Harvest accepts when listing it, whether it
+ * can be mirrored, and whether Harvest pages its list (so the first response isn't the whole list).  Date range structures
+ * (Entries and Expenses) are listed per project or user over a from/to range, which the adapter
+ * splits into parallel sub-requests.
+ *
+ * Templates are parsed when the table is built, so rendering a url only appends the literal parts
+ * and the encoded parameter values.  The parameters used in the path are removed from the query,
+ * and the rest are passed to Harvest in the query string of list urls.  Harvest ignores filters it
+ * doesn't know (and would return the unfiltered list), so any other parameter is rejected.
+ */
+class HarvestStructure {
+
+    private static final Map<String,HarvestStructure> STRUCTURES = new LinkedHashMap<String,HarvestStructure>();
+    static {
+        define(new HarvestStructure("Clients", "client", "client_id").mirrorable()
+            .filters("updated_since")
+            .list("/clients")
+            .retrieve("/clients/{client_id}"));
+        define(new HarvestStructure("Contacts", "contact", "contact_id")
+            .filters("updated_since")
+            .list("/clients/{client_id}/contacts")
+            .list("/contacts")
+            .retrieve("/contacts/{contact_id}"));
+        define(new HarvestStructure("Projects", "project", "project_id").mirrorable()
+            .filters("client", "updated_since")
+            .list("/projects")
+            .retrieve("/projects/{project_id}"));
+        define(new HarvestStructure("Tasks", "task", "task_id").mirrorable()
+            .filters("updated_since")
+            .list("/tasks")
+            .retrieve("/tasks/{task_id}"));
+        define(new HarvestStructure("Task Assignments", "task_assignment", "task_assignment_id")
+            .filters("updated_since")
+            .list("/projects/{project_id}/task_assignments")
+            .retrieve("/projects/{project_id}/task_assignments/{task_assignment_id}"));
+        define(new HarvestStructure("Users", "user", "user_id").mirrorable()
+            .filters("updated_since")
+            .list("/people")
+            .retrieve("/people/{user_id}"));
+        define(new HarvestStructure("User Assignments", "user_assignment", "user_assignment_id")
+            .filters("updated_since")
+            .list("/projects/{project_id}/user_assignments")
+            .retrieve("/projects/{project_id}/user_assignments/{user_assignment_id}"));
+        define(new HarvestStructure("Entries", "day_entry", null).dateRange()
+            .filters("from", "to", "billable", "only_billed", "only_unbilled", "is_closed", "updated_since")
+            .list("/projects/{project_id}/entries")
+            .list("/people/{user_id}/entries"));
+        define(new HarvestStructure("Invoices", "invoices", "invoice_id").paged()
+            .filters("page", "from", "to", "updated_since", "status", "client")
+            .list("/invoices")
+            .retrieve("/invoices/{invoice_id}"));
+        define(new HarvestStructure("Expenses", "expense", null).dateRange()
+            .filters("from", "to", "only_billed", "only_unbilled", "is_closed", "updated_since")
+            .list("/projects/{project_id}/expenses")
+            .list("/people/{user_id}/expenses"));
+    }
+
+    /** The names of the defined structures, in the order they were defined */
+    static final List<String> NAMES = Collections.unmodifiableList(new ArrayList<String>(STRUCTURES.keySet()));
+
+    private final String name;
+    private final String envelope;
+    private final String idKey;
+    private final List<UrlTemplate> listTemplates = new ArrayList<UrlTemplate>();
+    private final Set<String> filters = new LinkedHashSet<String>();
+    private UrlTemplate retrieveTemplate;
+    private boolean mirrorable;
+    private boolean dateRange;
+    private boolean paged;
+
+    private HarvestStructure(String name, String envelope, String idKey) {
+        this.name = name;
+        this.envelope = envelope;
+        this.idKey = idKey;
+    }
+
+    private static void define(HarvestStructure structure) {
+        STRUCTURES.put(structure.name, structure);
+    }
+
+    /** Returns the structure with the name, or null if there isn't one. */
+    static HarvestStructure get(String name) {
+        return name == null ? null : STRUCTURES.get(name);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /** Returns the key of the object Harvest wraps each object of the structure in. */
+    String getEnvelope() {
+        return envelope;
+    }
+
+    /** Returns the query key that identifies one object, or null if objects can't be retrieved. */
+    String getIdKey() {
+        return idKey;
+    }
+
+    boolean isMirrorable() {
+        return mirrorable;
+    }
+
+    /** Returns true if the structure is listed per project or user over a from/to date range. */
+    boolean isDateRange() {
+        return dateRange;
+    }
+
+    /** Returns true if Harvest returns the list of the structure a page at a time. */
+    boolean isPaged() {
+        return paged;
+    }
+
+    /**
+     * Returns true if one object can be found in the unfiltered list of the structure, ie. several
+     * retrieves of Clients can be answered by listing the Clients once.  Paged structures can't be,
+     * because the object may not be on the first page.
+     */
+    boolean isBatchable() {
+        if (paged || retrieveTemplate == null || retrieveTemplate.keys.length != 1) {
+            return false;
+        }
+        for (UrlTemplate template : listTemplates) {
+            if (template.keys.length == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the path parameter of each list template that has exactly one, ie. project_id and user_id. */
+    List<String> getListKeys() {
+        List<String> keys = new ArrayList<String>();
+        for (UrlTemplate template : listTemplates) {
+            if (template.keys.length == 1) {
+                keys.add(template.keys[0]);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Builds the url listing the objects that match the query.  The parameters used in the path are
+     * removed from the query map and the rest are appended as the query string.
+     *
+     * @throws BridgeError if a parameter isn't in the path or one of the structure's filters
+     */
+    String buildListUrl(String endpoint, Map<String,String> query) throws BridgeError {
+        for (UrlTemplate template : listTemplates) {
+            if (template.matches(query)) {
+                StringBuilder url = new StringBuilder(endpoint.length() + template.length + 16 * query.size());
+                url.append(endpoint);
+                template.render(url, query);
+                if (dateRange && (!query.containsKey("from") || !query.containsKey("to"))) {
+                    throw new BridgeError("A date range must be provided with the format of from=YYYYMMDD&to=YYYYMMDD");
+                }
+                for (String key : query.keySet()) {
+                    if (!filters.contains(key)) {
+                        throw new BridgeError("The "+name+" structure can not be searched by "+key+" (the supported "
+                            +"parameters are "+describeParameters()+").");
+                    }
+                }
+                char separator = '?';
+                for (Map.Entry<String,String> parameter : query.entrySet()) {
+                    url.append(separator).append(encode(parameter.getKey())).append('=')
+                        .append(encode(parameter.getValue()));
+                    separator = '&';
+                }
+                return url.toString();
+            }
+        }
+        StringBuilder message = new StringBuilder("A ");
+        for (int i = 0; i < listTemplates.size(); i++) {
+            message.append(i == 0 ? "" : " or ").append(listTemplates.get(i).describeKeys());
+        }
+        throw new BridgeError(message.append(" is required for the ").append(name).append(" structure").toString());
+    }
+
+    /**
+     * Builds the url of the object identified by the query.  The parameters used in the path are
+     * removed from the query map and the rest are ignored.
+     */
+    String buildRetrieveUrl(String endpoint, Map<String,String> query) throws BridgeError {
+        if (retrieveTemplate == null) {
+            throw new BridgeError("The " + name + " structure does not have a retrieve option");
+        }
+        if (!retrieveTemplate.matches(query)) {
+            throw new BridgeError("A "+retrieveTemplate.describeKeys()+(retrieveTemplate.keys.length > 1 ? " are" : " is")
+                +" required to retrieve a "+envelope.replace('_', ' '));
+        }
+        StringBuilder url = new StringBuilder(endpoint.length() + retrieveTemplate.length);
+        url.append(endpoint);
+        retrieveTemplate.render(url, query);
+        return url.toString();
+    }
+
+    /** URL encodes the value as UTF-8. */
+    static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Every JVM supports UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ie. "client_id, project_id, from or to"
+    private String describeParameters() {
+        Set<String> parameters = new LinkedHashSet<String>();
+        for (UrlTemplate template : listTemplates) {
+            parameters.addAll(Arrays.asList(template.keys));
+        }
+        parameters.addAll(filters);
+        StringBuilder description = new StringBuilder();
+        int i = 0;
+        for (String parameter : parameters) {
+            description.append(i == 0 ? "" : i == parameters.size() - 1 ? " or " : ", ").append(parameter);
+            i++;
+        }
+        return description.toString();
+    }
+
+    private HarvestStructure filters(String... keys) {
+        filters.addAll(Arrays.asList(keys));
+        return this;
+    }
+
+    private HarvestStructure list(String template) {
+        listTemplates.add(new UrlTemplate(template));
+        return this;
+    }
+
+    private HarvestStructure retrieve(String template) {
+        retrieveTemplate = new UrlTemplate(template);
+        return this;
+    }
+
+    private HarvestStructure mirrorable() {
+        mirrorable = true;
+        return this;
+    }
+
+    private HarvestStructure paged() {
+        paged = true;
+        return this;
+    }
+
+    private HarvestStructure dateRange() {
+        dateRange = true;
+        return this;
+    }
+
+    /** A path such as /projects/{project_id}/entries split into its literal parts and parameters */
+    static class UrlTemplate {
+        private final String[] literals;
+        private final String[] keys;
+        // The length of the literal parts, used to size the url
+        private final int length;
+
+        UrlTemplate(String template) {
+            List<String> literalList = new ArrayList<String>();
+            List<String> keyList = new ArrayList<String>();
+            int position = 0;
+            int open;
+            while ((open = template.indexOf('{', position)) >= 0) {
+                int close = template.indexOf('}', open);
+                literalList.add(template.substring(position, open));
+                keyList.add(template.substring(open + 1, close));
+                position = close + 1;
+            }
+            literalList.add(template.substring(position));
+            this.literals = literalList.toArray(new String[literalList.size()]);
+            this.keys = keyList.toArray(new String[keyList.size()]);
+            this.length = template.length();
+        }
+
+        /** Returns true if the query has every parameter of the template. */
+        boolean matches(Map<String,String> query) {
+            for (String key : keys) {
+                if (!query.containsKey(key)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Appends the path, removing its parameters from the query. */
+        void render(StringBuilder url, Map<String,String> query) {
+            for (int i = 0; i < keys.length; i++) {
+                // Path segments encode spaces as %20 rather than +
+                url.append(literals[i]).append(encode(query.remove(keys[i])).replace("+", "%20"));
+            }
+            url.append(literals[keys.length]);
+        }
+
+        // ie. "project_id and task_assignment_id"
+        private String describeKeys() {
+            StringBuilder description = new StringBuilder();
+            for (int i = 0; i < keys.length; i++) {
+                description.append(i == 0 ? "" : " and ").append(keys[i]);
+            }
+            return description.toString();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+
+/**
+ * Thrown when Harvest could not be reached or did not respond successfully in time, as opposed to
+ * responding that the request itself was invalid.  These are the errors that a stale cached
+ * response may be served in place of.
+ */
+class HarvestUnavailableError extends BridgeError {
+
+    private static final long serialVersionUID = 1L;
+
+    HarvestUnavailableError(String message) {
+        super(message);
+    }
+
+    HarvestUnavailableError(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,154 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warms the adapter up when it is initialized so the first bridge calls don't pay for it.
+ *
+ * Warm-up runs on its own thread.  It first makes one cheap request to validate the credentials,
+ * which also opens the first pooled connection (DNS, TCP and TLS), and then lists each of the
+ * configured structures so that they are cached and the request and parsing code has been run.
+ * In the Background mode initialization continues straight away; in the Blocking mode it waits
+ * until warm-up completes or the deadline passes, after which warm-up continues in the background.
+ * The time each step took is logged once warm-up completes.
+ */
+class HarvestWarmUp {
+
+    /** Defines the logger */
+    protected static final Logger logger = LoggerFactory.getLogger(HarvestWarmUp.class);
+
+    enum Mode { DISABLED, BACKGROUND, BLOCKING }
+
+    /** The requests that warm the adapter up */
+    interface Steps {
+        void validateCredentials() throws BridgeError;
+
+        /** Lists the structure and returns the number of objects it has. */
+        int preload(String structure) throws BridgeError;
+    }
+
+    private final List<String> structures;
+    private final Steps steps;
+    private final FutureTask<Void> task;
+
+    // Step name -> how long it took (in milliseconds), in the order the steps were run
+    private final Map<String,Long> timings = new LinkedHashMap<String,Long>();
+    private volatile long millis = -1;
+    // Set if Harvest responded with an error to the credential validation
+    private volatile BridgeError credentialError;
+
+    HarvestWarmUp(List<String> structures, Steps steps) {
+        this.structures = new ArrayList<String>(structures);
+        this.steps = steps;
+        this.task = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                warmUp();
+            }
+        }, null);
+    }
+
+    /** Parses the Warm-up Mode property value (blank is Disabled). */
+    static Mode parseMode(String name, String value) throws BridgeError {
+        String mode = value == null ? "" : value.trim();
+        if (mode.isEmpty() || "Disabled".equalsIgnoreCase(mode)) {
+            return Mode.DISABLED;
+        } else if ("Background".equalsIgnoreCase(mode)) {
+            return Mode.BACKGROUND;
+        } else if ("Blocking".equalsIgnoreCase(mode)) {
+            return Mode.BLOCKING;
+        }
+        throw new BridgeError("The '"+name+"' property must be Disabled, Background or Blocking, found: '"+value+"'.");
+    }
+
+    /** Starts warming up in the background. */
+    void start() {
+        Thread thread = new Thread(task, "Harvest Warm-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits for warm-up to complete, but no longer than the timeout.
+     *
+     * @throws BridgeError if Harvest responded with an error when the credentials were validated
+     */
+    void await(long timeoutMillis) throws BridgeError {
+        try {
+            task.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.warn("Warm-up did not complete within "+timeoutMillis+"ms, continuing in the background.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BridgeError("Interrupted while waiting for the adapter to warm up.", e);
+        } catch (ExecutionException e) {
+            logger.warn("Warm-up failed.", e.getCause());
+        }
+        if (credentialError != null) {
+            throw credentialError;
+        }
+    }
+
+    /** Stops warming up if it hasn't completed. */
+    void stop() {
+        task.cancel(true);
+    }
+
+    /** Returns how long warm-up took (in milliseconds), or -1 if it hasn't completed. */
+    long getMillis() {
+        return millis;
+    }
+
+    private void warmUp() {
+        long start = System.currentTimeMillis();
+        long stepStart = start;
+        try {
+            steps.validateCredentials();
+            record("credentials", stepStart);
+        } catch (HarvestUnavailableError e) {
+            logger.warn("Unable to validate the credentials during warm-up: "+e.getMessage());
+        } catch (BridgeError e) {
+            credentialError = new BridgeError("The credentials could not be validated during warm-up: "+e.getMessage(), e);
+            logger.error(credentialError.getMessage());
+            return;
+        }
+
+        for (String structure : structures) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            stepStart = System.currentTimeMillis();
+            try {
+                int count = steps.preload(structure);
+                record(structure+" ("+count+")", stepStart);
+            } catch (BridgeError e) {
+                logger.warn("Unable to preload the "+structure+" during warm-up: "+e.getMessage());
+            }
+        }
+        millis = System.currentTimeMillis() - start;
+        logger.info("Warm-up completed in "+millis+"ms: "+getTimings());
+    }
+
+    private synchronized void record(String step, long start) {
+        timings.put(step, System.currentTimeMillis() - start);
+    }
+
+    private synchronized Map<String,Long> getTimings() {
+        return new LinkedHashMap<String,Long>(timings);
+    }
+
+    @Override
+    public String toString() {
+        return "millis="+millis+", steps="+getTimings();
+    }
+}
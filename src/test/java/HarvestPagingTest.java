@@ -0,0 +1,19 @@
+import com.kineticdata.bridgehub.adapter.BridgeAdapterTestBase;
+import com.kineticdata.bridgehub.adapter.harvest.HarvestAdapter;
+
+/**
+ * Runs the standard Bridgehub pagination and order tests against Harvest, with the sortable
+ * fields and offset pagination configured in bridge-config-paging.yml.
+ */
+public class HarvestPagingTest extends BridgeAdapterTestBase {
+
+    @Override
+    public Class getAdapterClass() {
+        return HarvestAdapter.class;
+    }
+
+    @Override
+    public String getConfigFilePath() {
+        return "src/test/resources/bridge-config-paging.yml";
+    }
+}
@@ -0,0 +1,356 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import com.kineticdata.bridgehub.adapter.BridgeRequest;
+import com.kineticdata.bridgehub.adapter.Record;
+import com.kineticdata.bridgehub.adapter.RecordList;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.management.ObjectName;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HarvestAdapterTest {
+
+    private HarvestStandIn harvest;
+    private HarvestAdapter adapter;
+
+    @Before
+    public void startHarvest() throws Exception {
+        harvest = new HarvestStandIn();
+    }
+
+    @After
+    public void stop() {
+        if (adapter != null) {
+            adapter.destroy();
+        }
+        harvest.close();
+    }
+
+    @Test
+    public void testCachedListsAnswerFilteredSearches() throws Exception {
+        harvest.respond("/clients", "[{\"client\":{\"id\":1,\"active\":true}},{\"client\":{\"id\":2,\"active\":false}}]");
+        adapter = adapter("Cache TTL (seconds)", "60");
+
+        assertEquals(2, adapter.search(request("Clients", "")).getRecords().size());
+        assertEquals(Arrays.asList(2L), ids(adapter.search(request("Clients", "active=false"))));
+        assertEquals(1, (int)adapter.count(request("Clients", "active=true")).getValue());
+        assertEquals(Arrays.asList("/clients"), harvest.getPaths());
+    }
+
+    @Test
+    public void testRejectsSearchesHarvestCanNotFilter() throws Exception {
+        harvest.respond("/clients", "[{\"client\":{\"id\":1,\"active\":true}},{\"client\":{\"id\":2,\"active\":false}}]");
+        adapter = adapter();
+        // Harvest would ignore the parameter and return every client
+        try {
+            adapter.search(request("Clients", "active=false"));
+            fail("Expected a BridgeError for an unsupported parameter");
+        } catch (BridgeError e) {
+            assertTrue(e.getMessage().contains("searched by active"));
+        }
+        try {
+            adapter.count(request("Clients", "client_id=1"));
+            fail("Expected a BridgeError for an unsupported parameter");
+        } catch (BridgeError e) {
+            assertTrue(e.getMessage().contains("searched by client_id"));
+        }
+        assertTrue(harvest.getPaths().isEmpty());
+    }
+
+    @Test
+    public void testPagedStructuresAreNotAnsweredFromTheCache() throws Exception {
+        // The cached list of a paged structure is only its first page
+        harvest.respond("/invoices", "[{\"invoices\":{\"id\":1,\"status\":\"paid\"}},"
+            + "{\"invoices\":{\"id\":2,\"status\":\"draft\"}}]");
+        harvest.respond("/invoices?status=paid", "[{\"invoices\":{\"id\":1,\"status\":\"paid\"}},"
+            + "{\"invoices\":{\"id\":3,\"status\":\"paid\"}}]");
+        adapter = adapter("Cache TTL (seconds)", "60");
+
+        assertEquals(2, adapter.search(request("Invoices", "")).getRecords().size());
+        assertEquals(Arrays.asList(1L, 3L), ids(adapter.search(request("Invoices", "status=paid"))));
+        assertEquals(2, (int)adapter.count(request("Invoices", "status=paid")).getValue());
+        assertEquals(Arrays.asList("/invoices", "/invoices?status=paid"), harvest.getPaths());
+    }
+
+    @Test
+    public void testRevalidatesExpiredResponses() throws Exception {
+        harvest.respond("/clients", "[{\"client\":{\"id\":1}},{\"client\":{\"id\":2}}]")
+            .header("ETag", "\"v1\"").header("Last-Modified", "Mon, 01 Feb 2016 00:00:00 GMT");
+        adapter = adapter("Cache TTL (seconds)", "1");
+        assertEquals(Arrays.asList(1L, 2L), ids(adapter.search(request("Clients", ""))));
+        assertEquals(null, harvest.getRequests().get(0).getHeader("If-None-Match"));
+
+        // The not modified response has no body, so the cached records are used as they are
+        harvest.respond("/clients", 304, null);
+        Thread.sleep(1100);
+        assertEquals(Arrays.asList(1L, 2L), ids(adapter.search(request("Clients", ""))));
+        HarvestStandIn.Request conditional = harvest.getRequests().get(1);
+        assertEquals("\"v1\"", conditional.getHeader("If-None-Match"));
+        assertEquals("Mon, 01 Feb 2016 00:00:00 GMT", conditional.getHeader("If-Modified-Since"));
+
+        // The revalidated response is fresh for another time to live
+        assertEquals(2, (int)adapter.count(request("Clients", "")).getValue());
+        assertEquals(2, harvest.count("/clients"));
+    }
+
+    @Test
+    public void testModifiedResponsesReplaceExpiredOnes() throws Exception {
+        harvest.respond("/clients", "[{\"client\":{\"id\":1}},{\"client\":{\"id\":2}}]").header("ETag", "\"v1\"");
+        adapter = adapter("Cache TTL (seconds)", "1");
+        assertEquals(Arrays.asList(1L, 2L), ids(adapter.search(request("Clients", ""))));
+
+        harvest.respond("/clients", "[{\"client\":{\"id\":3}}]").header("ETag", "\"v2\"");
+        Thread.sleep(1100);
+        assertEquals(Arrays.asList(3L), ids(adapter.search(request("Clients", ""))));
+        assertEquals("\"v1\"", harvest.getRequests().get(1).getHeader("If-None-Match"));
+
+        // The replacement is revalidated with its own validator
+        harvest.respond("/clients", 304, null);
+        Thread.sleep(1100);
+        assertEquals(Arrays.asList(3L), ids(adapter.search(request("Clients", ""))));
+        assertEquals("\"v2\"", harvest.getRequests().get(2).getHeader("If-None-Match"));
+    }
+
+    @Test
+    public void testSearchesAPageInOrder() throws Exception {
+        harvest.respond("/projects", "[{\"project\":{\"id\":1,\"name\":\"C\"}},{\"project\":{\"id\":2,\"name\":\"A\"}},"
+            + "{\"project\":{\"id\":3,\"name\":\"B\"}},{\"project\":{\"id\":4,\"name\":\"A\"}}]");
+        adapter = adapter();
+
+        RecordList page = adapter.search(page(request("Projects", ""), "2", "1", "<%=field[\"name\"]%>:ASC"));
+        assertEquals(Arrays.asList(4L, 3L), ids(page));
+        assertEquals("4", page.getMetadata().get("count"));
+        assertEquals("3", page.getMetadata().get("nextPageToken"));
+        page = adapter.search(page(request("Projects", ""), "2", "3", "<%=field[\"name\"]%>:ASC"));
+        assertEquals(Arrays.asList(1L), ids(page));
+        assertFalse(page.getMetadata().containsKey("nextPageToken"));
+
+        // Past the end, and every object after the offset
+        assertTrue(adapter.search(page(request("Projects", ""), "2", "4", null)).getRecords().isEmpty());
+        assertEquals(Arrays.asList(2L, 3L, 4L), ids(adapter.search(page(request("Projects", ""), "0", "1", null))));
+    }
+
+    @Test
+    public void testRejectsNegativePages() throws Exception {
+        harvest.respond("/projects", "[{\"project\":{\"id\":1}}]");
+        adapter = adapter();
+        String[][] pages = {{"10", "-1"}, {"-1", "0"}, {"ten", "0"}, {"10", "one"}};
+        for (String[] values : pages) {
+            try {
+                adapter.search(page(request("Projects", ""), values[0], values[1], "<%=field[\"id\"]%>:ASC"));
+                fail("Expected a BridgeError for pageSize="+values[0]+", offset="+values[1]);
+            } catch (BridgeError e) {
+                assertTrue(e.getMessage().contains("pageSize"));
+            }
+        }
+    }
+
+    @Test
+    public void testUnparseableResponsesDoNotOpenTheCircuit() throws Exception {
+        harvest.respond("/clients", "[{\"client\":{\"id\":1}},");
+        harvest.respond("/projects", 500, "{\"message\":\"Internal error\"}");
+        adapter = adapter("Circuit Breaker Failure Rate (%)", "50", "Circuit Breaker Window", "2");
+
+        // Harvest responded successfully, so every search is still requested
+        for (int i = 0; i < 3; i++) {
+            try {
+                adapter.search(request("Clients", ""));
+                fail("Expected a BridgeError for an unparseable response");
+            } catch (HarvestUnavailableError e) {
+                fail("Unexpected "+e);
+            } catch (BridgeError e) {
+                // expected
+            }
+        }
+        assertEquals(3, harvest.count("/clients"));
+
+        // Whereas failing responses open the circuit of their endpoint
+        for (int i = 0; i < 3; i++) {
+            try {
+                adapter.search(request("Projects", ""));
+                fail("Expected a HarvestUnavailableError");
+            } catch (HarvestUnavailableError e) {
+                // expected
+            }
+        }
+        assertEquals(2, harvest.count("/projects"));
+    }
+
+    @Test
+    public void testBlockingWarmUpFailsInitializationWithInvalidCredentials() throws Exception {
+        harvest.respond("/account/who_am_i", 401, "{\"message\":\"Unauthorized\"}");
+        try {
+            adapter("Warm-up Mode", "Blocking", "Warm-up Structures", "Clients");
+            fail("Expected a BridgeError for the invalid credentials");
+        } catch (BridgeError e) {
+            assertTrue(e.getMessage().contains("credentials"));
+        }
+        assertEquals(Arrays.asList("/account/who_am_i"), harvest.getPaths());
+    }
+
+    @Test
+    public void testBackgroundWarmUpOnlyLogsFailures() throws Exception {
+        harvest.respond("/account/who_am_i", 401, "{\"message\":\"Unauthorized\"}").delay(500);
+        harvest.respond("/clients", "[{\"client\":{\"id\":1}}]");
+        long start = System.currentTimeMillis();
+        adapter = adapter("Warm-up Mode", "Background", "Warm-up Structures", "Clients");
+        assertTrue(System.currentTimeMillis() - start < 500);
+
+        while (harvest.count("/account/who_am_i") == 0) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(700);
+        // The failed warm-up didn't preload the structures, and the adapter is still usable
+        assertEquals(0, harvest.count("/clients"));
+        assertEquals(Arrays.asList(1L), ids(adapter.search(request("Clients", ""))));
+    }
+
+    @Test
+    public void testDestroyUnregistersTheMetrics() throws Exception {
+        ObjectName name = new ObjectName("com.kineticdata.bridgehub.adapter.harvest:type=HarvestAdapter,name="
+            + ObjectName.quote("user@"+harvest.getEndpoint()));
+        adapter = adapter("Metrics Enabled", "true");
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        adapter.destroy();
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    @Test
+    public void testSplitsADateRangeIntoEvenWindows() throws Exception {
+        adapter = adapter("Entries Window (days)", "10");
+        assertWindows("from=20160101&to=20160130",
+            "from=20160101&to=20160110", "from=20160111&to=20160120", "from=20160121&to=20160130");
+    }
+
+    @Test
+    public void testShortensTheLastWindowOfAnUnevenDateRange() throws Exception {
+        adapter = adapter("Entries Window (days)", "10");
+        assertWindows("from=20160101&to=20160125",
+            "from=20160101&to=20160110", "from=20160111&to=20160120", "from=20160121&to=20160125");
+        // Across the end of a month
+        assertWindows("from=20160125&to=20160204", "from=20160125&to=20160203", "from=20160204&to=20160204");
+    }
+
+    @Test
+    public void testRequestsASingleDayRangeOnce() throws Exception {
+        adapter = adapter("Entries Window (days)", "10");
+        assertWindows("from=20160229&to=20160229", "from=20160229&to=20160229");
+    }
+
+    @Test
+    public void testRejectsAReversedDateRange() throws Exception {
+        adapter = adapter("Entries Window (days)", "10");
+        try {
+            adapter.search(request("Entries", "project_id=1&from=20160110&to=20160101"));
+            fail("Expected a BridgeError for a reversed date range");
+        } catch (BridgeError e) {
+            assertTrue(e.getMessage().contains("from date"));
+        }
+        assertTrue(harvest.getPaths().isEmpty());
+    }
+
+    @Test
+    public void testMergesTheWindowsInOrder() throws Exception {
+        // Entries on either side of the window edge are only returned by their own window
+        harvest.respond("/projects/1/entries?from=20160101&to=20160110", entries(1, "2016-01-01", 2, "2016-01-10"));
+        harvest.respond("/projects/1/entries?from=20160111&to=20160120", entries(3, "2016-01-11", 4, "2016-01-20"))
+            .delay(100);
+        harvest.respond("/projects/2/entries?from=20160101&to=20160110", entries(5, "2016-01-10"));
+        harvest.respond("/projects/2/entries?from=20160111&to=20160120", entries(6, "2016-01-11"));
+        adapter = adapter("Entries Window (days)", "10");
+
+        // The slow window is still merged in the order of the ids, then the dates
+        RecordList records = adapter.search(request("Entries", "project_id=1,2&from=20160101&to=20160120"));
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L), ids(records));
+        assertEquals(6, (int)adapter.count(request("Entries", "project_id=1,2&from=20160101&to=20160120")).getValue());
+        // Each id and window was requested once by the search
+        List<String> paths = harvest.getPaths().subList(0, 4);
+        Collections.sort(paths);
+        assertEquals(Arrays.asList("/projects/1/entries?from=20160101&to=20160110",
+            "/projects/1/entries?from=20160111&to=20160120", "/projects/2/entries?from=20160101&to=20160110",
+            "/projects/2/entries?from=20160111&to=20160120"), paths);
+    }
+
+    // Builds and initializes an adapter that requests the stand-in with the given properties
+    private HarvestAdapter adapter(String... properties) throws Exception {
+        Map<String,String> values = new LinkedHashMap<String,String>();
+        values.put("Username", "user");
+        values.put("Password", "secret");
+        values.put("Account Name", "acme");
+        values.put("Harvest Endpoint", harvest.getEndpoint());
+        values.put("Rate Limit (requests/second)", "1000");
+        values.put("Rate Limit Burst", "1000");
+        values.put("Max Retries", "0");
+        for (int i = 0; i < properties.length; i += 2) {
+            values.put(properties[i], properties[i + 1]);
+        }
+        // Kept so that it is destroyed even if it fails to initialize
+        adapter = new HarvestAdapter();
+        adapter.setProperties(values);
+        adapter.initialize();
+        return adapter;
+    }
+
+    // Searches project 1's entries over the range and checks that exactly the windows were requested
+    private void assertWindows(String range, String... windows) throws Exception {
+        List<String> expected = new ArrayList<String>();
+        for (String window : windows) {
+            expected.add("/projects/1/entries?"+window);
+            harvest.respond("/projects/1/entries?"+window, "[]");
+        }
+        harvest.clearRequests();
+        assertTrue(adapter.search(request("Entries", "project_id=1&"+range)).getRecords().isEmpty());
+        List<String> paths = harvest.getPaths();
+        Collections.sort(paths);
+        assertEquals(expected, paths);
+    }
+
+    // Builds an entries response from pairs of ids and spent_at dates
+    private static String entries(Object... values) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < values.length; i += 2) {
+            json.append(i == 0 ? "" : ",").append("{\"day_entry\":{\"id\":").append(values[i])
+                .append(",\"spent_at\":\"").append(values[i + 1]).append("\"}}");
+        }
+        return json.append("]").toString();
+    }
+
+    private static BridgeRequest request(String structure, String query) {
+        BridgeRequest request = new BridgeRequest();
+        request.setStructure(structure);
+        request.setQuery(query);
+        request.setFields(new ArrayList<String>());
+        request.setParameters(new LinkedHashMap<String,String>());
+        request.setMetadata(new LinkedHashMap<String,String>());
+        return request;
+    }
+
+    private static BridgeRequest page(BridgeRequest request, String pageSize, String offset, String order) {
+        request.getMetadata().put("pageSize", pageSize);
+        request.getMetadata().put("offset", offset);
+        if (order != null) {
+            request.getMetadata().put("order", order);
+        }
+        return request;
+    }
+
+    private static List<Object> ids(RecordList records) {
+        List<Object> ids = new ArrayList<Object>();
+        for (Record record : records.getRecords()) {
+            ids.add(record.getValue("id"));
+        }
+        return ids;
+    }
+}
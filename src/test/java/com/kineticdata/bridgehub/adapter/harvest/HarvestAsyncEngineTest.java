@@ -0,0 +1,183 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HarvestAsyncEngineTest {
+
+    private static final byte[] BODY = body(1024 * 1024);
+
+    private HttpServer server;
+    private HarvestAsyncEngine engine;
+    // Released to let the server finish writing the slow response
+    private final CountDownLatch finish = new CountDownLatch(1);
+
+    @Before
+    public void start() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/large", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, BODY.length);
+                OutputStream output = exchange.getResponseBody();
+                try {
+                    output.write(BODY);
+                } finally {
+                    output.close();
+                }
+            }
+        });
+        server.createContext("/slow", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream output = exchange.getResponseBody();
+                try {
+                    output.write("first".getBytes("UTF-8"));
+                    output.flush();
+                    finish.await(10, TimeUnit.SECONDS);
+                    output.write("last".getBytes("UTF-8"));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    output.close();
+                }
+            }
+        });
+        server.createContext("/stalled", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    finish.await(10, TimeUnit.SECONDS);
+                    exchange.sendResponseHeaders(204, -1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext("/empty", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        engine = new HarvestAsyncEngine(1, 4, 4, 5000, 10000, 60000, RequestConfig.DEFAULT,
+            DefaultConnectionKeepAliveStrategy.INSTANCE);
+    }
+
+    @After
+    public void stop() throws Exception {
+        finish.countDown();
+        engine.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testStreamsALargeBody() throws Exception {
+        HttpResponse response = engine.execute(get("/large"), null, 0);
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals(BODY.length, response.getEntity().getContentLength());
+        assertTrue(Arrays.equals(BODY, readAll(response.getEntity().getContent())));
+        HarvestAsyncEngine.release(response);
+    }
+
+    @Test
+    public void testReturnsBeforeTheBodyIsReceived() throws Exception {
+        HttpResponse response = engine.execute(get("/slow"), null, System.currentTimeMillis() + 5000);
+        InputStream body = response.getEntity().getContent();
+        byte[] first = new byte[5];
+        int read = 0;
+        while (read < first.length) {
+            read += body.read(first, read, first.length - read);
+        }
+        assertEquals("first", new String(first, "UTF-8"));
+        finish.countDown();
+        assertEquals("last", new String(readAll(body), "UTF-8"));
+    }
+
+    @Test
+    public void testClosingTheBodyEarlyCancelsTheRequest() throws Exception {
+        HttpResponse response = engine.execute(get("/slow"), null, 0);
+        InputStream body = response.getEntity().getContent();
+        assertEquals('f', body.read());
+        HarvestAsyncEngine.release(response);
+        try {
+            body.read();
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        // The engine can still be used
+        finish.countDown();
+        response = engine.execute(get("/large"), null, 0);
+        assertEquals(BODY.length, readAll(response.getEntity().getContent()).length);
+    }
+
+    @Test
+    public void testResponsesWithoutABody() throws Exception {
+        HttpResponse response = engine.execute(get("/empty"), null, 0);
+        assertEquals(204, response.getStatusLine().getStatusCode());
+        HarvestAsyncEngine.release(response);
+    }
+
+    @Test
+    public void testFailsAtTheDeadline() throws Exception {
+        long start = System.currentTimeMillis();
+        try {
+            engine.execute(get("/stalled"), null, start + 200);
+            fail("Expected a HarvestUnavailableError");
+        } catch (HarvestUnavailableError e) {
+            // expected
+        }
+        long waited = System.currentTimeMillis() - start;
+        assertTrue("waited "+waited+"ms", waited >= 190 && waited < 5000);
+    }
+
+    private HttpGet get(String path) {
+        return new HttpGet("http://127.0.0.1:"+server.getAddress().getPort()+path);
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        input.close();
+        return output.toByteArray();
+    }
+
+    private static byte[] body(int length) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte)('a' + i % 26);
+        }
+        return body;
+    }
+}
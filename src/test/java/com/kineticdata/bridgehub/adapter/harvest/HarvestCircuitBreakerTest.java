@@ -0,0 +1,103 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class HarvestCircuitBreakerTest {
+
+    @Test
+    public void testOpensAtTheFailureRate() {
+        HarvestCircuitBreaker breaker = new HarvestCircuitBreaker(50, 0, 4, 60000, 1);
+        HarvestCircuitBreaker.Circuit circuit = breaker.getCircuit("Projects");
+
+        // The rate isn't checked until the window is full
+        record(circuit, 10, true);
+        record(circuit, 10, true);
+        record(circuit, 10, false);
+        assertEquals(HarvestCircuitBreaker.State.CLOSED, circuit.getState());
+
+        // 2 of the 4 most recent requests failed
+        record(circuit, 10, false);
+        assertEquals(HarvestCircuitBreaker.State.OPEN, circuit.getState());
+        assertFalse(circuit.tryAcquire());
+        assertEquals(1, breaker.getOpened());
+        assertEquals(1, breaker.getRejected());
+        assertEquals(1, breaker.getOpenCircuits());
+
+        // Other endpoints have their own circuit
+        assertTrue(breaker.getCircuit("Clients").tryAcquire());
+    }
+
+    @Test
+    public void testStaysClosedBelowTheFailureRate() {
+        HarvestCircuitBreaker.Circuit circuit = new HarvestCircuitBreaker(50, 0, 4, 60000, 1).getCircuit("Projects");
+        for (int i = 0; i < 20; i++) {
+            // 1 in 4 fails
+            record(circuit, 10, i % 4 == 0);
+        }
+        assertEquals(HarvestCircuitBreaker.State.CLOSED, circuit.getState());
+    }
+
+    @Test
+    public void testSlowCallsCountAsFailures() {
+        HarvestCircuitBreaker.Circuit circuit = new HarvestCircuitBreaker(100, 1000, 2, 60000, 1).getCircuit("Users");
+        record(circuit, 999, false);
+        record(circuit, 1000, false);
+        assertEquals(HarvestCircuitBreaker.State.CLOSED, circuit.getState());
+        record(circuit, 5000, false);
+        assertEquals(HarvestCircuitBreaker.State.OPEN, circuit.getState());
+    }
+
+    @Test
+    public void testHalfOpenTrialsClose() throws Exception {
+        HarvestCircuitBreaker.Circuit circuit = openCircuit(2);
+        Thread.sleep(60);
+
+        // Only the trial requests are let through
+        assertTrue(circuit.tryAcquire());
+        assertTrue(circuit.tryAcquire());
+        assertEquals(HarvestCircuitBreaker.State.HALF_OPEN, circuit.getState());
+        assertFalse(circuit.tryAcquire());
+
+        circuit.record(10, false);
+        assertEquals(HarvestCircuitBreaker.State.HALF_OPEN, circuit.getState());
+        circuit.record(10, false);
+        assertEquals(HarvestCircuitBreaker.State.CLOSED, circuit.getState());
+        assertTrue(circuit.tryAcquire());
+    }
+
+    @Test
+    public void testHalfOpenTrialFailureReopens() throws Exception {
+        HarvestCircuitBreaker.Circuit circuit = openCircuit(2);
+        Thread.sleep(60);
+        assertTrue(circuit.tryAcquire());
+        circuit.record(10, true);
+        assertEquals(HarvestCircuitBreaker.State.OPEN, circuit.getState());
+        assertFalse(circuit.tryAcquire());
+        assertTrue(circuit.getRemainingOpenMillis() > 0);
+    }
+
+    @Test
+    public void testDisabled() {
+        HarvestCircuitBreaker.Circuit circuit = new HarvestCircuitBreaker(0, 0, 1, 60000, 1).getCircuit("Projects");
+        for (int i = 0; i < 10; i++) {
+            record(circuit, 10, true);
+        }
+        assertEquals(HarvestCircuitBreaker.State.CLOSED, circuit.getState());
+    }
+
+    // Opens a circuit with a 50ms open duration
+    private HarvestCircuitBreaker.Circuit openCircuit(int trialCalls) {
+        HarvestCircuitBreaker.Circuit circuit = new HarvestCircuitBreaker(100, 0, 1, 50, trialCalls).getCircuit("Projects");
+        record(circuit, 10, true);
+        assertEquals(HarvestCircuitBreaker.State.OPEN, circuit.getState());
+        return circuit;
+    }
+
+    private void record(HarvestCircuitBreaker.Circuit circuit, long millis, boolean failed) {
+        assertTrue(circuit.tryAcquire());
+        circuit.record(millis, failed);
+    }
+}
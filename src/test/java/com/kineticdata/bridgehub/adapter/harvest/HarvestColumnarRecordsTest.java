@@ -0,0 +1,182 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class HarvestColumnarRecordsTest {
+
+    @Test
+    public void testCompactsAtTheThreshold() {
+        List<Map<String,Object>> records = records();
+        assertFalse(HarvestColumnarRecords.compact(records, 0) instanceof HarvestColumnarRecords);
+        assertFalse(HarvestColumnarRecords.compact(records, records.size() + 1) instanceof HarvestColumnarRecords);
+        List<Map<String,Object>> compacted = HarvestColumnarRecords.compact(records, records.size());
+        assertTrue(compacted instanceof HarvestColumnarRecords);
+        assertSame(compacted, HarvestColumnarRecords.compact(compacted, 1));
+    }
+
+    @Test
+    public void testRowsEqualTheRecords() {
+        List<Map<String,Object>> records = records();
+        List<Map<String,Object>> compacted = compact(records);
+        assertEquals(records.size(), compacted.size());
+        for (int row = 0; row < records.size(); row++) {
+            Map<String,Object> record = records.get(row);
+            Map<String,Object> view = compacted.get(row);
+            if (record == null) {
+                assertNull(view);
+                continue;
+            }
+            assertEquals(record, view);
+            assertEquals(view, record);
+            assertEquals(record.hashCode(), view.hashCode());
+            assertEquals(record.size(), view.size());
+            assertEquals(record.keySet(), view.keySet());
+            assertEquals(record.entrySet(), view.entrySet());
+        }
+        assertEquals(records, compacted);
+        assertEquals(records.hashCode(), compacted.hashCode());
+    }
+
+    @Test
+    public void testMissingProperties() {
+        Map<String,Object> second = compact(records()).get(1);
+        assertFalse(second.containsKey("rate"));
+        assertNull(second.get("rate"));
+        assertFalse(second.containsKey("unknown"));
+        assertEquals(3, second.entrySet().size());
+        assertEquals(3, second.size());
+        int count = 0;
+        for (Iterator<Map.Entry<String,Object>> entries = second.entrySet().iterator(); entries.hasNext(); ) {
+            assertFalse("rate".equals(entries.next().getKey()));
+            count++;
+        }
+        assertEquals(3, count);
+
+        // A property that is present with a null value
+        Map<String,Object> first = compact(records()).get(0);
+        assertTrue(first.containsKey("notes"));
+        assertNull(first.get("notes"));
+        assertEquals(6, first.entrySet().size());
+    }
+
+    @Test
+    public void testMixedTypeColumns() {
+        List<Map<String,Object>> compacted = compact(records());
+        // Numbers, strings and nested objects in the same property keep their own types
+        assertEquals(1L, compacted.get(0).get("code"));
+        assertEquals("B-2", compacted.get(1).get("code"));
+        assertEquals(Arrays.asList("c", 3L), compacted.get(3).get("code"));
+        assertEquals(Long.class, compacted.get(0).get("id").getClass());
+        assertEquals(Double.class, compacted.get(0).get("rate").getClass());
+        assertEquals(12.5, compacted.get(3).get("rate"));
+        assertEquals(Boolean.TRUE, compacted.get(0).get("active"));
+        assertEquals(Boolean.FALSE, compacted.get(1).get("active"));
+        assertNull(compacted.get(3).get("active"));
+        assertTrue(compacted.get(3).containsKey("active"));
+    }
+
+    @Test
+    public void testNullRows() {
+        List<Map<String,Object>> compacted = compact(records());
+        assertNull(compacted.get(2));
+        List<Map<String,Object>> onlyNulls = new ArrayList<Map<String,Object>>();
+        onlyNulls.add(null);
+        onlyNulls.add(null);
+        List<Map<String,Object>> compactedNulls = HarvestColumnarRecords.compact(onlyNulls, 1);
+        assertEquals(2, compactedNulls.size());
+        assertNull(compactedNulls.get(1));
+        try {
+            compacted.get(compacted.size());
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testEqualsAndHashCodeAgainstAHashMap() {
+        Map<String,Object> first = compact(records()).get(0);
+        Map<String,Object> map = new HashMap<String,Object>(records().get(0));
+        assertEquals(map, first);
+        assertEquals(first, map);
+        assertEquals(map.hashCode(), first.hashCode());
+
+        map.put("notes", "changed");
+        assertNotEquals(map, first);
+        assertNotEquals(first, map);
+        map.put("notes", null);
+        map.remove("rate");
+        assertNotEquals(map, first);
+        assertNotEquals(first, map);
+    }
+
+    @Test
+    public void testIsReadOnly() {
+        List<Map<String,Object>> compacted = compact(records());
+        try {
+            compacted.get(0).put("id", 5L);
+            fail("Expected an UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            compacted.get(0).entrySet().iterator().next().setValue(5L);
+            fail("Expected an UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            compacted.add(null);
+            fail("Expected an UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testEstimatesFewerBytesForRepeatedValues() {
+        List<Map<String,Object>> records = new ArrayList<Map<String,Object>>();
+        for (long i = 0; i < 1000; i++) {
+            records.add(record("id", i, "client", "Acme", "rate", 100.0, "billable", true));
+        }
+        long parsed = HarvestColumnarRecords.estimateBytes(records);
+        long columnar = HarvestColumnarRecords.estimateBytes(compact(records));
+        assertTrue(columnar > 0);
+        assertTrue(columnar < parsed / 2);
+    }
+
+    private static List<Map<String,Object>> compact(List<Map<String,Object>> records) {
+        return HarvestColumnarRecords.compact(records, 1);
+    }
+
+    // Records with missing properties, a null row and properties with mixed value types
+    private static List<Map<String,Object>> records() {
+        List<Map<String,Object>> records = new ArrayList<Map<String,Object>>();
+        records.add(record("id", 1L, "name", "A", "rate", 10.0, "active", true, "notes", null, "code", 1L));
+        records.add(record("id", 2L, "active", false, "code", "B-2"));
+        records.add(null);
+        records.add(record("id", 4L, "name", "A", "rate", 12.5, "active", null, "code", Arrays.asList("c", 3L)));
+        return records;
+    }
+
+    private static Map<String,Object> record(Object... properties) {
+        Map<String,Object> record = new HashMap<String,Object>();
+        for (int i = 0; i < properties.length; i += 2) {
+            record.put((String)properties[i], properties[i + 1]);
+        }
+        return record;
+    }
+}
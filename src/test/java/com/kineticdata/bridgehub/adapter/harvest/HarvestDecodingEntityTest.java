@@ -0,0 +1,150 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class HarvestDecodingEntityTest {
+
+    private static final byte[] BODY = body();
+
+    @Test
+    public void testDecodesGzip() throws Exception {
+        byte[] wire = gzip(BODY);
+        assertDecodes(wire, "gzip");
+        assertDecodes(wire, "x-gzip");
+        assertDecodes(wire, " GZIP ");
+    }
+
+    @Test
+    public void testDecodesZlibWrappedDeflate() throws Exception {
+        assertDecodes(deflate(BODY, false), "deflate");
+    }
+
+    @Test
+    public void testDecodesRawDeflate() throws Exception {
+        assertDecodes(deflate(BODY, true), "deflate");
+    }
+
+    @Test
+    public void testCountsIdentityBodies() throws Exception {
+        HarvestDecodingEntity entity = assertDecodes(BODY, null);
+        assertEquals(entity.getWireBytes(), entity.getDecodedBytes());
+        assertDecodes(BODY, "identity");
+    }
+
+    @Test
+    public void testPassesUncountedIdentityBodiesThrough() throws Exception {
+        HttpEntity entity = entity(BODY, null);
+        assertSame(entity, HarvestDecodingEntity.decode(entity, false));
+        entity = entity(BODY, "identity");
+        assertSame(entity, HarvestDecodingEntity.decode(entity, false));
+        assertNull(HarvestDecodingEntity.decode(null, true));
+
+        // Encoded bodies are decoded whether or not they are counted
+        HttpEntity decoded = HarvestDecodingEntity.decode(entity(gzip(BODY), "gzip"), false);
+        assertTrue(Arrays.equals(BODY, read(decoded.getContent())));
+        assertEquals(0, ((HarvestDecodingEntity)decoded).getWireBytes());
+    }
+
+    @Test
+    public void testDescribesTheDecodedBody() throws Exception {
+        HarvestDecodingEntity entity = decode(gzip(BODY), "gzip");
+        assertNull(entity.getContentEncoding());
+        assertEquals(-1, entity.getContentLength());
+        assertSame(entity.getContent(), entity.getContent());
+    }
+
+    @Test
+    public void testRejectsUnsupportedEncodings() throws Exception {
+        try {
+            decode(BODY, "br").getContent();
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("br"));
+        }
+    }
+
+    // Decodes the wire bytes and checks the content and both byte counts
+    private static HarvestDecodingEntity assertDecodes(byte[] wire, String encoding) throws IOException {
+        HarvestDecodingEntity entity = decode(wire, encoding);
+        assertTrue(encoding+" body", Arrays.equals(BODY, read(entity.getContent())));
+        assertEquals(wire.length, entity.getWireBytes());
+        assertEquals(BODY.length, entity.getDecodedBytes());
+        return entity;
+    }
+
+    private static HarvestDecodingEntity decode(byte[] wire, String encoding) {
+        return (HarvestDecodingEntity)HarvestDecodingEntity.decode(entity(wire, encoding), true);
+    }
+
+    private static HttpEntity entity(byte[] wire, String encoding) {
+        ByteArrayEntity entity = new ByteArrayEntity(wire);
+        entity.setContentEncoding(encoding);
+        return entity;
+    }
+
+    // Reads a byte at a time at first so both read methods are counted
+    private static byte[] read(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++) {
+            int b = input.read();
+            if (b == -1) {
+                return output.toByteArray();
+            }
+            output.write(b);
+        }
+        byte[] buffer = new byte[1000];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        input.close();
+        return output.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        OutputStream gzip = new GZIPOutputStream(output);
+        gzip.write(bytes);
+        gzip.close();
+        return output.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] bytes, boolean raw) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, raw);
+        OutputStream deflate = new DeflaterOutputStream(output, deflater);
+        deflate.write(bytes);
+        deflate.close();
+        deflater.end();
+        return output.toByteArray();
+    }
+
+    // A list of projects large enough to be read in several buffers
+    private static byte[] body() {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 2000; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"project\":{\"id\":").append(i)
+                .append(",\"name\":\"Project ").append(i).append("\",\"active\":true}}");
+        }
+        try {
+            return json.append("]").toString().getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
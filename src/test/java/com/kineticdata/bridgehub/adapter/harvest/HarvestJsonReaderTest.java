@@ -0,0 +1,180 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class HarvestJsonReaderTest {
+
+    @Test
+    public void testUnwrapsWrappedObjects() throws Exception {
+        List<Map<String,Object>> records = read("[{\"project\":{\"id\":1,\"name\":\"A\"}},"
+            + "{\"project\":{\"id\":2,\"name\":\"B\"}}]", true, "project", null);
+        assertEquals(2, records.size());
+        assertEquals(1L, records.get(0).get("id"));
+        assertEquals("B", records.get(1).get("name"));
+        assertFalse(records.get(0).containsKey("project"));
+
+        records = read("{\"project\":{\"id\":1}}", false, "project", null);
+        assertEquals(1, records.size());
+        assertEquals(1L, records.get(0).get("id"));
+    }
+
+    @Test
+    public void testReadsBareObjects() throws Exception {
+        List<Map<String,Object>> records = read("[{\"id\":1,\"name\":\"A\"},{\"id\":2,\"name\":\"B\"}]",
+            true, "project", null);
+        assertEquals(2, records.size());
+        assertEquals(1L, records.get(0).get("id"));
+        assertEquals("A", records.get(0).get("name"));
+        assertEquals(2L, records.get(1).get("id"));
+
+        // A single property object that isn't the envelope is bare too
+        records = read("{\"client\":{\"id\":1}}", false, "project", null);
+        assertEquals(1, records.size());
+        assertEquals(1L, ((Map<?,?>)records.get(0).get("client")).get("id"));
+
+        records = read("[{}]", true, "project", null);
+        assertTrue(records.get(0).isEmpty());
+    }
+
+    @Test
+    public void testWithoutAnEnvelopeAnySingleKeyIsUnwrapped() throws Exception {
+        List<Map<String,Object>> records = read("[{\"invoices\":{\"id\":1}}]", true, null, null);
+        assertEquals(1L, records.get(0).get("id"));
+    }
+
+    @Test
+    public void testWrappedObjectsHaveOneKey() throws Exception {
+        try {
+            read("[{\"project\":{\"id\":1},\"other\":{}}]", true, "project", null);
+            fail("Expected a BridgeError");
+        } catch (BridgeError e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testProjectsFields() throws Exception {
+        String json = "[{\"project\":{\"id\":1,\"name\":\"A\",\"code\":\"X\","
+            + "\"budget\":{\"hours\":10,\"by\":[\"task\",{\"skip\":[1,2]}]},"
+            + "\"tags\":[\"a\",[\"b\",\"c\"],{\"d\":null}],"
+            + "\"notes\":{\"nested\":{\"deeper\":[1,{\"x\":\"y\"}]}}}}]";
+        List<Map<String,Object>> records = read(json, true, "project", fields("id", "budget", "tags"));
+        assertEquals(1, records.size());
+        Map<String,Object> record = records.get(0);
+        assertEquals(3, record.size());
+        assertEquals(1L, record.get("id"));
+        assertFalse(record.containsKey("name"));
+        assertFalse(record.containsKey("notes"));
+
+        Map<?,?> budget = (Map<?,?>)record.get("budget");
+        assertEquals(10L, budget.get("hours"));
+        List<?> by = (List<?>)budget.get("by");
+        assertEquals("task", by.get(0));
+        assertEquals(Arrays.asList(1L, 2L), ((Map<?,?>)by.get(1)).get("skip"));
+
+        List<?> tags = (List<?>)record.get("tags");
+        assertEquals(3, tags.size());
+        assertEquals(Arrays.asList("b", "c"), tags.get(1));
+        assertTrue(((Map<?,?>)tags.get(2)).containsKey("d"));
+
+        // Every field is kept without a projection, and nested values are rebuilt as they were
+        record = read(json, true, "project", null).get(0);
+        assertEquals(6, record.size());
+        assertEquals("y", ((Map<?,?>)((List<?>)((Map<?,?>)((Map<?,?>)record.get("notes"))
+            .get("nested")).get("deeper")).get(1)).get("x"));
+    }
+
+    @Test
+    public void testProjectsFieldsOfBareObjects() throws Exception {
+        List<Map<String,Object>> records = read("[{\"id\":1,\"name\":\"A\",\"budget\":{\"hours\":10}}]",
+            true, "project", fields("name", "budget"));
+        assertEquals(2, records.get(0).size());
+        assertEquals("A", records.get(0).get("name"));
+        assertEquals(10L, ((Map<?,?>)records.get(0).get("budget")).get("hours"));
+    }
+
+    @Test
+    public void testNullObjects() throws Exception {
+        List<Map<String,Object>> records = read("[{\"project\":null},{\"project\":{\"id\":2}}]",
+            true, "project", null);
+        assertEquals(2, records.size());
+        assertNull(records.get(0));
+        assertEquals(2L, records.get(1).get("id"));
+
+        records = read("{\"project\":null}", false, "project", fields("id"));
+        assertEquals(1, records.size());
+        assertNull(records.get(0));
+    }
+
+    @Test
+    public void testRejectsUnexpectedResponses() throws Exception {
+        for (String json : new String[] {"[1]", "[[1]]", "\"text\"", "{\"project\":{\"id\":1}"}) {
+            try {
+                read(json, true, "project", null);
+                fail("Expected a BridgeError for "+json);
+            } catch (BridgeError e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testCount() throws Exception {
+        assertEquals(0, count("[]"));
+        assertEquals(0, count(" \n[ ]\n"));
+        assertEquals(3, count("[{\"project\":{\"id\":1}},{\"project\":{\"id\":2}},{\"project\":null}]"));
+        assertEquals(2, count("[{\"a\":[1,2,{\"b\":[]}]},{\"c\":{}}]"));
+    }
+
+    @Test
+    public void testCountSkipsEscapedQuotes() throws Exception {
+        assertEquals(2, count("[{\"name\":\"say \\\"hi\\\", then [go]\"},{\"name\":\"b\"}]"));
+        assertEquals(2, count("[{\"name\":\"ends in a backslash \\\\\"},{\"name\":\"\\\\\\\"\"}]"));
+    }
+
+    @Test
+    public void testCountSkipsBracketsInStrings() throws Exception {
+        assertEquals(1, count("[{\"name\":\"] , [ { }\"}]"));
+        assertEquals(2, count("[{\"name\":\"}\"},{\"name\":\"{[\"}]"));
+        assertEquals(2, count("[\"a,b\",\"]\"]"));
+    }
+
+    @Test
+    public void testCountRejectsIncompleteLists() throws Exception {
+        for (String json : new String[] {"{\"project\":{}}", "[{\"a\":1}", "[\"]", "[] []"}) {
+            try {
+                count(json);
+                fail("Expected a BridgeError for "+json);
+            } catch (BridgeError e) {
+                // expected
+            }
+        }
+    }
+
+    private static List<Map<String,Object>> read(String json, boolean list, String envelope, Set<String> fields)
+        throws Exception
+    {
+        return HarvestJsonReader.read(new StringReader(json), list, envelope, fields);
+    }
+
+    private static int count(String json) throws Exception {
+        return HarvestJsonReader.count(new ByteArrayInputStream(json.getBytes("UTF-8")));
+    }
+
+    private static Set<String> fields(String... fields) {
+        return new HashSet<String>(Arrays.asList(fields));
+    }
+}
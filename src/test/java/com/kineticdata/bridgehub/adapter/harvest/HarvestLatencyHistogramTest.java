@@ -0,0 +1,76 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+public class HarvestLatencyHistogramTest {
+
+    @Test
+    public void testBucketsArePowersOfTwoMicroseconds() {
+        // A latency just under a power of two is reported as that power of two, one at it as the next
+        assertEquals(1024, median(1023));
+        assertEquals(2048, median(1024));
+        assertEquals(2, median(1));
+        assertEquals(4, median(2));
+        assertEquals(4, median(3));
+        // Latencies under a microsecond are in the first bucket
+        HarvestLatencyHistogram histogram = new HarvestLatencyHistogram();
+        histogram.record(999);
+        histogram.record(micros(5000));
+        assertEquals(1, histogram.getPercentileMicros(0.5));
+    }
+
+    @Test
+    public void testReportsPercentilesMeanAndMax() {
+        HarvestLatencyHistogram histogram = new HarvestLatencyHistogram();
+        assertEquals(0, histogram.getPercentileMicros(0.5));
+        assertEquals(0, histogram.getMeanMicros());
+        for (int i = 0; i < 99; i++) {
+            histogram.record(micros(10));
+        }
+        histogram.record(micros(1000));
+        assertEquals(100, histogram.getCount());
+        assertEquals(16, histogram.getPercentileMicros(0.5));
+        assertEquals(16, histogram.getPercentileMicros(0.99));
+        // The upper bound of the bucket (1024) is never more than the largest latency
+        assertEquals(1000, histogram.getPercentileMicros(1.0));
+        assertEquals(19, histogram.getMeanMicros());
+        assertEquals(1000, histogram.getMaxMicros());
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxMicros());
+        assertEquals(0, histogram.getPercentileMicros(0.99));
+    }
+
+    @Test
+    public void testLongLatenciesAreCountedInTheLastBucket() {
+        HarvestLatencyHistogram histogram = new HarvestLatencyHistogram();
+        histogram.record(micros(1));
+        histogram.record(micros(1L << 45));
+        assertEquals(1L << 39, histogram.getPercentileMicros(0.99));
+        assertEquals(1L << 45, histogram.getMaxMicros());
+    }
+
+    @Test
+    public void testNegativeLatenciesAreRecordedAsZero() {
+        HarvestLatencyHistogram histogram = new HarvestLatencyHistogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMaxMicros());
+        assertEquals(0, histogram.getMeanMicros());
+    }
+
+    // Records the latency with a much longer one (so the maximum doesn't cap it) and returns the median
+    private static long median(long micros) {
+        HarvestLatencyHistogram histogram = new HarvestLatencyHistogram();
+        histogram.record(micros(micros));
+        histogram.record(micros(1000000));
+        return histogram.getPercentileMicros(0.5);
+    }
+
+    private static long micros(long micros) {
+        return TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+}
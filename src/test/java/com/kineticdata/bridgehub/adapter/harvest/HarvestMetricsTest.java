@@ -0,0 +1,138 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import org.apache.http.entity.StringEntity;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class HarvestMetricsTest {
+
+    @Test
+    public void testDisabledMetricsRecordNothing() throws Exception {
+        HarvestMetrics metrics = HarvestMetrics.DISABLED;
+        assertFalse(metrics.isEnabled());
+        assertEquals(0, metrics.start());
+        StringEntity entity = new StringEntity("[]");
+        assertSame(entity, metrics.timeBody(entity));
+
+        metrics.recordPhaseNanos("Clients", HarvestMetrics.Phase.URL_BUILD, 1000);
+        metrics.recordCall("Clients", HarvestMetrics.Operation.SEARCH, System.nanoTime(), true);
+        metrics.recordResponse("Clients", System.nanoTime(), null, 200);
+        metrics.recordBytes("Clients", HarvestDecodingEntity.decode(entity, true));
+        metrics.setSources(new HarvestResponseCache(10, 1000, Collections.<String,Long>emptyMap(), 0, 0),
+            null, null, null, null, null, null, null, null);
+
+        assertTrue(metrics.getLatencies().isEmpty());
+        Map<String,Long> counters = metrics.getCounters();
+        assertEquals(Arrays.asList("bytes.decoded", "bytes.wire", "requests"), new ArrayList<String>(counters.keySet()));
+        assertEquals(Long.valueOf(0), counters.get("requests"));
+        assertEquals(Long.valueOf(0), counters.get("bytes.wire"));
+    }
+
+    @Test
+    public void testRecordsCallsResponsesAndBytes() throws Exception {
+        RecordingRegistry registry = new RecordingRegistry();
+        HarvestMetrics metrics = new HarvestMetrics(true, registry);
+        metrics.recordCall("Clients", HarvestMetrics.Operation.SEARCH, metrics.start(), false);
+        metrics.recordCall("Clients", HarvestMetrics.Operation.SEARCH, metrics.start(), true);
+        metrics.recordResponse("Clients", metrics.start(), null, 200);
+        metrics.recordResponse("Clients", metrics.start(), null, 503);
+        HarvestDecodingEntity entity = (HarvestDecodingEntity)HarvestDecodingEntity.decode(new StringEntity("[]"), true);
+        entity.getContent().read(new byte[10]);
+        metrics.recordBytes("Clients", entity);
+
+        Map<String,Long> counters = metrics.getCounters();
+        assertEquals(Long.valueOf(2), counters.get("calls.search.Clients"));
+        assertEquals(Long.valueOf(1), counters.get("errors.search.Clients"));
+        assertEquals(Long.valueOf(2), counters.get("requests"));
+        assertEquals(Long.valueOf(1), counters.get("status.503"));
+        assertEquals(Long.valueOf(2), counters.get("bytes.wire"));
+        assertEquals(Long.valueOf(2), counters.get("bytes.decoded"));
+        Map<String,Long> latencies = metrics.getLatencies();
+        assertEquals(Long.valueOf(2), latencies.get("search.Clients.count"));
+        assertEquals(Long.valueOf(2), latencies.get("phase.httpWait.count"));
+        assertEquals(Arrays.asList("bytes Clients 2 2", "call search Clients false", "call search Clients true",
+            "phase Clients httpWait", "phase Clients httpWait", "status Clients 200", "status Clients 503"),
+            sorted(registry.events));
+
+        metrics.reset();
+        assertTrue(metrics.getLatencies().isEmpty());
+        assertEquals(Long.valueOf(0), metrics.getCounters().get("requests"));
+    }
+
+    @Test
+    public void testRegistersTheMXBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.kineticdata.bridgehub.adapter.harvest:type=HarvestAdapter,name="
+            + ObjectName.quote("user@https://acme.harvestapp.com"));
+        HarvestMetrics metrics = new HarvestMetrics(true, null);
+        metrics.register("user@https://acme.harvestapp.com");
+        try {
+            assertTrue(server.isRegistered(name));
+            metrics.recordResponse("Clients", metrics.start(), null, 200);
+            TabularData counters = (TabularData)server.getAttribute(name, "Counters");
+            CompositeData requests = counters.get(new Object[] {"requests"});
+            assertEquals(1L, requests.get("value"));
+
+            // Resetting through the bean resets the metrics
+            server.invoke(name, "reset", null, null);
+            assertEquals(Long.valueOf(0), metrics.getCounters().get("requests"));
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(server.isRegistered(name));
+        // Unregistering again does nothing
+        metrics.unregister();
+    }
+
+    @Test
+    public void testDisabledMetricsAreNotRegistered() throws Exception {
+        ObjectName pattern = new ObjectName("com.kineticdata.bridgehub.adapter.harvest:type=HarvestAdapter,*");
+        int registered = ManagementFactory.getPlatformMBeanServer().queryNames(pattern, null).size();
+        HarvestMetrics.DISABLED.register("disabled");
+        assertEquals(registered, ManagementFactory.getPlatformMBeanServer().queryNames(pattern, null).size());
+    }
+
+    private static List<String> sorted(List<String> events) {
+        List<String> sorted = new ArrayList<String>(events);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    // Records the measurements it receives
+    private static class RecordingRegistry implements HarvestMetricsRegistry {
+        private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void recordPhase(String structure, String phase, long nanos) {
+            events.add("phase "+structure+" "+phase);
+        }
+
+        @Override
+        public void recordCall(String structure, String operation, long nanos, boolean failed) {
+            events.add("call "+operation+" "+structure+" "+failed);
+        }
+
+        @Override
+        public void recordStatus(String structure, int status) {
+            events.add("status "+structure+" "+status);
+        }
+
+        @Override
+        public void recordBytes(String structure, long wireBytes, long decodedBytes) {
+            events.add("bytes "+structure+" "+wireBytes+" "+decodedBytes);
+        }
+    }
+}
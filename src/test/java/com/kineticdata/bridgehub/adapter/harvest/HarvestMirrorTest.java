@@ -0,0 +1,97 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+public class HarvestMirrorTest {
+
+    private final QueuedLoader loader = new QueuedLoader();
+
+    @Test
+    public void testDeltasReplaceAndAddObjectsById() throws Exception {
+        HarvestMirror mirror = new HarvestMirror(loader, 3600000, 0);
+        HarvestMirror.MirroredStructure clients = new HarvestMirror.MirroredStructure("Clients", 1000, 60000);
+        loader.add(records(client(1, "A"), null, client(2, "B")));
+        mirror.refresh(clients);
+        assertEquals(Arrays.asList((String)null), loader.updatedSince);
+
+        // The existing null object is dropped rather than failing the merge
+        loader.add(records(client(2, "B2"), client(3, "C")));
+        mirror.refresh(clients);
+        assertNotNull(loader.updatedSince.get(1));
+        List<Map<String,Object>> records = clients.getIndex(System.currentTimeMillis()).getRecords();
+        assertEquals(Arrays.asList(client(1, "A"), client(2, "B2"), client(3, "C")), records);
+
+        // An empty delta keeps the copy as it is
+        loader.add(new ArrayList<Map<String,Object>>());
+        mirror.refresh(clients);
+        assertEquals(3, clients.getIndex(System.currentTimeMillis()).getRecords().size());
+    }
+
+    @Test
+    public void testServesAStaleCopyUntilTheStalenessBound() throws Exception {
+        HarvestMirror mirror = new HarvestMirror(loader, 3600000, 0);
+        HarvestMirror.MirroredStructure clients = new HarvestMirror.MirroredStructure("Clients", 1000, 200);
+        assertNull(clients.getIndex(System.currentTimeMillis()));
+        loader.add(records(client(1, "A")));
+        mirror.refresh(clients);
+
+        // The failed refresh leaves the loaded copy in place
+        mirror.refresh(clients);
+        assertEquals(2, loader.updatedSince.size());
+        assertEquals(1, clients.getIndex(System.currentTimeMillis()).getRecords().size());
+
+        Thread.sleep(250);
+        mirror.refresh(clients);
+        assertNull(clients.getIndex(System.currentTimeMillis()));
+
+        // A successful refresh serves the structure again
+        loader.add(records(client(1, "A2")));
+        mirror.refresh(clients);
+        assertEquals(Arrays.asList(client(1, "A2")), clients.getIndex(System.currentTimeMillis()).getRecords());
+    }
+
+    // Returns the queued results in order and fails once they run out
+    private static class QueuedLoader implements HarvestMirror.Loader {
+        private final LinkedList<List<Map<String,Object>>> results = new LinkedList<List<Map<String,Object>>>();
+        private final List<String> updatedSince = new ArrayList<String>();
+
+        void add(List<Map<String,Object>> result) {
+            results.add(result);
+        }
+
+        @Override
+        public List<Map<String,Object>> load(String structure, String updatedSince) throws BridgeError {
+            this.updatedSince.add(updatedSince);
+            if (results.isEmpty()) {
+                throw new BridgeError("Harvest is unavailable");
+            }
+            return results.removeFirst();
+        }
+    }
+
+    @SafeVarargs
+    private static List<Map<String,Object>> records(Map<String,Object>... records) {
+        List<Map<String,Object>> list = new ArrayList<Map<String,Object>>();
+        for (Map<String,Object> record : records) {
+            list.add(record);
+        }
+        return list;
+    }
+
+    private static Map<String,Object> client(long id, String name) {
+        Map<String,Object> client = new HashMap<String,Object>();
+        client.put("id", id);
+        client.put("name", name);
+        return client;
+    }
+}
@@ -0,0 +1,83 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class HarvestRateLimiterTest {
+
+    @Test
+    public void testBurstIsNotDelayed() throws Exception {
+        HarvestRateLimiter limiter = new HarvestRateLimiter(1, 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.acquire(0));
+        }
+        assertEquals(0, limiter.getWaits());
+    }
+
+    @Test
+    public void testWaitsForTheNextToken() throws Exception {
+        HarvestRateLimiter limiter = new HarvestRateLimiter(20, 1);
+        limiter.acquire(0);
+        long waited = limiter.acquire(System.currentTimeMillis() + 5000);
+        assertTrue("waited "+waited+"ms", waited >= 30);
+        assertEquals(1, limiter.getWaits());
+    }
+
+    @Test
+    public void testFailsRatherThanWaitingPastTheDeadline() throws Exception {
+        HarvestRateLimiter limiter = new HarvestRateLimiter(1, 1);
+        limiter.acquire(0);
+        long start = System.currentTimeMillis();
+        try {
+            limiter.acquire(start + 100);
+            fail("Expected a HarvestUnavailableError");
+        } catch (HarvestUnavailableError e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start < 500);
+
+        // The failed caller didn't reserve a token, so the next one is still due in about a second
+        long waited = limiter.acquire(System.currentTimeMillis() + 5000);
+        assertTrue("waited "+waited+"ms", waited < 1100);
+    }
+
+    @Test
+    public void testWaitingCallersDontHoldTheLock() throws Exception {
+        final HarvestRateLimiter limiter = new HarvestRateLimiter(1, 1);
+        limiter.acquire(0);
+        // Reserves the token due in about a second, and waits for it
+        Thread waiting = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    limiter.acquire(0);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        waiting.start();
+        Thread.sleep(100);
+
+        // The next token is two seconds away, so this fails straight away rather than queueing
+        long start = System.currentTimeMillis();
+        try {
+            limiter.acquire(start + 1500);
+            fail("Expected a HarvestUnavailableError");
+        } catch (HarvestUnavailableError e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start < 500);
+        waiting.join();
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        HarvestRateLimiter limiter = new HarvestRateLimiter(0, 1);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, limiter.acquire(System.currentTimeMillis()));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class HarvestRecordIndexTest {
+
+    @Test
+    public void testSelectMatchesALinearScan() {
+        Random random = new Random(42);
+        List<Map<String,Object>> records = new ArrayList<Map<String,Object>>();
+        for (long id = 0; id < 500; id++) {
+            records.add(random.nextInt(50) == 0 ? null : record("id", id, "client_id", (long)random.nextInt(10),
+                "active", random.nextBoolean(), "name", "Project "+random.nextInt(5)));
+        }
+        HarvestRecordIndex index = new HarvestRecordIndex(records);
+
+        for (int i = 0; i < 200; i++) {
+            Map<String,String> conditions = new LinkedHashMap<String,String>();
+            if (random.nextBoolean()) {
+                conditions.put("client_id", String.valueOf(random.nextInt(12)));
+            }
+            if (random.nextBoolean()) {
+                conditions.put("active", String.valueOf(random.nextBoolean()));
+            }
+            if (random.nextBoolean()) {
+                conditions.put("name", "Project "+random.nextInt(6));
+            }
+            if (conditions.isEmpty() || random.nextInt(4) == 0) {
+                conditions.put("id", String.valueOf(random.nextInt(520)));
+            }
+            assertEquals(conditions.toString(), scan(records, conditions), index.select(conditions));
+        }
+    }
+
+    @Test
+    public void testMatchesValuesByTheirText() {
+        List<Map<String,Object>> records = new ArrayList<Map<String,Object>>();
+        records.add(record("id", 1L, "name", "A"));
+        records.add(record("id", "1", "name", "B"));
+        records.add(record("id", 1.0, "name", "C"));
+        records.add(record("id", 2L, "name", "D"));
+        HarvestRecordIndex index = new HarvestRecordIndex(records);
+
+        // A condition value of "1" matches the number 1 and the string "1", but not 1.0
+        List<Map<String,Object>> selected = index.select(Collections.singletonMap("id", "1"));
+        assertEquals(2, selected.size());
+        assertEquals("A", selected.get(0).get("name"));
+        assertEquals("B", selected.get(1).get("name"));
+        assertEquals("C", index.select(Collections.singletonMap("id", "1.0")).get(0).get("name"));
+        assertTrue(index.select(Collections.singletonMap("id", "3")).isEmpty());
+    }
+
+    @Test
+    public void testSelectsNullValues() {
+        List<Map<String,Object>> records = new ArrayList<Map<String,Object>>();
+        records.add(record("id", 1L, "email", null));
+        records.add(record("id", 2L, "email", "a@acme.com"));
+        HarvestRecordIndex index = new HarvestRecordIndex(records);
+        assertEquals(1L, index.select(Collections.singletonMap("email", "null")).get(0).get("id"));
+    }
+
+    @Test
+    public void testReturnsNullForPropertiesTheObjectsDontHave() {
+        List<Map<String,Object>> records = new ArrayList<Map<String,Object>>();
+        records.add(record("id", 1L, "name", "A"));
+        HarvestRecordIndex index = new HarvestRecordIndex(records);
+        assertNull(index.select(Collections.singletonMap("updated_since", "2016-01-01")));
+        Map<String,String> conditions = new HashMap<String,String>();
+        conditions.put("id", "1");
+        conditions.put("from", "20160101");
+        assertNull(index.select(conditions));
+
+        // Without objects there is nothing to match, whatever the conditions are
+        HarvestRecordIndex empty = new HarvestRecordIndex(new ArrayList<Map<String,Object>>());
+        assertTrue(empty.select(Collections.singletonMap("updated_since", "2016-01-01")).isEmpty());
+    }
+
+    @Test
+    public void testWithoutConditionsReturnsEveryObject() {
+        List<Map<String,Object>> records = new ArrayList<Map<String,Object>>();
+        records.add(record("id", 1L));
+        HarvestRecordIndex index = new HarvestRecordIndex(records);
+        assertSame(records, index.select(new HashMap<String,String>()));
+        assertSame(records, index.getRecords());
+        assertTrue(index.getEstimatedBytes() > 0);
+    }
+
+    // The objects matching every condition, found by checking each object
+    private static List<Map<String,Object>> scan(List<Map<String,Object>> records, Map<String,String> conditions) {
+        List<Map<String,Object>> result = new ArrayList<Map<String,Object>>();
+        for (Map<String,Object> record : records) {
+            boolean matches = record != null;
+            for (Map.Entry<String,String> condition : conditions.entrySet()) {
+                matches = matches && condition.getValue().equals(String.valueOf(record.get(condition.getKey())));
+            }
+            if (matches) {
+                result.add(record);
+            }
+        }
+        return result;
+    }
+
+    private static Map<String,Object> record(Object... properties) {
+        Map<String,Object> record = new HashMap<String,Object>();
+        for (int i = 0; i < properties.length; i += 2) {
+            record.put((String)properties[i], properties[i + 1]);
+        }
+        return record;
+    }
+}
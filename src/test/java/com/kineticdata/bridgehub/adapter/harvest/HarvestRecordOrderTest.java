@@ -0,0 +1,110 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class HarvestRecordOrderTest {
+
+    @Test
+    public void testPagesMatchAFullSort() {
+        Random random = new Random(7);
+        List<Map<String,Object>> records = new ArrayList<Map<String,Object>>();
+        for (long id = 0; id < 300; id++) {
+            records.add(record("id", id, "name", "Project "+random.nextInt(20), "budget", (long)random.nextInt(5)));
+        }
+        HarvestRecordOrder order = order("budget", "DESC", "name", "ASC");
+        // Collections.sort is stable, so ties keep the order they were in
+        List<Map<String,Object>> sorted = new ArrayList<Map<String,Object>>(records);
+        Collections.sort(sorted, order);
+
+        for (int pageSize : new int[] {1, 7, 25, 300}) {
+            for (int offset = 0; offset < records.size(); offset += pageSize) {
+                assertEquals("offset "+offset+", page size "+pageSize,
+                    sorted.subList(offset, Math.min(offset + pageSize, sorted.size())),
+                    HarvestRecordOrder.page(records, order, offset, pageSize));
+            }
+        }
+        assertEquals(sorted.subList(290, 300), HarvestRecordOrder.page(records, order, 290, 0));
+    }
+
+    @Test
+    public void testTiesKeepTheirOrderAcrossPages() {
+        List<Map<String,Object>> records = new ArrayList<Map<String,Object>>();
+        for (long id = 0; id < 100; id++) {
+            records.add(record("id", id, "active", id % 3 != 0));
+        }
+        HarvestRecordOrder order = order("active", "ASC");
+        List<Object> ids = new ArrayList<Object>();
+        for (int offset = 0; offset < records.size(); offset += 9) {
+            for (Map<String,Object> record : HarvestRecordOrder.page(records, order, offset, 9)) {
+                ids.add(record.get("id"));
+            }
+        }
+        assertEquals(records.size(), ids.size());
+        // The inactive objects come first, and within each the ids are in their original order
+        for (int i = 1; i < ids.size(); i++) {
+            boolean previousActive = (Long)ids.get(i - 1) % 3 != 0;
+            boolean active = (Long)ids.get(i) % 3 != 0;
+            assertTrue(previousActive == active ? (Long)ids.get(i - 1) < (Long)ids.get(i) : !previousActive);
+        }
+    }
+
+    @Test
+    public void testComparesValuesByType() {
+        List<Map<String,Object>> records = new ArrayList<Map<String,Object>>();
+        records.add(record("value", "b"));
+        records.add(record("value", 10L));
+        records.add(record("value", null));
+        records.add(record("value", "A"));
+        records.add(record("value", 9.5));
+        records.add(null);
+        List<Object> values = new ArrayList<Object>();
+        for (Map<String,Object> record : HarvestRecordOrder.page(records, order("value", "ASC"), 0, 0)) {
+            values.add(record == null ? "(null)" : record.get("value"));
+        }
+        // Nulls first, numbers by value, and text regardless of case
+        assertEquals(6, values.size());
+        assertEquals(null, values.get(0));
+        assertEquals("(null)", values.get(1));
+        assertEquals(9.5, values.get(2));
+        assertEquals(10L, values.get(3));
+        assertEquals("A", values.get(4));
+        assertEquals("b", values.get(5));
+    }
+
+    @Test
+    public void testPagesWithoutAnOrder() {
+        List<Map<String,Object>> records = new ArrayList<Map<String,Object>>();
+        for (long id = 0; id < 10; id++) {
+            records.add(record("id", id));
+        }
+        assertEquals(records.subList(3, 6), HarvestRecordOrder.page(records, null, 3, 3));
+        assertEquals(records.subList(8, 10), HarvestRecordOrder.page(records, null, 8, 5));
+        assertTrue(HarvestRecordOrder.page(records, null, 10, 5).isEmpty());
+        assertTrue(HarvestRecordOrder.page(records, order("id", "ASC"), 12, 5).isEmpty());
+    }
+
+    private static HarvestRecordOrder order(String... order) {
+        Map<String,String> map = new LinkedHashMap<String,String>();
+        for (int i = 0; i < order.length; i += 2) {
+            map.put(order[i], order[i + 1]);
+        }
+        return new HarvestRecordOrder(map);
+    }
+
+    private static Map<String,Object> record(Object... properties) {
+        Map<String,Object> record = new HashMap<String,Object>();
+        for (int i = 0; i < properties.length; i += 2) {
+            record.put((String)properties[i], properties[i + 1]);
+        }
+        return record;
+    }
+}
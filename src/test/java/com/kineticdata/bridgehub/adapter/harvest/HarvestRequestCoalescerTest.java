@@ -0,0 +1,109 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Test;
+
+public class HarvestRequestCoalescerTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testIdenticalCallsShareOneRequest() throws Exception {
+        final HarvestRequestCoalescer coalescer = new HarvestRequestCoalescer();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger requests = new AtomicInteger();
+        Future<String> first = executor.submit(call(coalescer, "key", 0, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                requests.incrementAndGet();
+                started.countDown();
+                release.await();
+                return "result";
+            }
+        }));
+        started.await();
+        Future<String> second = executor.submit(call(coalescer, "key", 0, new Callable<String>() {
+            @Override
+            public String call() {
+                requests.incrementAndGet();
+                return "other";
+            }
+        }));
+        while (coalescer.getCoalesced() == 0) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+        assertEquals("result", first.get());
+        assertEquals("result", second.get());
+        assertEquals(1, requests.get());
+
+        // Later calls make a new request
+        assertEquals("new", coalescer.execute("key", 0, new Callable<String>() {
+            @Override
+            public String call() {
+                return "new";
+            }
+        }));
+    }
+
+    @Test
+    public void testWaitingCallersStopAtTheirDeadline() throws Exception {
+        final HarvestRequestCoalescer coalescer = new HarvestRequestCoalescer();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = executor.submit(call(coalescer, "key", 0, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                started.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return "result";
+            }
+        }));
+        started.await();
+
+        long start = System.currentTimeMillis();
+        try {
+            coalescer.execute("key", start + 100, new Callable<String>() {
+                @Override
+                public String call() {
+                    return "other";
+                }
+            });
+            fail("Expected a HarvestUnavailableError");
+        } catch (HarvestUnavailableError e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+
+        // The shared call isn't affected by the waiter giving up
+        release.countDown();
+        assertEquals("result", first.get());
+    }
+
+    private static Callable<String> call(final HarvestRequestCoalescer coalescer, final String key,
+        final long deadline, final Callable<String> call)
+    {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return coalescer.execute(key, deadline, call);
+            }
+        };
+    }
+}
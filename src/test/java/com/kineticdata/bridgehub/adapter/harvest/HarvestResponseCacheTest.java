@@ -0,0 +1,122 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class HarvestResponseCacheTest {
+
+    private static final String KEY = HarvestResponseCache.key("https://acme.harvestapp.com/clients", "user:abc");
+
+    @Test
+    public void testGetCountsHitsAndMisses() {
+        HarvestResponseCache cache = newCache();
+        assertNull(cache.get(KEY));
+        cache.put(KEY, "Clients", records(), null, null);
+        assertEquals(records(), cache.get(KEY));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testSelectOnlyCountsTheHitsThatAnswerTheConditions() {
+        HarvestResponseCache cache = newCache();
+        // The list isn't cached
+        assertNull(cache.select(KEY, Collections.singletonMap("id", "1")));
+        assertEquals(0, cache.getMisses());
+
+        cache.put(KEY, "Clients", records(), null, null);
+        // A condition the cached objects can't answer
+        assertNull(cache.select(KEY, Collections.singletonMap("updated_since", "2016-01-01")));
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+
+        List<Map<String,Object>> selected = cache.select(KEY, Collections.singletonMap("id", "2"));
+        assertEquals(1, selected.size());
+        assertEquals("B", selected.get(0).get("name"));
+        assertEquals(1, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void testOnlyExpiredEntriesWithValidatorsAreRevalidated() throws Exception {
+        HarvestResponseCache cache = newCache(50);
+        String other = HarvestResponseCache.key("https://acme.harvestapp.com/projects", "user:abc");
+        cache.put(KEY, "Clients", records(), "\"v1\"", null);
+        cache.put(other, "Clients", records(), null, null);
+        assertNull(cache.getExpired(KEY));
+
+        Thread.sleep(80);
+        assertNull(cache.get(KEY));
+        assertEquals("\"v1\"", cache.getExpired(KEY).getEtag());
+        // Without validators an expired entry can't be revalidated (and isn't kept)
+        assertNull(cache.get(other));
+        assertNull(cache.getExpired(other));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testRevalidateReusesTheRecordsForAnotherTimeToLive() throws Exception {
+        HarvestResponseCache cache = newCache(50);
+        cache.put(KEY, "Clients", records(), "\"v1\"", "Mon, 01 Feb 2016 00:00:00 GMT");
+        List<Map<String,Object>> records = cache.get(KEY);
+        HarvestRecordIndex index = cache.getRestorableEntries().get(KEY).getIndex();
+        Thread.sleep(80);
+
+        HarvestResponseCache.CachedResponse expired = cache.getExpired(KEY);
+        // Validators the not modified response doesn't send are kept
+        cache.revalidate(KEY, expired, "\"v2\"", null);
+        assertNull(cache.getExpired(KEY));
+        assertSame(records, cache.get(KEY));
+        HarvestResponseCache.CachedResponse revalidated = cache.getRestorableEntries().get(KEY);
+        assertEquals("\"v2\"", revalidated.getEtag());
+        assertEquals("Mon, 01 Feb 2016 00:00:00 GMT", revalidated.getLastModified());
+        assertTrue(revalidated.getExpiresAt() > expired.getExpiresAt());
+        assertSame(index, revalidated.getIndex());
+        assertEquals(1, cache.getRevalidations());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void testAModifiedResponseReplacesTheExpiredEntry() throws Exception {
+        HarvestResponseCache cache = newCache(50);
+        cache.put(KEY, "Clients", records(), "\"v1\"", null);
+        List<Map<String,Object>> records = cache.get(KEY);
+        Thread.sleep(80);
+
+        List<Map<String,Object>> modified = records();
+        modified.remove(0);
+        cache.put(KEY, "Clients", modified, "\"v2\"", null);
+        assertNotSame(records, cache.get(KEY));
+        assertEquals(modified, cache.get(KEY));
+        assertEquals("\"v2\"", cache.getRestorableEntries().get(KEY).getEtag());
+        assertEquals(0, cache.getRevalidations());
+    }
+
+    private static HarvestResponseCache newCache() {
+        return newCache(60000);
+    }
+
+    private static HarvestResponseCache newCache(long ttl) {
+        return new HarvestResponseCache(100, ttl, new HashMap<String,Long>(), 0, 0);
+    }
+
+    private static List<Map<String,Object>> records() {
+        List<Map<String,Object>> records = new ArrayList<Map<String,Object>>();
+        for (long id = 1; id <= 3; id++) {
+            Map<String,Object> record = new HashMap<String,Object>();
+            record.put("id", id);
+            record.put("name", String.valueOf((char)('A' + id - 1)));
+            records.add(record);
+        }
+        return records;
+    }
+}
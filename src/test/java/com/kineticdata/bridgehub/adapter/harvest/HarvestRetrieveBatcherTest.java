@@ -0,0 +1,110 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Test;
+
+public class HarvestRetrieveBatcherTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger lists = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentRetrievesShareOneListRequest() throws Exception {
+        release.countDown();
+        HarvestRetrieveBatcher batcher = new HarvestRetrieveBatcher(300, lister());
+        List<Future<Map<String,Object>>> results = new ArrayList<Future<Map<String,Object>>>();
+        for (String id : new String[] {"1", "2", "3", "4"}) {
+            results.add(executor.submit(retrieve(batcher, id, 0)));
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals((long)(i + 1), results.get(i).get().get("id"));
+        }
+        // An id that isn't in the list is retrieved by itself
+        assertNull(results.get(3).get());
+        assertEquals(1, lists.get());
+        assertEquals(1, batcher.getBatches());
+        assertEquals(4, batcher.getBatched());
+
+        // A retrieve that isn't batched with any others doesn't list the structure
+        assertNull(batcher.retrieve("Clients", "1", 0));
+        assertEquals(1, lists.get());
+    }
+
+    @Test
+    public void testWaitingRetrievesStopAtTheirDeadline() throws Exception {
+        HarvestRetrieveBatcher batcher = new HarvestRetrieveBatcher(500, lister());
+        Future<Map<String,Object>> first = executor.submit(retrieve(batcher, "1", 0));
+        Thread.sleep(50);
+
+        // Joins the batch, whose list request doesn't complete before the deadline
+        long start = System.currentTimeMillis();
+        try {
+            batcher.retrieve("Clients", "2", start + 700);
+            fail("Expected a HarvestUnavailableError");
+        } catch (HarvestUnavailableError e) {
+            // expected
+        }
+        long waited = System.currentTimeMillis() - start;
+        assertTrue("Waited "+waited+"ms", waited >= 690 && waited < 3000);
+
+        // The batch isn't affected by the waiter giving up
+        release.countDown();
+        assertEquals(1L, first.get().get("id"));
+        assertEquals(1, lists.get());
+    }
+
+    // Lists clients 1 to 3 once the test releases it
+    private HarvestRetrieveBatcher.Lister lister() {
+        return new HarvestRetrieveBatcher.Lister() {
+            @Override
+            public List<Map<String,Object>> list(String structure) throws BridgeError {
+                lists.incrementAndGet();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new BridgeError(e);
+                }
+                List<Map<String,Object>> clients = new ArrayList<Map<String,Object>>();
+                for (long id = 1; id <= 3; id++) {
+                    Map<String,Object> client = new HashMap<String,Object>();
+                    client.put("id", id);
+                    clients.add(client);
+                }
+                return clients;
+            }
+        };
+    }
+
+    private static Callable<Map<String,Object>> retrieve(final HarvestRetrieveBatcher batcher, final String id,
+        final long deadline)
+    {
+        return new Callable<Map<String,Object>>() {
+            @Override
+            public Map<String,Object> call() throws Exception {
+                return batcher.retrieve("Clients", id, deadline);
+            }
+        };
+    }
+}
@@ -0,0 +1,238 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HarvestSnapshotTest {
+
+    private static final String IDENTITY = "user:abc https://acme.harvestapp.com";
+    private static final String CREDENTIALS = "user:abc";
+    private static final String URL = "https://acme.harvestapp.com/clients";
+
+    private File directory;
+    private File file;
+
+    @Before
+    public void createDirectory() throws Exception {
+        directory = Files.createTempDirectory("harvest-snapshot").toFile();
+        file = new File(directory, "snapshot.bin");
+    }
+
+    @After
+    public void deleteDirectory() {
+        for (File child : directory.listFiles()) {
+            child.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        HarvestResponseCache cache = newCache(0);
+        List<Map<String,Object>> records = records();
+        cache.put(HarvestResponseCache.key(URL, CREDENTIALS), "Clients", records, "\"etag\"", "Mon, 01 Feb 2016 00:00:00 GMT");
+        // Responses cached for other credentials aren't written
+        cache.put(HarvestResponseCache.key(URL, "other:def"), "Clients", records, null, null);
+        HarvestMirror mirror = newMirror();
+        mirror.restore(new HarvestMirror.State("Projects", "2016-02-01 00:00", 1000L, 2000L, records));
+
+        HarvestSnapshot snapshot = new HarvestSnapshot(file, IDENTITY, CREDENTIALS, cache, mirror);
+        snapshot.write();
+        assertTrue(snapshot.getWriteBytes() > 0);
+        assertFalse(new File(file.getPath()+".tmp").exists());
+
+        HarvestResponseCache loadedCache = newCache(0);
+        HarvestMirror loadedMirror = newMirror();
+        HarvestSnapshot loaded = new HarvestSnapshot(file, IDENTITY, CREDENTIALS, loadedCache, loadedMirror);
+        assertTrue(loaded.load());
+        assertEquals(file.length(), loaded.getLoadBytes());
+
+        assertEquals(1, loadedCache.size());
+        assertEquals(records, loadedCache.get(HarvestResponseCache.key(URL, CREDENTIALS)));
+        assertNull(loadedCache.get(HarvestResponseCache.key(URL, "other:def")));
+        HarvestResponseCache.CachedResponse restored = loadedCache.getRestorableEntries()
+            .get(HarvestResponseCache.key(URL, CREDENTIALS));
+        assertEquals("Clients", restored.getStructure());
+        assertEquals("\"etag\"", restored.getEtag());
+        assertEquals("Mon, 01 Feb 2016 00:00:00 GMT", restored.getLastModified());
+
+        List<HarvestMirror.State> states = loadedMirror.getStates();
+        assertEquals(1, states.size());
+        assertEquals("Projects", states.get(0).getStructure());
+        assertEquals("2016-02-01 00:00", states.get(0).getCursor());
+        assertEquals(1000L, states.get(0).getSyncedAt());
+        assertEquals(2000L, states.get(0).getFullLoadAt());
+        assertEquals(records, states.get(0).getRecords());
+    }
+
+    @Test
+    public void testRoundTripOfColumnarRecords() throws Exception {
+        HarvestResponseCache cache = newCache(1);
+        cache.put(HarvestResponseCache.key(URL, CREDENTIALS), "Clients", records(), null, null);
+        new HarvestSnapshot(file, IDENTITY, CREDENTIALS, cache, null).write();
+
+        HarvestResponseCache loadedCache = newCache(0);
+        assertTrue(new HarvestSnapshot(file, IDENTITY, CREDENTIALS, loadedCache, null).load());
+        assertEquals(records(), loadedCache.get(HarvestResponseCache.key(URL, CREDENTIALS)));
+    }
+
+    @Test
+    public void testIgnoresOtherCredentialsAndEndpoints() throws Exception {
+        HarvestResponseCache cache = newCache(0);
+        cache.put(HarvestResponseCache.key(URL, CREDENTIALS), "Clients", records(), null, null);
+        new HarvestSnapshot(file, IDENTITY, CREDENTIALS, cache, null).write();
+
+        for (String identity : new String[] {"user:xyz https://acme.harvestapp.com", "user:abc https://other.harvestapp.com"}) {
+            HarvestResponseCache loadedCache = newCache(0);
+            assertFalse(new HarvestSnapshot(file, identity, CREDENTIALS, loadedCache, null).load());
+            assertEquals(0, loadedCache.size());
+        }
+    }
+
+    @Test
+    public void testFingerprintIsSalted() throws Exception {
+        byte[] salt = new byte[16];
+        byte[] fingerprint = HarvestSnapshot.fingerprint(IDENTITY, salt);
+        assertTrue(Arrays.equals(fingerprint, HarvestSnapshot.fingerprint(IDENTITY, salt)));
+        salt[0] = 1;
+        assertFalse(Arrays.equals(fingerprint, HarvestSnapshot.fingerprint(IDENTITY, salt)));
+
+        new HarvestSnapshot(file, IDENTITY, CREDENTIALS, newCache(0), null).write();
+        String contents = new String(Files.readAllBytes(file.toPath()), "ISO-8859-1");
+        assertFalse(contents.contains(CREDENTIALS));
+        assertFalse(contents.contains("acme.harvestapp.com"));
+    }
+
+    @Test
+    public void testOnlyTheOwnerCanReadTheFile() throws Exception {
+        if (!Files.getFileStore(directory.toPath()).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            return;
+        }
+        HarvestSnapshot snapshot = new HarvestSnapshot(file, IDENTITY, CREDENTIALS, newCache(0), null);
+        snapshot.write();
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+        // Replacing the snapshot keeps the permissions
+        snapshot.write();
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+    }
+
+    @Test
+    public void testIgnoresDamagedFiles() throws Exception {
+        // An undamaged mirrored structure without any records
+        assertTrue(loadDamaged(1, "Projects", "2016-02-01 00:00", 0L, 0L, 0, 0, 0));
+
+        // Strings, a name table and a record list that claim to be longer than the file
+        assertFalse(loadDamaged(1, Integer.MAX_VALUE));
+        assertFalse(loadDamaged(1, "Projects", Integer.MAX_VALUE));
+        assertFalse(loadDamaged(1, "Projects", "2016-02-01 00:00", 0L, 0L, Integer.MAX_VALUE));
+        assertFalse(loadDamaged(1, "Projects", "2016-02-01 00:00", 0L, 0L, 0, Integer.MAX_VALUE));
+        assertFalse(loadDamaged(1, "Projects", "2016-02-01 00:00", 0L, 0L, 1, Integer.MAX_VALUE));
+        assertFalse(loadDamaged(0, 1, Integer.MAX_VALUE));
+
+        // A truncated snapshot
+        HarvestResponseCache cache = newCache(0);
+        cache.put(HarvestResponseCache.key(URL, CREDENTIALS), "Clients", records(), null, null);
+        new HarvestSnapshot(file, IDENTITY, CREDENTIALS, cache, null).write();
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 20));
+        HarvestResponseCache loadedCache = newCache(0);
+        assertFalse(new HarvestSnapshot(file, IDENTITY, CREDENTIALS, loadedCache, null).load());
+        assertEquals(0, loadedCache.size());
+
+        // A file in another format
+        Files.write(file.toPath(), "not a snapshot".getBytes("UTF-8"));
+        assertFalse(new HarvestSnapshot(file, IDENTITY, CREDENTIALS, newCache(0), null).load());
+    }
+
+    // Writes a snapshot header for the identity followed by the values (integers, longs and strings
+    // as the snapshot writes them), and loads it
+    private boolean loadDamaged(Object... body) throws Exception {
+        byte[] salt = new byte[16];
+        byte[] fingerprint = HarvestSnapshot.fingerprint(IDENTITY, salt);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(0x48565354);
+        output.writeInt(2);
+        output.writeInt(salt.length);
+        output.write(salt);
+        output.writeInt(fingerprint.length);
+        output.write(fingerprint);
+        output.writeLong(System.currentTimeMillis());
+        for (Object value : body) {
+            if (value instanceof Long) {
+                output.writeLong((Long)value);
+            } else if (value instanceof String) {
+                byte[] string = ((String)value).getBytes("UTF-8");
+                output.writeInt(string.length);
+                output.write(string);
+            } else {
+                output.writeInt((Integer)value);
+            }
+        }
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write(bytes.toByteArray());
+        } finally {
+            stream.close();
+        }
+        return new HarvestSnapshot(file, IDENTITY, CREDENTIALS, newCache(0), newMirror()).load();
+    }
+
+    private static HarvestResponseCache newCache(int columnarThreshold) {
+        return new HarvestResponseCache(100, 60000, new HashMap<String,Long>(), 0, columnarThreshold);
+    }
+
+    private static HarvestMirror newMirror() throws Exception {
+        HarvestMirror mirror = new HarvestMirror(null, 3600000, 0);
+        mirror.addStructure("Projects", 300000, Long.MAX_VALUE);
+        return mirror;
+    }
+
+    // Records with every type of value, a missing property and a null record
+    @SuppressWarnings("unchecked")
+    private static List<Map<String,Object>> records() {
+        JSONObject address = new JSONObject();
+        address.put("city", "Saint Paul");
+        JSONArray tags = new JSONArray();
+        tags.add("a");
+        tags.add(1L);
+
+        List<Map<String,Object>> records = new ArrayList<Map<String,Object>>();
+        Map<String,Object> first = new LinkedHashMap<String,Object>();
+        first.put("id", 1L);
+        first.put("name", "Acme é");
+        first.put("rate", 12.5);
+        first.put("active", true);
+        first.put("notes", null);
+        first.put("address", address);
+        first.put("tags", tags);
+        records.add(first);
+        records.add(null);
+        Map<String,Object> second = new LinkedHashMap<String,Object>();
+        second.put("id", 2L);
+        second.put("active", false);
+        second.put("tags", new JSONArray());
+        records.add(second);
+        return records;
+    }
+}
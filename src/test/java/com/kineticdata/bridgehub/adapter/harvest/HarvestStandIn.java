@@ -0,0 +1,173 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A local stand-in for the Harvest API that the adapter can be pointed at with the Harvest
+ * Endpoint property.  Responses are set per path (including the query string), requests that don't
+ * have one are answered with a 404, and every request is recorded.
+ */
+class HarvestStandIn implements Closeable {
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String,Response> responses = new HashMap<String,Response>();
+    private final List<Request> requests = new ArrayList<Request>();
+
+    HarvestStandIn() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getRawPath();
+                if (exchange.getRequestURI().getRawQuery() != null) {
+                    path += "?"+exchange.getRequestURI().getRawQuery();
+                }
+                Response response;
+                synchronized (HarvestStandIn.this) {
+                    requests.add(new Request(path, exchange.getRequestHeaders()));
+                    response = responses.get(path);
+                }
+                if (response == null) {
+                    response = new Response(404, "{\"message\":\"Not found\"}");
+                }
+                response.send(exchange);
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /** Returns the url the adapter's Harvest Endpoint property is set to. */
+    String getEndpoint() {
+        return "http://127.0.0.1:"+server.getAddress().getPort();
+    }
+
+    /** Answers requests for the path with the JSON body. */
+    Response respond(String path, String body) {
+        return respond(path, 200, body);
+    }
+
+    /** Answers requests for the path with the status and body (which may be null). */
+    synchronized Response respond(String path, int status, String body) {
+        Response response = new Response(status, body);
+        responses.put(path, response);
+        return response;
+    }
+
+    /** Returns the requests that were made, in the order they were received. */
+    synchronized List<Request> getRequests() {
+        return new ArrayList<Request>(requests);
+    }
+
+    /** Returns the paths of the requests that were made, in the order they were received. */
+    synchronized List<String> getPaths() {
+        List<String> paths = new ArrayList<String>();
+        for (Request request : requests) {
+            paths.add(request.getPath());
+        }
+        return paths;
+    }
+
+    /** Returns the number of requests that were made for the path. */
+    synchronized int count(String path) {
+        int count = 0;
+        for (Request request : requests) {
+            if (request.getPath().equals(path)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    synchronized void clearRequests() {
+        requests.clear();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /** A received request */
+    static class Request {
+        private final String path;
+        private final Headers headers;
+
+        Request(String path, Headers headers) {
+            this.path = path;
+            this.headers = headers;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        String getHeader(String name) {
+            return headers.getFirst(name);
+        }
+    }
+
+    /** The response to the requests for a path */
+    static class Response {
+        private final int status;
+        private final String body;
+        private final Map<String,String> headers = new HashMap<String,String>();
+        private volatile long delay;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        /** Sends the header with the response. */
+        Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        /** Waits the number of milliseconds before responding. */
+        Response delay(long delay) {
+            this.delay = delay;
+            return this;
+        }
+
+        void send(HttpExchange exchange) throws IOException {
+            try {
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                for (Map.Entry<String,String> header : headers.entrySet()) {
+                    exchange.getResponseHeaders().set(header.getKey(), header.getValue());
+                }
+                if (body == null) {
+                    exchange.sendResponseHeaders(status, -1);
+                } else {
+                    byte[] bytes = body.getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                    exchange.sendResponseHeaders(status, bytes.length);
+                    OutputStream output = exchange.getResponseBody();
+                    output.write(bytes);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class HarvestStructureTest {
+
+    private static final String ENDPOINT = "https://acme.harvestapp.com";
+
+    @Test
+    public void testListUrls() throws Exception {
+        assertEquals(ENDPOINT+"/clients", listUrl("Clients"));
+        assertEquals(ENDPOINT+"/contacts", listUrl("Contacts"));
+        assertEquals(ENDPOINT+"/clients/1/contacts", listUrl("Contacts", "client_id", "1"));
+        assertEquals(ENDPOINT+"/projects", listUrl("Projects"));
+        assertEquals(ENDPOINT+"/tasks", listUrl("Tasks"));
+        assertEquals(ENDPOINT+"/projects/2/task_assignments", listUrl("Task Assignments", "project_id", "2"));
+        assertEquals(ENDPOINT+"/people", listUrl("Users"));
+        assertEquals(ENDPOINT+"/projects/2/user_assignments", listUrl("User Assignments", "project_id", "2"));
+        assertEquals(ENDPOINT+"/projects/2/entries?from=20160101&to=20160131",
+            listUrl("Entries", "project_id", "2", "from", "20160101", "to", "20160131"));
+        assertEquals(ENDPOINT+"/people/3/entries?from=20160101&to=20160131",
+            listUrl("Entries", "user_id", "3", "from", "20160101", "to", "20160131"));
+        assertEquals(ENDPOINT+"/invoices", listUrl("Invoices"));
+        assertEquals(ENDPOINT+"/projects/2/expenses?from=20160101&to=20160131",
+            listUrl("Expenses", "project_id", "2", "from", "20160101", "to", "20160131"));
+        assertEquals(ENDPOINT+"/people/3/expenses?from=20160101&to=20160131",
+            listUrl("Expenses", "user_id", "3", "from", "20160101", "to", "20160131"));
+    }
+
+    @Test
+    public void testRetrieveUrls() throws Exception {
+        assertEquals(ENDPOINT+"/clients/1", retrieveUrl("Clients", "client_id", "1"));
+        assertEquals(ENDPOINT+"/contacts/4", retrieveUrl("Contacts", "contact_id", "4"));
+        assertEquals(ENDPOINT+"/projects/2", retrieveUrl("Projects", "project_id", "2"));
+        assertEquals(ENDPOINT+"/tasks/5", retrieveUrl("Tasks", "task_id", "5"));
+        assertEquals(ENDPOINT+"/projects/2/task_assignments/6",
+            retrieveUrl("Task Assignments", "project_id", "2", "task_assignment_id", "6"));
+        assertEquals(ENDPOINT+"/people/3", retrieveUrl("Users", "user_id", "3"));
+        assertEquals(ENDPOINT+"/projects/2/user_assignments/7",
+            retrieveUrl("User Assignments", "project_id", "2", "user_assignment_id", "7"));
+        assertEquals(ENDPOINT+"/invoices/8", retrieveUrl("Invoices", "invoice_id", "8"));
+    }
+
+    @Test
+    public void testDefinedStructures() throws Exception {
+        assertEquals(Arrays.asList("Clients", "Contacts", "Projects", "Tasks", "Task Assignments", "Users",
+            "User Assignments", "Entries", "Invoices", "Expenses"), HarvestStructure.NAMES);
+        assertEquals("user_assignment", HarvestStructure.get("User Assignments").getEnvelope());
+        assertEquals("day_entry", HarvestStructure.get("Entries").getEnvelope());
+    }
+
+    @Test
+    public void testQueryParametersAreEncoded() throws Exception {
+        Map<String,String> query = query("client_id", "a b/c", "updated_since", "2016-01-01 10:00");
+        assertEquals(ENDPOINT+"/clients/a%20b%2Fc/contacts?updated_since=2016-01-01+10%3A00",
+            HarvestStructure.get("Contacts").buildListUrl(ENDPOINT, query));
+        // The path parameters are removed from the query
+        assertEquals(1, query.size());
+        assertFalse(query.containsKey("client_id"));
+    }
+
+    @Test
+    public void testListsAreFilteredBySupportedParameters() throws Exception {
+        assertEquals(ENDPOINT+"/projects?client=1&updated_since=2016-01-01",
+            listUrl("Projects", "client", "1", "updated_since", "2016-01-01"));
+        assertEquals(ENDPOINT+"/invoices?page=2&status=paid", listUrl("Invoices", "page", "2", "status", "paid"));
+        assertEquals(ENDPOINT+"/projects/2/entries?from=20160101&to=20160131&billable=yes",
+            listUrl("Entries", "project_id", "2", "from", "20160101", "to", "20160131", "billable", "yes"));
+    }
+
+    @Test
+    public void testListsRejectUnsupportedParameters() throws Exception {
+        try {
+            listUrl("Clients", "active", "true");
+            fail("Expected a BridgeError");
+        } catch (BridgeError e) {
+            assertEquals("The Clients structure can not be searched by active (the supported parameters are "
+                + "updated_since).", e.getMessage());
+        }
+        try {
+            listUrl("Contacts", "client_id", "1", "name", "Acme");
+            fail("Expected a BridgeError");
+        } catch (BridgeError e) {
+            assertEquals("The Contacts structure can not be searched by name (the supported parameters are "
+                + "client_id or updated_since).", e.getMessage());
+        }
+        try {
+            listUrl("Entries", "project_id", "2", "from", "20160101", "to", "20160131", "status", "open");
+            fail("Expected a BridgeError");
+        } catch (BridgeError e) {
+            assertTrue(e.getMessage().contains("project_id, user_id, from, to, billable"));
+        }
+    }
+
+    @Test
+    public void testRetrieveIgnoresOtherParameters() throws Exception {
+        assertEquals(ENDPOINT+"/clients/1", retrieveUrl("Clients", "client_id", "1", "name", "Acme"));
+    }
+
+    @Test
+    public void testMissingParameters() throws Exception {
+        assertError("Task Assignments", true, "A project_id is required for the Task Assignments structure");
+        assertError("Entries", true, "A project_id or user_id is required for the Entries structure");
+        assertError("User Assignments", false, "A project_id and user_assignment_id are required to retrieve a user assignment");
+        assertError("Entries", false, "The Entries structure does not have a retrieve option");
+        try {
+            listUrl("Entries", "project_id", "2", "from", "20160101");
+            fail("Expected a BridgeError");
+        } catch (BridgeError e) {
+            assertTrue(e.getMessage().startsWith("A date range must be provided"));
+        }
+    }
+
+    @Test
+    public void testBatchable() throws Exception {
+        assertTrue(HarvestStructure.get("Clients").isBatchable());
+        assertTrue(HarvestStructure.get("Contacts").isBatchable());
+        assertFalse(HarvestStructure.get("Task Assignments").isBatchable());
+        assertFalse(HarvestStructure.get("Entries").isBatchable());
+        // Invoices are paged, so an invoice may not be on the first page
+        assertFalse(HarvestStructure.get("Invoices").isBatchable());
+    }
+
+    private static void assertError(String structure, boolean list, String message) {
+        try {
+            if (list) {
+                listUrl(structure);
+            } else {
+                retrieveUrl(structure);
+            }
+            fail("Expected a BridgeError");
+        } catch (BridgeError e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    private static String listUrl(String structure, String... parameters) throws BridgeError {
+        return HarvestStructure.get(structure).buildListUrl(ENDPOINT, query(parameters));
+    }
+
+    private static String retrieveUrl(String structure, String... parameters) throws BridgeError {
+        return HarvestStructure.get(structure).buildRetrieveUrl(ENDPOINT, query(parameters));
+    }
+
+    private static Map<String,String> query(String... parameters) {
+        Map<String,String> query = new LinkedHashMap<String,String>();
+        for (int i = 0; i < parameters.length; i += 2) {
+            query.put(parameters[i], parameters[i + 1]);
+        }
+        return query;
+    }
+}
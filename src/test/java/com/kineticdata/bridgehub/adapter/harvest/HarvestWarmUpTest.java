@@ -0,0 +1,121 @@
+package com.kineticdata.bridgehub.adapter.harvest;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class HarvestWarmUpTest {
+
+    @Test
+    public void testParsesTheMode() throws Exception {
+        assertEquals(HarvestWarmUp.Mode.DISABLED, HarvestWarmUp.parseMode("Warm-up Mode", null));
+        assertEquals(HarvestWarmUp.Mode.DISABLED, HarvestWarmUp.parseMode("Warm-up Mode", " "));
+        assertEquals(HarvestWarmUp.Mode.BACKGROUND, HarvestWarmUp.parseMode("Warm-up Mode", "background"));
+        assertEquals(HarvestWarmUp.Mode.BLOCKING, HarvestWarmUp.parseMode("Warm-up Mode", " Blocking "));
+        try {
+            HarvestWarmUp.parseMode("Warm-up Mode", "Eager");
+            fail("Expected a BridgeError");
+        } catch (BridgeError e) {
+            assertTrue(e.getMessage().contains("Eager"));
+        }
+    }
+
+    @Test
+    public void testPreloadsEachStructure() throws Exception {
+        RecordingSteps steps = new RecordingSteps(null);
+        HarvestWarmUp warmUp = new HarvestWarmUp(Arrays.asList("Clients", "Projects"), steps);
+        warmUp.start();
+        warmUp.await(5000);
+        assertEquals(Arrays.asList("credentials", "Clients", "Projects"), steps.getSteps());
+        assertTrue(warmUp.getMillis() >= 0);
+    }
+
+    @Test
+    public void testAwaitFailsWhenTheCredentialsAreRejected() throws Exception {
+        RecordingSteps steps = new RecordingSteps(new BridgeError("401 Access on valid."));
+        HarvestWarmUp warmUp = new HarvestWarmUp(Arrays.asList("Clients"), steps);
+        warmUp.start();
+        try {
+            warmUp.await(5000);
+            fail("Expected a BridgeError");
+        } catch (BridgeError e) {
+            assertTrue(e.getMessage().contains("401"));
+        }
+        assertEquals(Arrays.asList("credentials"), steps.getSteps());
+    }
+
+    @Test
+    public void testAwaitDoesNotFailWhenHarvestIsUnavailable() throws Exception {
+        RecordingSteps steps = new RecordingSteps(new HarvestUnavailableError("Harvest is unavailable"));
+        HarvestWarmUp warmUp = new HarvestWarmUp(Arrays.asList("Clients"), steps);
+        warmUp.start();
+        warmUp.await(5000);
+        // The structures are still preloaded, in case Harvest has recovered
+        assertEquals(Arrays.asList("credentials", "Clients"), steps.getSteps());
+    }
+
+    @Test
+    public void testStopCancelsARunningWarmUp() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        RecordingSteps steps = new RecordingSteps(null) {
+            @Override
+            public void validateCredentials() throws BridgeError {
+                super.validateCredentials();
+                started.countDown();
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    interrupted.countDown();
+                    throw new HarvestUnavailableError("Interrupted");
+                }
+            }
+        };
+        HarvestWarmUp warmUp = new HarvestWarmUp(Arrays.asList("Clients"), steps);
+        warmUp.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        warmUp.stop();
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(Arrays.asList("credentials"), steps.getSteps());
+        assertEquals(-1, warmUp.getMillis());
+    }
+
+    // Records the steps that were run, and fails the credential validation with the error
+    private static class RecordingSteps implements HarvestWarmUp.Steps {
+        private final List<String> steps = Collections.synchronizedList(new ArrayList<String>());
+        private final BridgeError credentialError;
+
+        RecordingSteps(BridgeError credentialError) {
+            this.credentialError = credentialError;
+        }
+
+        @Override
+        public void validateCredentials() throws BridgeError {
+            steps.add("credentials");
+            if (credentialError != null) {
+                throw credentialError;
+            }
+        }
+
+        @Override
+        public int preload(String structure) {
+            steps.add(structure);
+            return 0;
+        }
+
+        List<String> getSteps() {
+            return new ArrayList<String>(steps);
+        }
+    }
+}